@@ -0,0 +1,93 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep.benchmarks;
+
+import com.eggwall.SoundSleep.BrightnessSchedule;
+import com.eggwall.SoundSleep.ClockFormat;
+import com.eggwall.SoundSleep.IconLayout;
+import com.eggwall.SoundSleep.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work the clock screen does on its own: formatting the time every minute, as ClockFaceView.onTimeChanged()
+ * does, and moving the icons, as ClockFaceView.place() does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClockBenchmark {
+    /** The time being shown. */
+    private Calendar mTime;
+    /** Minutes since midnight, advanced on every call. */
+    private int mMinute = 0;
+    /** Reused for every format. */
+    private final char[] mText = new char[ClockFormat.MAX_LENGTH];
+    /** Reused for every move, as the activity does. */
+    private final IconLayout mLayout = new IconLayout();
+    /** Size of the cloud icon. */
+    private final Pair mCloud = new Pair(256, 160);
+    /** Size of the note icon. */
+    private final Pair mNote = new Pair(128, 128);
+    /** Darkens the icons with every move, as the activity does. */
+    private final BrightnessSchedule mBrightness = new BrightnessSchedule();
+
+    @Setup
+    public void setUp() {
+        mTime = Calendar.getInstance();
+    }
+
+    /** Set the clock to the next minute and format it. */
+    @Benchmark
+    public String formatTime() {
+        mMinute = (mMinute + 1) % (24 * 60);
+        mTime.setTimeInMillis(mMinute * 60000L);
+        return ClockFormat.format(mTime);
+    }
+
+    /** Set the clock to the next minute and format it into a reused buffer, as the clock screen does. */
+    @Benchmark
+    public int formatTimeIntoChars() {
+        mMinute = (mMinute + 1) % (24 * 60);
+        mTime.setTimeInMillis(mMinute * 60000L);
+        return ClockFormat.format(mTime, mText);
+    }
+
+    /** Move the icons somewhere new on a 1280x720 screen. */
+    @Benchmark
+    public IconLayout moveIcons() {
+        mLayout.compute(1280, 720, mCloud, mNote, Math.random(), mBrightness.getIconAlphaDecrement());
+        if (!mBrightness.advance()) {
+            mBrightness.reset();
+        }
+        return mLayout;
+    }
+}
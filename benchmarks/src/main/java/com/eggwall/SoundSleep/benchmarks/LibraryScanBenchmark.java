@@ -0,0 +1,124 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep.benchmarks;
+
+import com.eggwall.SoundSleep.LibraryIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the music list, as AudioService.getMusicList() does, over a synthetic tree of artist and album
+ * directories in the temporary directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LibraryScanBenchmark {
+    /** Number of album directories. */
+    @Param({"20", "200"})
+    public int mAlbums;
+    /** Audio files in each album. */
+    @Param({"12"})
+    public int mSongsPerAlbum;
+
+    /** Root of the synthetic music directory. */
+    private File mRoot;
+    /** Where the warm index is stored. */
+    private File mIndexFile;
+    /** An index that is already up to date with the tree. */
+    private LibraryIndex mWarm;
+
+    @Setup
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("music", "");
+        mRoot.delete();
+        mRoot.mkdir();
+        for (int album = 0; album < mAlbums; album++) {
+            // Ten albums per artist.
+            final File dir = new File(mRoot, "Artist " + (album / 10) + File.separator + "Album " + album);
+            dir.mkdirs();
+            for (int song = 0; song < mSongsPerAlbum; song++) {
+                new File(dir, song + ".mp3").createNewFile();
+            }
+            new File(dir, "cover.jpg").createNewFile();
+        }
+        mIndexFile = File.createTempFile("library", ".idx");
+        mWarm = new LibraryIndex(mRoot, mIndexFile);
+        mWarm.scan();
+        mWarm.save();
+    }
+
+    @TearDown
+    public void tearDown() {
+        delete(mRoot);
+        mIndexFile.delete();
+    }
+
+    /** First run: no index, every directory is listed and every file statted. */
+    @Benchmark
+    public String[] coldScan() {
+        final LibraryIndex index = new LibraryIndex(mRoot, mIndexFile);
+        index.scan();
+        return index.getPlayablePaths();
+    }
+
+    /** A new process: the index is read back, and the scan only checks directory times. */
+    @Benchmark
+    public String[] loadAndScan() {
+        final LibraryIndex index = new LibraryIndex(mRoot, mIndexFile);
+        index.load();
+        index.scan();
+        return index.getPlayablePaths();
+    }
+
+    /** The same process scanning again, with nothing changed. */
+    @Benchmark
+    public String[] warmScan() {
+        mWarm.scan();
+        return mWarm.getPlayablePaths();
+    }
+
+    /**
+     * Delete a file, or a directory and everything in it.
+     */
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep.benchmarks;
+
+import com.eggwall.SoundSleep.NoiseGenerator;
+import com.eggwall.SoundSleep.PcmMixer;
+import com.eggwall.SoundSleep.PcmSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of one buffer of audio, as PcmPlayer writes it: pink noise alone, and pink noise with music mixed over
+ * it. The music is at 48kHz, so it is resampled to the 44.1kHz of the noise, which is the most expensive case.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MixerBenchmark {
+    /** A quarter of a 500ms stereo track buffer at 44.1kHz, as PcmPlayer uses. */
+    private static final int BUFFER_SAMPLES = 44100 / 8 * 2;
+
+    /**
+     * Stands in for a decoded song: a stereo sawtooth that never ends.
+     */
+    private static class Song implements PcmSource {
+        /** The next sample value. */
+        private short mValue = 0;
+
+        @Override
+        public int getSampleRate() {
+            return 48000;
+        }
+
+        @Override
+        public int getChannelCount() {
+            return 2;
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int length) {
+            final int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                buffer[i] = mValue;
+                mValue += 37;
+            }
+            return length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Noise alone. */
+    private NoiseGenerator mNoise;
+    /** Music over noise. */
+    private PcmMixer mMixer;
+    /** Reused for every buffer. */
+    private final short[] mBuffer = new short[BUFFER_SAMPLES];
+
+    @Setup
+    public void setUp() {
+        mNoise = new NoiseGenerator(NoiseGenerator.PINK, 44100, 2, 1);
+        mMixer = new PcmMixer(new NoiseGenerator(NoiseGenerator.PINK, 44100, 2, 1), new PcmMixer.Listener() {
+            @Override
+            public void onMusicEnded() {
+            }
+        });
+        mMixer.setGains(0.5f, 0.8f);
+        mMixer.setMusic(new Song());
+    }
+
+    /** One buffer of noise alone, as in the noise mode. */
+    @Benchmark
+    public short[] noise() {
+        mNoise.read(mBuffer, 0, mBuffer.length);
+        return mBuffer;
+    }
+
+    /** One buffer of music over noise, as in the mixed mode. */
+    @Benchmark
+    public short[] mixed() {
+        mMixer.read(mBuffer, 0, mBuffer.length);
+        return mBuffer;
+    }
+}
@@ -0,0 +1,380 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep.benchmarks;
+
+import com.eggwall.SoundSleep.NoiseGenerator;
+import com.eggwall.SoundSleep.PlaybackController;
+import com.eggwall.SoundSleep.PlaybackStats;
+import com.eggwall.SoundSleep.ShuffleBag;
+import com.eggwall.SoundSleep.TrackOrder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+/**
+ * Replays an eight hour night through {@link PlaybackController}, the code that runs all playback in AudioService,
+ * on a virtual clock with simulated players, in a fraction of a second. The night has fumbled taps, a switch to
+ * white noise and back, a sleep timer that fades out, noise and music with noise falling back to what can be
+ * played, crossfades between songs in the small hours, and a library where a few songs are missing or broken.
+ *
+ * <p>At the end it checks that every player was given back and every source closed, that no more players were
+ * alive than the service allows, and that music never went quiet for long between songs. It reports songs played,
+ * errors, mode changes, and the bytes allocated while the night ran. Run it with:</p>
+ *
+ * <pre>java -cp target/benchmarks.jar com.eggwall.SoundSleep.benchmarks.NightSimulation [songs]</pre>
+ */
+public class NightSimulation {
+    /** One hour, in milliseconds. */
+    private static final long HOUR = 60L * 60 * 1000;
+    /** Length of the night. */
+    private static final long NIGHT_MILLIS = 8 * HOUR;
+    /** The most players alive at once, as in AudioService. */
+    private static final int MAX_PLAYERS = 3;
+    /** The most idle players kept, as in AudioService. */
+    private static final int MAX_IDLE_PLAYERS = 2;
+    /** The longest music may go quiet while playing, including skipping broken songs. */
+    private static final long MAX_GAP_MILLIS = 1000;
+    /** Shortest song, in milliseconds. */
+    private static final int MIN_SONG_MILLIS = 2 * 60 * 1000;
+    /** Longest song, in milliseconds. */
+    private static final int MAX_SONG_MILLIS = 7 * 60 * 1000;
+    /** Percent of songs that fail to prepare. */
+    private static final int CORRUPT_PERCENT = 3;
+    /** Percent of songs listed in the library but gone from the card. */
+    private static final int MISSING_PERCENT = 1;
+    /** Songs in the library when none are given on the command line. */
+    private static final int DEFAULT_SONGS = 500;
+    /** When crossfades between songs are turned on. */
+    private static final long CROSSFADE_FROM = 4 * HOUR;
+    /** Length of crossfades once they are on. */
+    private static final long CROSSFADE_MILLIS = 8 * 1000;
+
+    /**
+     * What happened in one night.
+     */
+    public static final class Result {
+        /** Songs started. */
+        public int mSongs;
+        /** Errors from players. */
+        public int mErrors;
+        /** Songs reported as unplayable. */
+        public int mUnplayable;
+        /** Crossfades between songs. */
+        public int mCrossfades;
+        /** Times all audio stopped. */
+        public int mStops;
+        /** Requests replaced by a later one. */
+        public int mRequestsCoalesced;
+        /** Players that coalescing kept from being started. */
+        public int mStartsAvoided;
+        /** Players constructed. */
+        public int mPlayersCreated;
+        /** Players reused instead of constructed. */
+        public int mPlayersReused;
+        /** The most players alive at once. */
+        public int mMaxAlive;
+        /** Time in music mode with nothing playing, in milliseconds. */
+        public long mQuietMillis;
+        /** The longest time in music mode with nothing playing, in milliseconds. */
+        public long mLongestQuietMillis;
+        /** Changes of mode, indexed by the mode before and after. */
+        public final int[][] mTransitions = new int[PlaybackController.MODE_COUNT][PlaybackController.MODE_COUNT];
+        /** Events run on the virtual clock. */
+        public int mEvents;
+        /** Bytes allocated on this thread while the night ran, or -1 if the JVM can't tell. */
+        public long mAllocatedBytes;
+
+        @Override
+        public String toString() {
+            final StringBuilder transitions = new StringBuilder();
+            for (int from = 0; from < PlaybackController.MODE_COUNT; from++) {
+                for (int to = 0; to < PlaybackController.MODE_COUNT; to++) {
+                    if (mTransitions[from][to] > 0) {
+                        transitions.append(' ').append(from).append("->").append(to).append('=')
+                                .append(mTransitions[from][to]);
+                    }
+                }
+            }
+            return "songs=" + mSongs + " errors=" + mErrors + " unplayable=" + mUnplayable
+                    + " crossfades=" + mCrossfades + " stops=" + mStops
+                    + "\nrequests: coalesced=" + mRequestsCoalesced + " startsAvoided=" + mStartsAvoided
+                    + "\nplayers: created=" + mPlayersCreated + " reused=" + mPlayersReused + " maxAlive=" + mMaxAlive
+                    + "\nquiet in music: total=" + mQuietMillis + "ms longest=" + mLongestQuietMillis + "ms"
+                    + "\ntransitions:" + transitions
+                    + "\nevents=" + mEvents + " allocated=" + mAllocatedBytes + " bytes";
+        }
+    }
+
+    /** Number of songs in the library. */
+    private final int mSongCount;
+    /** Seed for song lengths, broken songs and the shuffle. */
+    private final long mSeed;
+
+    /**
+     * @param songs number of songs in the library.
+     * @param seed seed for song lengths, broken songs and the shuffle, so that a night can be replayed exactly.
+     */
+    public NightSimulation(int songs, long seed) {
+        mSongCount = songs;
+        mSeed = seed;
+    }
+
+    /**
+     * Replay the night.
+     * @throws IllegalStateException if a player was misused, leaked, or music went quiet for too long.
+     */
+    public Result run() {
+        final Result result = new Result();
+        final PlaybackStats stats = new PlaybackStats();
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final SimulatedPlayers players = new SimulatedPlayers(scheduler, stats, MAX_PLAYERS, MAX_IDLE_PLAYERS);
+        final Random random = new Random(mSeed);
+        final String[] tracks = new String[mSongCount];
+        for (int i = 0; i < mSongCount; i++) {
+            tracks[i] = "Artist " + (i / 12) + "/Album/" + i + ".mp3";
+            if (random.nextInt(100) >= MISSING_PERCENT) {
+                players.addSong(tracks[i], MIN_SONG_MILLIS + random.nextInt(MAX_SONG_MILLIS - MIN_SONG_MILLIS),
+                        random.nextInt(100) < CORRUPT_PERCENT);
+            }
+        }
+        final ShuffleBag order = new ShuffleBag(mSeed);
+        order.reset(mSongCount);
+        final NightHost host = new NightHost(tracks, order);
+        final PlaybackController controller = new PlaybackController(scheduler, players, host, stats);
+        players.setListener(controller);
+
+        // Music, after two fumbled taps that cancel out.
+        request(scheduler, controller, 0, PlaybackController.MUSIC, 0);
+        request(scheduler, controller, 80, PlaybackController.MUSIC, 0);
+        request(scheduler, controller, 160, PlaybackController.MUSIC, 0);
+        // White noise for a while, then music with a sleep timer that fades out and stops.
+        request(scheduler, controller, HOUR, PlaybackController.WHITE_NOISE, 0);
+        request(scheduler, controller, HOUR + HOUR / 2, PlaybackController.MUSIC, 45);
+        // Awake again: white noise, changed to music straight away.
+        request(scheduler, controller, 2 * HOUR + HOUR / 2, PlaybackController.WHITE_NOISE, 0);
+        request(scheduler, controller, 2 * HOUR + HOUR / 2 + 100, PlaybackController.MUSIC, 0);
+        // Synthesized noise, then music with noise until the morning. This host can do neither, so they fall back
+        // to the included white noise and to music alone.
+        request(scheduler, controller, 3 * HOUR, PlaybackController.NOISE, 0);
+        request(scheduler, controller, 3 * HOUR + HOUR / 4, PlaybackController.MUSIC_AND_NOISE, 0);
+        request(scheduler, controller, NIGHT_MILLIS - 60 * 1000, PlaybackController.MUSIC, 0);
+        scheduler.postAt(new Runnable() {
+            @Override
+            public void run() {
+                host.mCrossfadeMillis = CROSSFADE_MILLIS;
+            }
+        }, CROSSFADE_FROM);
+
+        final long allocatedBefore = getAllocatedBytes();
+        long quietSince = -1;
+        while (true) {
+            final boolean ran = scheduler.runNext(NIGHT_MILLIS);
+            final long now = scheduler.now();
+            final boolean quiet = controller.getTypePlaying() == PlaybackController.MUSIC
+                    && players.getPlaying() == 0;
+            if (quiet && quietSince < 0) {
+                quietSince = now;
+            } else if (!quiet && quietSince >= 0) {
+                final long quietMillis = now - quietSince;
+                result.mQuietMillis += quietMillis;
+                result.mLongestQuietMillis = Math.max(result.mLongestQuietMillis, quietMillis);
+                quietSince = -1;
+            }
+            if (!ran) {
+                break;
+            }
+        }
+        final long allocatedAfter = getAllocatedBytes();
+        result.mAllocatedBytes = (allocatedBefore < 0) ? -1 : allocatedAfter - allocatedBefore;
+
+        result.mSongs = stats.getTrackSwitches();
+        result.mUnplayable = host.mUnplayable;
+        result.mCrossfades = stats.getCrossfadeCount();
+        result.mStops = host.mStops;
+        result.mErrors = stats.getErrors();
+        result.mRequestsCoalesced = stats.getRequestsCoalesced();
+        result.mStartsAvoided = stats.getStartsAvoided();
+        result.mPlayersCreated = stats.getPlayersCreated();
+        result.mPlayersReused = stats.getPlayersReused();
+        result.mMaxAlive = players.getMaxAliveSeen();
+        result.mEvents = scheduler.getEventsRun();
+        for (int from = 0; from < PlaybackController.MODE_COUNT; from++) {
+            for (int to = 0; to < PlaybackController.MODE_COUNT; to++) {
+                result.mTransitions[from][to] = controller.getTransitions(from, to);
+            }
+        }
+
+        check(controller.getTypePlaying() == PlaybackController.SILENCE, "Still playing in the morning");
+        check(players.getInUse() == 0, players.getInUse() + " players were never given back");
+        check(players.getOpenSources() == 0, players.getOpenSources() + " sources were never closed");
+        players.clear();
+        check(players.getAlive() == 0, players.getAlive() + " players were never released");
+        check(result.mMaxAlive <= MAX_PLAYERS, result.mMaxAlive + " players were alive at once");
+        check(result.mLongestQuietMillis <= MAX_GAP_MILLIS,
+                "Music went quiet for " + result.mLongestQuietMillis + "ms");
+        check(result.mTransitions[PlaybackController.MUSIC][PlaybackController.SILENCE] == 2,
+                "Music should have stopped twice: for the sleep timer and in the morning");
+        // The first two taps cancel out from silence, which stops the host before it ever played.
+        check(result.mStops == 3, "The host was told to stop " + result.mStops + " times");
+        check(result.mCrossfades > 0, "No songs were crossfaded");
+        check(result.mTransitions[PlaybackController.MUSIC_AND_NOISE][PlaybackController.MUSIC] == 1,
+                "Music with noise should have fallen back to music once");
+        return result;
+    }
+
+    /**
+     * Make a request at a time in the night.
+     */
+    private static void request(final VirtualScheduler scheduler, final PlaybackController controller, long at,
+                                final int type, final int sleepMinutes) {
+        scheduler.postAt(new Runnable() {
+            @Override
+            public void run() {
+                controller.request(type, sleepMinutes, NoiseGenerator.PINK, 0, scheduler.now());
+            }
+        }, at);
+    }
+
+    /**
+     * Stands in for AudioService: songs come from a shuffled list, and there is no synthesized noise, so noise
+     * modes fall back to the included white noise the way they do on a device that can't synthesize it.
+     */
+    private static final class NightHost implements PlaybackController.Host {
+        /** Paths of the songs, indexed by track. */
+        private final String[] mTracks;
+        /** The order songs are played in. */
+        private final TrackOrder mOrder;
+        /** Length of crossfades between songs, 0 to play them back to back. */
+        long mCrossfadeMillis = 0;
+        /** Songs reported as unplayable. */
+        int mUnplayable = 0;
+        /** Times all audio stopped. */
+        int mStops = 0;
+
+        NightHost(String[] tracks, TrackOrder order) {
+            mTracks = tracks;
+            mOrder = order;
+        }
+
+        @Override
+        public void onTypePlayingChanged(int type) {
+            // Nothing to show.
+        }
+
+        @Override
+        public void onStateChanged() {
+            // Nothing to save.
+        }
+
+        @Override
+        public void onPlayRequested(long tappedAt, long receivedAt) {
+            // Start latency is measured on the device.
+        }
+
+        @Override
+        public void onPreparing() {
+        }
+
+        @Override
+        public void onPrepared() {
+        }
+
+        @Override
+        public void onStarted(int type) {
+        }
+
+        @Override
+        public void onStopped() {
+            mStops++;
+        }
+
+        @Override
+        public String nextTrack() {
+            final int track = mOrder.next();
+            return (track == TrackOrder.NO_TRACK) ? null : mTracks[track];
+        }
+
+        @Override
+        public String getSource(String track) {
+            return track;
+        }
+
+        @Override
+        public float getTrackGain(String track) {
+            return 1.0f;
+        }
+
+        @Override
+        public long getCrossfadeMillis() {
+            return mCrossfadeMillis;
+        }
+
+        @Override
+        public void onTrackPrepared(String track, int durationMillis) {
+        }
+
+        @Override
+        public void onUnplayable(String track) {
+            mUnplayable++;
+        }
+
+        @Override
+        public boolean startPcm(int type, int noiseColor, float volume) {
+            return false;
+        }
+
+        @Override
+        public void setPcmVolume(float volume) {
+        }
+
+        @Override
+        public void releasePcm() {
+        }
+    }
+
+    /**
+     * Fail the night.
+     */
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /**
+     * Returns the bytes allocated by this thread so far, or -1 if the JVM can't tell.
+     */
+    private static long getAllocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) {
+        final int songs = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_SONGS;
+        final long startedAt = System.nanoTime();
+        final Result result = new NightSimulation(songs, 42).run();
+        final long millis = (System.nanoTime() - startedAt) / (1000 * 1000);
+        System.out.println("Simulated " + (NIGHT_MILLIS / HOUR) + " hours with " + songs + " songs in " + millis
+                + "ms");
+        System.out.println(result);
+    }
+}
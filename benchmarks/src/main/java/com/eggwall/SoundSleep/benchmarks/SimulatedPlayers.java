@@ -0,0 +1,374 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep.benchmarks;
+
+import com.eggwall.SoundSleep.PlaybackController;
+import com.eggwall.SoundSleep.PlaybackStats;
+import com.eggwall.SoundSleep.Player;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Players for the night simulation, handed out and recycled like {@code MediaPlayerPool} does on the device.
+ * Each player follows the {@code MediaPlayer} state diagram and throws {@link IllegalStateException} when it is
+ * used out of turn. Preparing takes a little virtual time, and a song completes after the rest of its length, counting
+ * from where it was started or sought to.
+ *
+ * <p>Opening a source counts as an open file descriptor until the player is reset, so leaks of players and of
+ * descriptors can both be checked at the end of a night.</p>
+ */
+public class SimulatedPlayers implements Player.Factory {
+    /** Error reported for a source that can't be decoded, like {@code MediaPlayer.MEDIA_ERROR_UNKNOWN}. */
+    public static final int ERROR_UNKNOWN = 1;
+    /** Time to prepare a song from the card. */
+    private static final long PREPARE_MILLIS = 40;
+    /** Time to prepare one of the included sounds. */
+    private static final long PREPARE_RAW_MILLIS = 5;
+    /** Length given to the included sounds, which are looped. */
+    private static final int RAW_DURATION_MILLIS = 30 * 1000;
+
+    /** New or reset, with no source. States follow the {@code MediaPlayer} state diagram. */
+    private static final int IDLE = 0;
+    /** Given a source. */
+    private static final int INITIALIZED = 1;
+    /** Preparing in the background. */
+    private static final int PREPARING = 2;
+    /** Ready to start. */
+    private static final int PREPARED = 3;
+    /** Playing. */
+    private static final int STARTED = 4;
+    /** Reached the end of the source. */
+    private static final int COMPLETED = 5;
+    /** Failed, and can only be reset. */
+    private static final int ERROR = 6;
+    /** Released, and can't be used again. */
+    private static final int RELEASED = 7;
+
+    /** Runs the players' events. */
+    private final VirtualScheduler mScheduler;
+    /** Counts players created, reused and released. */
+    private final PlaybackStats mStats;
+    /** The most players alive at once. */
+    private final int mMaxAlive;
+    /** The most idle players kept. */
+    private final int mMaxIdle;
+    /** Length of each song in milliseconds, by path. A song that isn't here can't be opened. */
+    private final Map<String, Integer> mDurations = new HashMap<String, Integer>();
+    /** Songs that open, but fail to prepare. */
+    private final Map<String, Boolean> mCorrupt = new HashMap<String, Boolean>();
+    /** Idle players. */
+    private final ArrayList<SimulatedPlayer> mIdle = new ArrayList<SimulatedPlayer>();
+    /** Hears about every player's events. */
+    private Player.Listener mListener;
+
+    /** Players alive, in use or idle. */
+    private int mAlive = 0;
+    /** The most players that were alive at once. */
+    private int mMaxAliveSeen = 0;
+    /** Players handed out and not yet recycled. */
+    private int mInUse = 0;
+    /** Sources open. */
+    private int mOpenSources = 0;
+    /** Players playing right now. */
+    private int mPlaying = 0;
+
+    /**
+     * @param scheduler runs the players' events.
+     * @param stats counts players created, reused and released.
+     * @param maxAlive the most players alive at once, in use or idle.
+     * @param maxIdle the most idle players to keep.
+     */
+    public SimulatedPlayers(VirtualScheduler scheduler, PlaybackStats stats, int maxAlive, int maxIdle) {
+        mScheduler = scheduler;
+        mStats = stats;
+        mMaxAlive = maxAlive;
+        mMaxIdle = maxIdle;
+        mDurations.put(PlaybackController.SOURCE_WHITE_NOISE, RAW_DURATION_MILLIS);
+        mDurations.put(PlaybackController.SOURCE_JINGLE, RAW_DURATION_MILLIS);
+    }
+
+    /** Set who hears about every player's events. */
+    public void setListener(Player.Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Add a song that can be played.
+     * @param path the source name the controller will pass.
+     * @param durationMillis its length.
+     * @param corrupt true if it opens but fails to prepare.
+     */
+    public void addSong(String path, int durationMillis, boolean corrupt) {
+        mDurations.put(path, durationMillis);
+        if (corrupt) {
+            mCorrupt.put(path, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public Player acquire() {
+        final int idle = mIdle.size();
+        if (idle > 0) {
+            mStats.playerReused();
+            mInUse++;
+            return mIdle.remove(idle - 1);
+        }
+        if (mAlive >= mMaxAlive) {
+            return null;
+        }
+        mAlive++;
+        mMaxAliveSeen = Math.max(mMaxAliveSeen, mAlive);
+        mInUse++;
+        mStats.playerCreated();
+        return new SimulatedPlayer();
+    }
+
+    @Override
+    public void recycle(Player player) {
+        if (player == null) {
+            return;
+        }
+        final SimulatedPlayer simulated = (SimulatedPlayer) player;
+        if (simulated.mState == RELEASED) {
+            throw new IllegalStateException("Recycled a player twice");
+        }
+        mInUse--;
+        simulated.reset();
+        if (mIdle.size() < mMaxIdle) {
+            mIdle.add(simulated);
+            return;
+        }
+        simulated.mState = RELEASED;
+        mAlive--;
+        mStats.playerReleased();
+    }
+
+    /** Release every idle player. */
+    public void clear() {
+        for (SimulatedPlayer player : mIdle) {
+            player.mState = RELEASED;
+            mAlive--;
+            mStats.playerReleased();
+        }
+        mIdle.clear();
+    }
+
+    /** Returns the number of players handed out and not recycled. */
+    public int getInUse() {
+        return mInUse;
+    }
+
+    /** Returns the number of players alive, in use or idle. */
+    public int getAlive() {
+        return mAlive;
+    }
+
+    /** Returns the most players that were alive at once. */
+    public int getMaxAliveSeen() {
+        return mMaxAliveSeen;
+    }
+
+    /** Returns the number of sources open. */
+    public int getOpenSources() {
+        return mOpenSources;
+    }
+
+    /** Returns the number of players playing right now. */
+    public int getPlaying() {
+        return mPlaying;
+    }
+
+    /**
+     * One simulated player.
+     */
+    private class SimulatedPlayer implements Player {
+        /** Where the player is in its state diagram. */
+        int mState = IDLE;
+        /** Length of the source. */
+        int mDuration = -1;
+        /** Position in the source when the player was last started or sought, in milliseconds. */
+        int mPosition = 0;
+        /** Virtual time when the player was last started. */
+        long mStartedAt = 0;
+        /** True if the source fails to prepare. */
+        boolean mFailsToPrepare = false;
+        /** How long the source takes to prepare. */
+        long mPrepareMillis = 0;
+        /** True if the source loops. */
+        boolean mLooping = false;
+        /** The player to start when this one completes, or null. */
+        SimulatedPlayer mNext;
+
+        /** Finishes preparing, or fails to. */
+        private final Runnable mPrepareDone = new Runnable() {
+            @Override
+            public void run() {
+                if (mFailsToPrepare) {
+                    mState = ERROR;
+                    mListener.onError(SimulatedPlayer.this, ERROR_UNKNOWN);
+                    return;
+                }
+                mState = PREPARED;
+                mListener.onPrepared(SimulatedPlayer.this);
+            }
+        };
+
+        /** Reaches the end of the song. */
+        private final Runnable mComplete = new Runnable() {
+            @Override
+            public void run() {
+                setPlaying(false);
+                mState = COMPLETED;
+                mPosition = mDuration;
+                if (mNext != null) {
+                    // The framework starts the chained player first, then reports the completion.
+                    final SimulatedPlayer next = mNext;
+                    mNext = null;
+                    next.start();
+                    mListener.onStartedAsNext(next);
+                }
+                mListener.onCompletion(SimulatedPlayer.this);
+            }
+        };
+
+        @Override
+        public void setSource(String source) throws IOException {
+            check(mState == IDLE, "setSource");
+            final Integer duration = mDurations.get(source);
+            if (duration == null) {
+                throw new IOException("No such file: " + source);
+            }
+            mOpenSources++;
+            mDuration = duration;
+            mFailsToPrepare = mCorrupt.containsKey(source);
+            final boolean raw = source.equals(PlaybackController.SOURCE_WHITE_NOISE)
+                    || source.equals(PlaybackController.SOURCE_JINGLE);
+            mPrepareMillis = raw ? PREPARE_RAW_MILLIS : PREPARE_MILLIS;
+            mState = INITIALIZED;
+        }
+
+        @Override
+        public void setLooping(boolean looping) {
+            check(mState != ERROR && mState != RELEASED, "setLooping");
+            mLooping = looping;
+        }
+
+        @Override
+        public void setVolume(float volume) {
+            check(mState != ERROR && mState != RELEASED, "setVolume");
+        }
+
+        @Override
+        public void prepareAsync() {
+            check(mState == INITIALIZED, "prepareAsync");
+            mState = PREPARING;
+            mScheduler.postDelayed(mPrepareDone, mPrepareMillis);
+        }
+
+        @Override
+        public void start() {
+            check(mState == PREPARED || mState == COMPLETED, "start");
+            if (mState == COMPLETED) {
+                mPosition = 0;
+            }
+            mState = STARTED;
+            mStartedAt = mScheduler.now();
+            setPlaying(true);
+            scheduleCompletion();
+        }
+
+        @Override
+        public boolean setNext(Player next) {
+            check(mState != ERROR && mState != RELEASED, "setNext");
+            final SimulatedPlayer simulated = (SimulatedPlayer) next;
+            if (simulated != null) {
+                check(simulated.mState == PREPARED, "setNext with an unprepared player");
+            }
+            mNext = simulated;
+            return true;
+        }
+
+        @Override
+        public int getDuration() {
+            check(mState == PREPARED || mState == STARTED || mState == COMPLETED, "getDuration");
+            return mDuration;
+        }
+
+        @Override
+        public int getCurrentPosition() {
+            check(mState == PREPARED || mState == STARTED || mState == COMPLETED, "getCurrentPosition");
+            if (mState != STARTED) {
+                return mPosition;
+            }
+            final long played = mPosition + mScheduler.now() - mStartedAt;
+            return (int) (mLooping ? played % mDuration : Math.min(played, mDuration));
+        }
+
+        @Override
+        public void seekTo(int millis) {
+            check(mState == PREPARED || mState == STARTED || mState == COMPLETED, "seekTo");
+            check(millis >= 0 && millis <= mDuration, "seekTo outside the source");
+            mPosition = millis;
+            if (mState == STARTED) {
+                mStartedAt = mScheduler.now();
+                scheduleCompletion();
+            }
+        }
+
+        /** Plan the end of the source, from the current position. Looping sources never end. */
+        private void scheduleCompletion() {
+            mScheduler.removeCallbacks(mComplete);
+            if (!mLooping) {
+                mScheduler.postDelayed(mComplete, mDuration - mPosition);
+            }
+        }
+
+        /** Stop, close the source, and go back to idle. */
+        void reset() {
+            mScheduler.removeCallbacks(mPrepareDone);
+            mScheduler.removeCallbacks(mComplete);
+            if (mState == STARTED) {
+                setPlaying(false);
+            }
+            if (mState != IDLE && mState != RELEASED) {
+                mOpenSources--;
+            }
+            mState = IDLE;
+            mDuration = -1;
+            mPosition = 0;
+            mStartedAt = 0;
+            mFailsToPrepare = false;
+            mLooping = false;
+            mNext = null;
+        }
+
+        /** Count this player as playing or not. */
+        private void setPlaying(boolean playing) {
+            mPlaying += playing ? 1 : -1;
+        }
+
+        /** Fail like a media player does when called in the wrong state. */
+        private void check(boolean allowed, String call) {
+            if (!allowed) {
+                throw new IllegalStateException(call + " called in state " + mState);
+            }
+        }
+    }
+}
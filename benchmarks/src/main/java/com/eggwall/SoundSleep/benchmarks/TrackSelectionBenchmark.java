@@ -0,0 +1,86 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep.benchmarks;
+
+import com.eggwall.SoundSleep.ShuffleBag;
+import com.eggwall.SoundSleep.TrackOrder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picking the next song, as AudioService.nextTrackFromCard() does: draw from the shuffle bag, look up the file
+ * name, and write the bag out so the order survives the process.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TrackSelectionBenchmark {
+    /** Number of songs in the library. */
+    @Param({"100", "10000"})
+    public int mSongs;
+
+    /** The order of songs. */
+    private ShuffleBag mBag;
+    /** File names, indexed by track. */
+    private String[] mFilenames;
+    /** Reused for persisting the bag. */
+    private ByteArrayOutputStream mBytes;
+
+    @Setup
+    public void setUp() {
+        mBag = new ShuffleBag(42);
+        mBag.reset(mSongs);
+        mFilenames = new String[mSongs];
+        for (int i = 0; i < mSongs; i++) {
+            mFilenames[i] = "Artist " + (i / 12) + "/Album/" + i + ".mp3";
+        }
+        mBytes = new ByteArrayOutputStream(mSongs * 8 + 64);
+    }
+
+    /** Only the draw. Includes a full reshuffle once every round. */
+    @Benchmark
+    public String next() {
+        final int track = mBag.next();
+        return (track == TrackOrder.NO_TRACK) ? null : mFilenames[track];
+    }
+
+    /** The draw and the write, which is what happens for every song. */
+    @Benchmark
+    public int nextAndPersist() throws IOException {
+        final int track = mBag.next();
+        mBytes.reset();
+        mBag.writeTo(new DataOutputStream(mBytes));
+        return track + mBytes.size();
+    }
+}
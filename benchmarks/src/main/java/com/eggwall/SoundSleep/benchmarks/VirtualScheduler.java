@@ -0,0 +1,117 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep.benchmarks;
+
+import com.eggwall.SoundSleep.PlaybackController;
+
+import java.util.PriorityQueue;
+
+/**
+ * A virtual clock for {@link PlaybackController}: runnables are kept in time order and run one by one, with the
+ * clock jumping straight to each, so hours of playback take as long as the code that runs in them.
+ */
+public class VirtualScheduler implements PlaybackController.Scheduler {
+    /** A runnable due at a time. */
+    private static final class Event implements Comparable<Event> {
+        /** When to run. */
+        final long mAt;
+        /** Breaks ties, so events due at the same time run in the order they were posted. */
+        final long mSequence;
+        /** What to run. */
+        final Runnable mRunnable;
+
+        Event(long at, long sequence, Runnable runnable) {
+            mAt = at;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (mAt != other.mAt) {
+                return (mAt < other.mAt) ? -1 : 1;
+            }
+            return (mSequence < other.mSequence) ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /** Events waiting to run, earliest first. */
+    private final PriorityQueue<Event> mQueue = new PriorityQueue<Event>();
+    /** The current time, in milliseconds. */
+    private long mNow = 0;
+    /** Number of events posted, used to order events due at the same time. */
+    private long mSequence = 0;
+    /** Number of events run. */
+    private int mEventsRun = 0;
+
+    @Override
+    public long now() {
+        return mNow;
+    }
+
+    @Override
+    public long cpuTime() {
+        // Virtual time costs no CPU.
+        return 0;
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMillis) {
+        mQueue.add(new Event(mNow + Math.max(0, delayMillis), mSequence++, runnable));
+    }
+
+    /** Run this at a fixed time, which must not be in the past. */
+    public void postAt(Runnable runnable, long at) {
+        postDelayed(runnable, at - mNow);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+        // The queue holds a handful of events, so a scan is cheap.
+        mQueue.removeIf(event -> event.mRunnable == runnable);
+    }
+
+    /**
+     * Returns the time the next event is due, or {@link Long#MAX_VALUE} if nothing is waiting.
+     */
+    public long nextEventAt() {
+        final Event next = mQueue.peek();
+        return (next == null) ? Long.MAX_VALUE : next.mAt;
+    }
+
+    /**
+     * Move the clock to the next event and run it, unless it is due after {@code end}.
+     * @return true if an event was run, false if the clock was moved to {@code end} instead.
+     */
+    public boolean runNext(long end) {
+        final Event next = mQueue.peek();
+        if (next == null || next.mAt > end) {
+            mNow = Math.max(mNow, end);
+            return false;
+        }
+        mQueue.poll();
+        mNow = next.mAt;
+        mEventsRun++;
+        next.mRunnable.run();
+        return true;
+    }
+
+    /** Returns the number of events run. */
+    public int getEventsRun() {
+        return mEventsRun;
+    }
+}
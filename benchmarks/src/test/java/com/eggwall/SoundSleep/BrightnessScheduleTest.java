@@ -0,0 +1,73 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link BrightnessSchedule} starts at the user's own brightness, only ever dims from there, and comes
+ * back to the first step on a reset.
+ */
+public class BrightnessScheduleTest {
+    @Test
+    public void startsAtTheUserBrightness() {
+        final BrightnessSchedule schedule = new BrightnessSchedule();
+        assertEquals(0, schedule.getStep());
+        assertEquals(BrightnessSchedule.SYSTEM_BRIGHTNESS, schedule.getScreenBrightness(), 0);
+    }
+
+    @Test
+    public void neverBrighterThanTheUser() {
+        for (float user = 0; user <= 1.0f; user += 0.01f) {
+            final BrightnessSchedule schedule = new BrightnessSchedule();
+            schedule.setUserBrightness(user);
+            float last = user;
+            while (schedule.advance()) {
+                final float brightness = schedule.getScreenBrightness();
+                assertTrue(brightness + " is brighter than the user's " + user, brightness <= user);
+                assertTrue(brightness + " is brighter than the step before", brightness <= last);
+                last = brightness;
+            }
+        }
+    }
+
+    @Test
+    public void dimsAFullyBrightScreen() {
+        final BrightnessSchedule schedule = new BrightnessSchedule();
+        schedule.setUserBrightness(1.0f);
+        assertTrue(schedule.advance());
+        assertTrue(schedule.getScreenBrightness() < 1.0f);
+    }
+
+    @Test
+    public void stopsAtTheDimmestStepAndResets() {
+        final BrightnessSchedule schedule = new BrightnessSchedule();
+        for (int i = 1; i < schedule.getStepCount(); i++) {
+            assertTrue(schedule.advance());
+        }
+        assertFalse(schedule.advance());
+        assertEquals(schedule.getStepCount() - 1, schedule.getStep());
+        assertTrue(schedule.getScreenBrightness() > 0);
+        assertTrue(schedule.reset());
+        assertFalse(schedule.reset());
+        assertEquals(BrightnessSchedule.SYSTEM_BRIGHTNESS, schedule.getScreenBrightness(), 0);
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link LatencyHistogram} rounds percentiles up to a bucket bound without going past the largest
+ * sample, and reads back what it writes.
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void emptyHasNoPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(-1, histogram.getPercentile(0.5));
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void percentilesRoundUpToABucket() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 100; millis++) {
+            histogram.record(millis);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50, histogram.getPercentile(0.50));
+        assertEquals(100, histogram.getPercentile(0.95));
+        // Nothing is ever reported as slower than the slowest sample.
+        histogram.record(120);
+        assertEquals(120, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void slowestBucketReportsTheMax() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(60 * 1000);
+        assertEquals(60 * 1000, histogram.getPercentile(0.5));
+    }
+
+    @Test
+    public void readsBackWhatItWrites() throws IOException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(250);
+        histogram.record(4000);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        histogram.writeTo(new DataOutputStream(bytes));
+        final LatencyHistogram read = new LatencyHistogram();
+        read.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(histogram.toString(), read.toString());
+        assertEquals(3, read.getCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherBuckets() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(3);
+        new LatencyHistogram().readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+}
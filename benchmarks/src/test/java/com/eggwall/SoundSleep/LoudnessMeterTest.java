@@ -0,0 +1,93 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link LoudnessMeter} measures a known tone, leaves out silence below the gate, and only ever turns
+ * songs down.
+ */
+public class LoudnessMeterTest {
+    /** Sample rate of the test audio. */
+    private static final int RATE = 44100;
+
+    @Test
+    public void measuresAFullScaleSquareWaveAsZero() {
+        final LoudnessMeter meter = new LoudnessMeter(RATE, 1);
+        final short[] samples = new short[RATE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = ((i / 50) % 2 == 0) ? Short.MAX_VALUE : -Short.MAX_VALUE;
+        }
+        meter.add(samples, 0, samples.length);
+        assertEquals(0.0f, meter.getLoudnessDb(), 0.01f);
+        assertEquals(1.0f, meter.getPeak(), 0.001f);
+    }
+
+    @Test
+    public void silenceIsLeftOut() {
+        // Two seconds is a whole number of blocks, so no block has both.
+        final short[] loud = squareWave(RATE * 2, 3277);
+        final LoudnessMeter alone = new LoudnessMeter(RATE, 1);
+        alone.add(loud, 0, loud.length);
+        // The same audio with as much silence after it measures the same.
+        final LoudnessMeter padded = new LoudnessMeter(RATE, 1);
+        padded.add(loud, 0, loud.length);
+        final short[] silence = new short[RATE];
+        padded.add(silence, 0, silence.length);
+        assertEquals(alone.getLoudnessDb(), padded.getLoudnessDb(), 0.01f);
+        assertEquals(-20.0f, alone.getLoudnessDb(), 0.1f);
+    }
+
+    @Test
+    public void nothingAboveTheGateIsSilence() {
+        final LoudnessMeter meter = new LoudnessMeter(RATE, 2);
+        final short[] quiet = squareWave(RATE * 2, 10);
+        meter.add(quiet, 0, quiet.length);
+        assertEquals(LoudnessMeter.SILENCE_DB, meter.getLoudnessDb(), 0);
+    }
+
+    @Test
+    public void gainOnlyTurnsSongsDown() {
+        // A loud song is brought down to the target.
+        assertEquals(0.1f, LoudnessMeter.getGain(-10.0f, 0.5f, -30.0f, 0.01f), 0.001f);
+        // A quiet one is left alone rather than made louder.
+        assertEquals(1.0f, LoudnessMeter.getGain(-40.0f, 0.5f, -20.0f, 0.25f), 0);
+        // Never quieter than the floor.
+        assertEquals(0.25f, LoudnessMeter.getGain(0.0f, 1.0f, -40.0f, 0.25f), 0);
+        // A song that wasn't measured plays as it is.
+        assertEquals(1.0f, LoudnessMeter.getGain(-5.0f, 0, -20.0f, 0.25f), 0);
+        for (float loudness = -60; loudness <= 0; loudness += 0.5f) {
+            final float gain = LoudnessMeter.getGain(loudness, 0.9f, -20.0f, 0.25f);
+            assertTrue(gain + " at " + loudness, gain >= 0.25f && gain <= 1.0f);
+        }
+    }
+
+    /**
+     * Returns a square wave of this many samples between plus and minus the level.
+     */
+    private static short[] squareWave(int length, int level) {
+        final short[] samples = new short[length];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (((i / 50) % 2 == 0) ? level : -level);
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link NoiseGenerator} is reproducible, never ends, stays inside the 16 bit range with room to
+ * spare, and that each color has the spectrum it claims, measured by how much neighbouring samples agree.
+ */
+public class NoiseGeneratorTest {
+    /** Two seconds of stereo at the default rate. */
+    private static final int SAMPLES = 2 * 2 * NoiseGenerator.DEFAULT_SAMPLE_RATE;
+
+    @Test
+    public void sameSeedSameNoise() {
+        assertArrayEquals(generate(NoiseGenerator.PINK, 1), generate(NoiseGenerator.PINK, 1));
+        assertFalse(Arrays.equals(generate(NoiseGenerator.PINK, 1), generate(NoiseGenerator.PINK, 2)));
+    }
+
+    @Test
+    public void zeroSeedStillMakesNoise() {
+        assertTrue(rms(generate(NoiseGenerator.WHITE, 0), 0, 2) > 1000);
+    }
+
+    @Test
+    public void neverEnds() {
+        final NoiseGenerator noise = new NoiseGenerator(NoiseGenerator.BROWN, 44100, 2, 3);
+        final short[] buffer = new short[4096];
+        for (int i = 0; i < 100; i++) {
+            assertEquals(buffer.length, noise.read(buffer, 0, buffer.length));
+        }
+    }
+
+    @Test
+    public void everyColorIsAudibleWithoutClipping() {
+        for (int color = NoiseGenerator.WHITE; color <= NoiseGenerator.BROWN; color++) {
+            final short[] samples = generate(color, 4);
+            for (int channel = 0; channel < 2; channel++) {
+                final double rms = rms(samples, channel, 2);
+                assertTrue("Color " + color + " too quiet: " + rms, rms > 1000);
+                assertTrue("Color " + color + " too loud: " + rms, rms < 16000);
+            }
+            int clipped = 0;
+            for (short sample : samples) {
+                if (sample == Short.MAX_VALUE || sample == Short.MIN_VALUE) {
+                    clipped++;
+                }
+            }
+            assertTrue("Color " + color + " clipped " + clipped + " samples", clipped < samples.length / 1000);
+        }
+    }
+
+    @Test
+    public void redderColorsHaveMoreLowFrequencies() {
+        // Neighbouring samples of white noise are unrelated; integrating the noise makes them more and more alike.
+        final double white = correlation(generate(NoiseGenerator.WHITE, 5), 0, 2, 2);
+        final double pink = correlation(generate(NoiseGenerator.PINK, 5), 0, 2, 2);
+        final double brown = correlation(generate(NoiseGenerator.BROWN, 5), 0, 2, 2);
+        assertTrue("White noise is correlated: " + white, Math.abs(white) < 0.05);
+        assertTrue("Pink noise isn't redder than white: " + pink, pink > white + 0.2);
+        assertTrue("Brown noise isn't redder than pink: " + brown, brown > pink);
+    }
+
+    @Test
+    public void channelsAreIndependent() {
+        for (int color = NoiseGenerator.WHITE; color <= NoiseGenerator.BROWN; color++) {
+            final double between = correlation(generate(color, 6), 0, 1, 2);
+            assertTrue("Color " + color + " channels move together: " + between, Math.abs(between) < 0.2);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownColors() {
+        new NoiseGenerator(7);
+    }
+
+    /**
+     * Returns two seconds of stereo noise.
+     */
+    private static short[] generate(int color, int seed) {
+        final NoiseGenerator noise = new NoiseGenerator(color, NoiseGenerator.DEFAULT_SAMPLE_RATE, 2, seed);
+        final short[] samples = new short[SAMPLES];
+        noise.read(samples, 0, samples.length);
+        return samples;
+    }
+
+    /**
+     * Returns the root mean square of every stride'th sample from start.
+     */
+    private static double rms(short[] samples, int start, int stride) {
+        double sum = 0;
+        int count = 0;
+        for (int i = start; i < samples.length; i += stride) {
+            sum += (double) samples[i] * samples[i];
+            count++;
+        }
+        return Math.sqrt(sum / count);
+    }
+
+    /**
+     * Returns the correlation between the sample at i and the sample at i + lag, over every stride'th sample.
+     */
+    private static double correlation(short[] samples, int start, int lag, int stride) {
+        double sumA = 0;
+        double sumB = 0;
+        double sumAB = 0;
+        double sumAA = 0;
+        double sumBB = 0;
+        int count = 0;
+        for (int i = start; i + lag < samples.length; i += stride) {
+            final double a = samples[i];
+            final double b = samples[i + lag];
+            sumA += a;
+            sumB += b;
+            sumAB += a * b;
+            sumAA += a * a;
+            sumBB += b * b;
+            count++;
+        }
+        final double covariance = sumAB / count - (sumA / count) * (sumB / count);
+        final double varianceA = sumAA / count - (sumA / count) * (sumA / count);
+        final double varianceB = sumBB / count - (sumB / count) * (sumB / count);
+        return covariance / Math.sqrt(varianceA * varianceB);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link PlaybackSnapshot} reads back what it saves, and that a missing, foreign or pre-reboot file
+ * doesn't resume anything.
+ */
+public class PlaybackSnapshotTest {
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatItSaves() throws IOException {
+        final File file = new File(mFolder.getRoot(), "snapshot.dat");
+        final PlaybackSnapshot snapshot = new PlaybackSnapshot();
+        snapshot.set(PlaybackController.MUSIC_AND_NOISE, NoiseGenerator.BROWN, "Artist/Album/1.mp3", 61000, 90000,
+                5000);
+        snapshot.save(file);
+        final PlaybackSnapshot loaded = new PlaybackSnapshot();
+        assertTrue(loaded.load(file));
+        assertEquals(PlaybackController.MUSIC_AND_NOISE, loaded.getMode());
+        assertEquals(NoiseGenerator.BROWN, loaded.getNoiseColor());
+        assertEquals("Artist/Album/1.mp3", loaded.getTrack());
+        assertEquals(61000, loaded.getPositionMillis());
+        assertEquals(90000, loaded.getSleepEndsAt());
+        assertTrue(loaded.isCurrent(6000));
+    }
+
+    @Test
+    public void noTrackIsKept() throws IOException {
+        final File file = new File(mFolder.getRoot(), "snapshot.dat");
+        final PlaybackSnapshot snapshot = new PlaybackSnapshot();
+        snapshot.set(PlaybackController.WHITE_NOISE, NoiseGenerator.PINK, null, 0, 0, 10);
+        snapshot.save(file);
+        final PlaybackSnapshot loaded = new PlaybackSnapshot();
+        assertTrue(loaded.load(file));
+        assertNull(loaded.getTrack());
+        assertEquals(PlaybackController.WHITE_NOISE, loaded.getMode());
+    }
+
+    @Test
+    public void missingOrForeignFilesReadAsSilence() throws IOException {
+        final PlaybackSnapshot snapshot = new PlaybackSnapshot();
+        snapshot.set(PlaybackController.MUSIC, NoiseGenerator.PINK, null, 0, 0, 10);
+        assertFalse(snapshot.load(new File(mFolder.getRoot(), "missing.dat")));
+        assertEquals(PlaybackController.SILENCE, snapshot.getMode());
+
+        final File foreign = mFolder.newFile("foreign.dat");
+        final FileOutputStream out = new FileOutputStream(foreign);
+        out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+        out.close();
+        snapshot.set(PlaybackController.MUSIC, NoiseGenerator.PINK, null, 0, 0, 10);
+        assertFalse(snapshot.load(foreign));
+        assertEquals(PlaybackController.SILENCE, snapshot.getMode());
+    }
+
+    @Test
+    public void snapshotFromBeforeARebootIsStale() {
+        final PlaybackSnapshot snapshot = new PlaybackSnapshot();
+        snapshot.set(PlaybackController.MUSIC, NoiseGenerator.PINK, null, 0, 0, 50000);
+        // The clock started again from zero.
+        assertFalse(snapshot.isCurrent(1000));
+        assertFalse(new PlaybackSnapshot().isCurrent(1000));
+    }
+}
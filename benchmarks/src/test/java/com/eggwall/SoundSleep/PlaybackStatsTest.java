@@ -0,0 +1,65 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link PlaybackStats} keeps mode time and wake lock time apart, and charges a wake lock held across a
+ * change of mode to each mode for its own part.
+ */
+public class PlaybackStatsTest {
+    @Test
+    public void wakeLockTimeIsNotModeTime() {
+        final PlaybackStats stats = new PlaybackStats();
+        stats.enterMode(PlaybackController.NOISE, 1000, 0);
+        stats.wakeLockAcquired(1200);
+        stats.wakeLockReleased(1500);
+        stats.enterMode(PlaybackController.SILENCE, 2000, 0);
+        assertEquals(1000, stats.getModeMillis(PlaybackController.NOISE, 3000));
+        assertEquals(300, stats.getWakeLockMillis(PlaybackController.NOISE, 3000));
+        assertEquals(0, stats.getWakeLockMillis(PlaybackController.SILENCE, 3000));
+    }
+
+    @Test
+    public void splitsAWakeLockHeldAcrossModes() {
+        final PlaybackStats stats = new PlaybackStats();
+        stats.enterMode(PlaybackController.NOISE, 0, 0);
+        stats.wakeLockAcquired(100);
+        stats.enterMode(PlaybackController.MUSIC_AND_NOISE, 400, 0);
+        assertEquals(300, stats.getWakeLockMillis(PlaybackController.NOISE, 1000));
+        // Still held, so the current mode counts up to now.
+        assertEquals(600, stats.getWakeLockMillis(PlaybackController.MUSIC_AND_NOISE, 1000));
+        stats.wakeLockReleased(1100);
+        assertEquals(700, stats.getWakeLockMillis(PlaybackController.MUSIC_AND_NOISE, 5000));
+    }
+
+    @Test
+    public void acquiringTwiceKeepsTheFirstTime() {
+        final PlaybackStats stats = new PlaybackStats();
+        stats.enterMode(PlaybackController.NOISE, 0, 0);
+        stats.wakeLockAcquired(100);
+        stats.wakeLockAcquired(500);
+        stats.wakeLockReleased(600);
+        stats.wakeLockReleased(900);
+        assertEquals(500, stats.getWakeLockMillis(PlaybackController.NOISE, 1000));
+        stats.reset();
+        assertEquals(0, stats.getWakeLockMillis(PlaybackController.NOISE, 1000));
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link ShuffleBag} plays every track once per round, resumes exactly from what it writes, and keeps
+ * both when tracks are added or removed part way through a round.
+ */
+public class ShuffleBagTest {
+    /** Tracks in most tests: enough for a shuffle to be meaningful, few enough to check exhaustively. */
+    private static final int TRACKS = 50;
+
+    @Test
+    public void playsEveryTrackOncePerRound() {
+        final ShuffleBag bag = new ShuffleBag(1);
+        bag.reset(TRACKS);
+        int last = TrackOrder.NO_TRACK;
+        for (int round = 0; round < 20; round++) {
+            final HashSet<Integer> seen = new HashSet<Integer>();
+            for (int i = 0; i < TRACKS; i++) {
+                final int track = bag.next();
+                assertTrue("Track out of range: " + track, track >= 0 && track < TRACKS);
+                assertTrue("Track repeated within a round: " + track, seen.add(track));
+                if (i == 0) {
+                    assertNotEquals("Round started with the last track of the one before", last, track);
+                }
+                last = track;
+            }
+        }
+    }
+
+    @Test
+    public void peekMatchesNext() {
+        final ShuffleBag bag = new ShuffleBag(2);
+        bag.reset(TRACKS);
+        for (int i = 0; i < 3 * TRACKS; i++) {
+            final int peeked = bag.peek();
+            assertEquals(peeked, bag.next());
+        }
+    }
+
+    @Test
+    public void emptyBagHasNoTracks() {
+        final ShuffleBag bag = new ShuffleBag(3);
+        bag.reset(0);
+        assertEquals(TrackOrder.NO_TRACK, bag.next());
+        assertEquals(TrackOrder.NO_TRACK, bag.peek());
+    }
+
+    @Test
+    public void resumesTheSameSequenceAfterARoundTrip() throws IOException {
+        final ShuffleBag bag = new ShuffleBag(4);
+        bag.reset(TRACKS);
+        for (int i = 0; i < TRACKS + 7; i++) {
+            bag.next();
+        }
+        assertTrue(bag.isDirty());
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bag.writeTo(new DataOutputStream(bytes));
+        assertFalse(bag.isDirty());
+
+        final ShuffleBag copy = new ShuffleBag(99);
+        copy.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        copy.setCursor(bag.getCursor());
+        assertEquals(bag.size(), copy.size());
+        for (int i = 0; i < 3 * TRACKS; i++) {
+            assertEquals("Sequences differ at " + i, bag.next(), copy.next());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptData() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x53535342);
+        out.writeInt(2);
+        out.writeLong(1);
+        // The same track twice.
+        out.writeInt(1);
+        out.writeInt(1);
+        new ShuffleBag().readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void keepsTheRoundWhenTracksAreAddedAndRemoved() {
+        final Random random = new Random(5);
+        final String[] paths = new String[TRACKS];
+        for (int i = 0; i < TRACKS; i++) {
+            paths[i] = "song" + i + ".mp3";
+        }
+        final TrackList tracks = new TrackList(paths);
+        final ShuffleBag bag = new ShuffleBag(6);
+        bag.reset(tracks.size());
+        int added = 0;
+        for (int round = 0; round < 10; round++) {
+            // Part of a round, then a change to the library, then the rest of the round.
+            final HashSet<String> played = new HashSet<String>();
+            final int before = 1 + random.nextInt(tracks.size() - 1);
+            for (int i = 0; i < before; i++) {
+                assertTrue(played.add(tracks.get(bag.next())));
+            }
+            final String removed = tracks.get(random.nextInt(tracks.size()));
+            assertTrue(tracks.remove(removed, bag));
+            played.remove(removed);
+            final String fresh = "new" + added++ + ".mp3";
+            assertTrue(tracks.add(fresh, bag));
+            assertEquals(tracks.size(), bag.size());
+            assertEquals(played.size(), bag.getCursor());
+
+            final int rest = bag.size() - bag.getCursor();
+            for (int i = 0; i < rest; i++) {
+                final String path = tracks.get(bag.next());
+                assertTrue("Played twice in a round: " + path, played.add(path));
+            }
+            assertEquals("Not every track was played in the round", tracks.size(), played.size());
+            assertTrue(played.contains(fresh));
+            assertFalse(played.contains(removed));
+        }
+    }
+}
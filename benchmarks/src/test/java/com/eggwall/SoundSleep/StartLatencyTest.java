@@ -0,0 +1,75 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link StartLatency} times each stage from the one before it, leaves out stages that weren't timed,
+ * and keeps its histograms across a save and a load.
+ */
+public class StartLatencyTest {
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void timesEachStageFromTheOneBefore() {
+        final StartLatency latency = new StartLatency();
+        latency.record(PlaybackController.MUSIC, new long[] {1000, 1010, 1030, 1130, 1135});
+        assertEquals(135, latency.get(PlaybackController.MUSIC, StartLatency.STAGE_TAPPED).getMax());
+        assertEquals(10, latency.get(PlaybackController.MUSIC, StartLatency.STAGE_RECEIVED).getMax());
+        assertEquals(20, latency.get(PlaybackController.MUSIC, StartLatency.STAGE_PREPARING).getMax());
+        assertEquals(100, latency.get(PlaybackController.MUSIC, StartLatency.STAGE_PREPARED).getMax());
+        assertEquals(5, latency.get(PlaybackController.MUSIC, StartLatency.STAGE_STARTED).getMax());
+        assertEquals(0, latency.get(PlaybackController.NOISE, StartLatency.STAGE_TAPPED).getCount());
+    }
+
+    @Test
+    public void untimedTapIsLeftOut() {
+        final StartLatency latency = new StartLatency();
+        latency.record(PlaybackController.NOISE, new long[] {0, 2000, 2005, 2050, 2060});
+        assertEquals(0, latency.get(PlaybackController.NOISE, StartLatency.STAGE_RECEIVED).getCount());
+        // The whole request is then timed from when it was received.
+        assertEquals(60, latency.get(PlaybackController.NOISE, StartLatency.STAGE_TAPPED).getMax());
+    }
+
+    @Test
+    public void keepsHistogramsAcrossSessions() throws IOException {
+        final File file = new File(mFolder.getRoot(), "latency.dat");
+        final StartLatency latency = new StartLatency();
+        latency.record(PlaybackController.MUSIC, new long[] {1000, 1010, 1030, 1130, 1135});
+        latency.save(file);
+        final StartLatency loaded = new StartLatency();
+        loaded.load(file);
+        assertEquals(1, loaded.get(PlaybackController.MUSIC, StartLatency.STAGE_TAPPED).getCount());
+        assertEquals(135, loaded.get(PlaybackController.MUSIC, StartLatency.STAGE_TAPPED).getMax());
+    }
+
+    @Test
+    public void missingFileLeavesHistogramsEmpty() {
+        final StartLatency latency = new StartLatency();
+        latency.load(new File(mFolder.getRoot(), "missing.dat"));
+        assertEquals(0, latency.get(PlaybackController.MUSIC, StartLatency.STAGE_TAPPED).getCount());
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link TrackCache} names copies after the song's path, size and time, copies songs in the
+ * background, finds copies left by an earlier process, and keeps within its size.
+ */
+public class TrackCacheTest {
+    /** Longest to wait for the copying thread. */
+    private static final long COPY_TIMEOUT_MILLIS = 10 * 1000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void namesChangeWithTheSong() {
+        final String name = TrackCache.getName(new LibraryIndex.Entry("a/b.mp3", 100, 5, 0, true, 0, 0));
+        assertTrue(name, name.endsWith(".mp3"));
+        assertEquals(name, TrackCache.getName(new LibraryIndex.Entry("a/b.mp3", 100, 5, 0, true, 0, 0)));
+        assertNotEquals(name, TrackCache.getName(new LibraryIndex.Entry("a/b.mp3", 101, 5, 0, true, 0, 0)));
+        assertNotEquals(name, TrackCache.getName(new LibraryIndex.Entry("a/b.mp3", 100, 6, 0, true, 0, 0)));
+        assertNotEquals(name, TrackCache.getName(new LibraryIndex.Entry("a/c.mp3", 100, 5, 0, true, 0, 0)));
+        // A dot in a directory is not an extension.
+        final String bare = TrackCache.getName(new LibraryIndex.Entry("a.b/c", 100, 5, 0, true, 0, 0));
+        assertFalse(bare, bare.contains("."));
+    }
+
+    @Test
+    public void copiesInTheBackgroundAndFindsCopiesLater() throws Exception {
+        final File root = mFolder.newFolder("music");
+        final File dir = mFolder.newFolder("cache");
+        final LibraryIndex.Entry song = song(root, "song.mp3", 1000);
+        final TrackCache cache = new TrackCache(root, dir, 10 * 1000);
+        assertNull(cache.get(song));
+        cache.prefetch(song);
+        final File copy = waitForCopy(cache, song);
+        assertEquals(1000, copy.length());
+        assertEquals(1000, cache.getBytesCopied());
+        // A new process finds the copy without copying again.
+        final TrackCache later = new TrackCache(root, dir, 10 * 1000);
+        assertNotNull(later.get(song));
+        assertEquals(0, later.getBytesCopied());
+    }
+
+    @Test
+    public void keepsWithinItsSize() throws Exception {
+        final File root = mFolder.newFolder("music");
+        final File dir = mFolder.newFolder("cache");
+        final LibraryIndex.Entry first = song(root, "1.mp3", 600);
+        final LibraryIndex.Entry second = song(root, "2.mp3", 600);
+        final LibraryIndex.Entry tooLarge = song(root, "3.mp3", 2000);
+        final TrackCache cache = new TrackCache(root, dir, 1000);
+        cache.prefetch(first);
+        waitForCopy(cache, first);
+        cache.prefetch(second);
+        waitForCopy(cache, second);
+        // The least recently used copy made way for the new one.
+        assertNull(cache.get(first));
+        cache.prefetch(tooLarge);
+        assertNull(cache.get(tooLarge));
+        assertEquals(1200, cache.getBytesCopied());
+    }
+
+    /**
+     * Write a song of this many bytes, and return its entry.
+     */
+    private static LibraryIndex.Entry song(File root, String path, int bytes) throws IOException {
+        final File file = new File(root, path);
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[bytes]);
+        out.close();
+        return new LibraryIndex.Entry(path, file.length(), file.lastModified(), 0, true, 0, 0);
+    }
+
+    /**
+     * Returns the copy of a song once the copying thread has made it.
+     */
+    private static File waitForCopy(TrackCache cache, LibraryIndex.Entry entry) throws InterruptedException {
+        final long giveUpAt = System.currentTimeMillis() + COPY_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < giveUpAt) {
+            final File copy = cache.get(entry);
+            if (copy != null) {
+                return copy;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("The song was never copied");
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link TrackList} keeps paths and numbers consistent through swap removals, and brings a saved list
+ * in line with the library while keeping its {@link TrackOrder} the same size.
+ */
+public class TrackListTest {
+    @Test
+    public void removalMovesTheLastSongIntoTheGap() {
+        final TrackList tracks = new TrackList(new String[] {"a", "b", "c", "d"});
+        assertTrue(tracks.remove("b", null));
+        assertEquals(3, tracks.size());
+        assertEquals("d", tracks.get(1));
+        assertEquals(1, tracks.indexOf("d"));
+        assertEquals(-1, tracks.indexOf("b"));
+        assertFalse(tracks.remove("b", null));
+    }
+
+    @Test
+    public void ignoresDuplicates() {
+        final TrackList tracks = new TrackList(new String[] {"a", "b", "a"});
+        assertEquals(2, tracks.size());
+        assertFalse(tracks.add("b", null));
+    }
+
+    @Test
+    public void staysConsistentThroughRandomChanges() {
+        final Random random = new Random(7);
+        final TrackList tracks = new TrackList(new String[0]);
+        final ShuffleBag bag = new ShuffleBag(8);
+        bag.reset(0);
+        final HashSet<String> expected = new HashSet<String>();
+        for (int i = 0; i < 5000; i++) {
+            if (expected.isEmpty() || random.nextInt(3) > 0) {
+                final String path = "song" + random.nextInt(500);
+                assertEquals(expected.add(path), tracks.add(path, bag));
+            } else {
+                final String path = tracks.get(random.nextInt(tracks.size()));
+                assertTrue(tracks.remove(path, bag));
+                expected.remove(path);
+            }
+            if (random.nextInt(4) == 0) {
+                bag.next();
+            }
+            assertEquals(expected.size(), tracks.size());
+            assertEquals(tracks.size(), bag.size());
+        }
+        for (int position = 0; position < tracks.size(); position++) {
+            assertEquals(position, tracks.indexOf(tracks.get(position)));
+            assertTrue(expected.contains(tracks.get(position)));
+        }
+    }
+
+    @Test
+    public void updateAppliesTheDifference() {
+        final TrackList tracks = new TrackList(new String[] {"a", "b", "c", "d", "e"});
+        final ShuffleBag bag = new ShuffleBag(9);
+        bag.reset(tracks.size());
+        bag.next();
+        bag.next();
+        assertEquals(3, tracks.update(new String[] {"e", "a", "f", "c"}, bag));
+        assertEquals(4, tracks.size());
+        assertEquals(4, bag.size());
+        final ArrayList<String> paths = new ArrayList<String>();
+        for (int position = 0; position < tracks.size(); position++) {
+            paths.add(tracks.get(position));
+            assertEquals(position, tracks.indexOf(tracks.get(position)));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("a", "c", "e", "f")), new HashSet<String>(paths));
+        assertEquals(0, tracks.update(new String[] {"a", "c", "e", "f"}, bag));
+    }
+}
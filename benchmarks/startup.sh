@@ -0,0 +1,87 @@
+#!/bin/sh
+#
+# Copyright 2013 Vikram Aggarwal
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Cold start benchmark for the clock screen, on the device that adb is connected to. Each run kills the app,
+# launches SleepActivity with "am start -W" and records the launch time the system reports. It then checks that
+# AudioService isn't running, since opening the clock must not start it.
+#
+# Usage: benchmarks/startup.sh [runs] [result file]
+# Writes the times as JSON to the result file, startup-result.json by default. Exits with 1 if the service was
+# started by any launch.
+
+PACKAGE=com.eggwall.SoundSleep
+ACTIVITY=$PACKAGE/.SleepActivity
+SERVICE=$PACKAGE/.AudioService
+RUNS=${1:-10}
+RESULT=${2:-startup-result.json}
+
+times=""
+started=0
+i=0
+while [ $i -lt "$RUNS" ]; do
+    i=$((i + 1))
+    adb shell am force-stop $PACKAGE
+    # Let the system settle after killing the process.
+    sleep 2
+    out=$(adb shell am start -W -n $ACTIVITY | tr -d '\r')
+    # TotalTime includes starting the process. Older releases only print ThisTime.
+    time=$(echo "$out" | sed -n 's/^TotalTime: *//p')
+    if [ -z "$time" ]; then
+        time=$(echo "$out" | sed -n 's/^ThisTime: *//p')
+    fi
+    if [ -z "$time" ]; then
+        echo "Could not launch $ACTIVITY:" >&2
+        echo "$out" >&2
+        exit 2
+    fi
+    # Give a lazy start a chance to happen before looking for the service.
+    sleep 1
+    if adb shell dumpsys activity services $SERVICE | grep -q ServiceRecord; then
+        started=$((started + 1))
+        echo "Run $i: ${time}ms, AudioService is running"
+    else
+        echo "Run $i: ${time}ms"
+    fi
+    times="$times $time"
+done
+adb shell am force-stop $PACKAGE
+
+sorted=$(echo $times | tr ' ' '\n' | sort -n)
+median=$(echo "$sorted" | sed -n "$(( (RUNS + 1) / 2 ))p")
+min=$(echo "$sorted" | head -n 1)
+max=$(echo "$sorted" | tail -n 1)
+list=$(echo $times | sed 's/ /, /g')
+device=$(adb shell getprop ro.product.model | tr -d '\r')
+release=$(adb shell getprop ro.build.version.release | tr -d '\r')
+cat > "$RESULT" <<JSON
+{
+  "benchmark": "cold-start",
+  "activity": "$ACTIVITY",
+  "device": "$device",
+  "release": "$release",
+  "runs": $RUNS,
+  "timesMs": [$list],
+  "medianMs": $median,
+  "minMs": $min,
+  "maxMs": $max,
+  "serviceStarted": $started
+}
+JSON
+echo "Median ${median}ms, min ${min}ms, max ${max}ms over $RUNS runs. Results in $RESULT"
+if [ $started -gt 0 ]; then
+    echo "AudioService was started by $started of $RUNS launches." >&2
+    exit 1
+fi
@@ -0,0 +1,178 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * A {@link Player} backed by a {@link MediaPlayer}, handed out by {@link MediaPlayerPool}. The included sounds
+ * {@link PlaybackController#SOURCE_WHITE_NOISE} and {@link PlaybackController#SOURCE_JINGLE} are read from the
+ * application's resources, and any other source is a path to a file.
+ *
+ * <p>The media player's events are passed on to the {@link Player.Listener} given here, on the thread that the
+ * player was created on.</p>
+ */
+public class AndroidPlayer implements Player, MediaPlayer.OnPreparedListener, MediaPlayer.OnCompletionListener,
+        MediaPlayer.OnErrorListener, MediaPlayer.OnInfoListener {
+    /** For logging */
+    private static final String TAG = "AndroidPlayer";
+    /** The SDK version */
+    private static final int SDK = Build.VERSION.SDK_INT;
+
+    /** Used to open the included sounds. */
+    private final Context mContext;
+    /** The player doing the work. */
+    private final MediaPlayer mPlayer;
+    /** Hears about every event of this player. */
+    private final Player.Listener mListener;
+
+    /**
+     * @param context a long lived context, such as the application context.
+     * @param player a media player in the Idle state. Its listeners are replaced.
+     * @param listener hears about every event of the player.
+     */
+    public AndroidPlayer(Context context, MediaPlayer player, Player.Listener listener) {
+        mContext = context;
+        mPlayer = player;
+        mListener = listener;
+        // Listeners survive reset(), so they are only set once.
+        mPlayer.setOnPreparedListener(this);
+        mPlayer.setOnCompletionListener(this);
+        mPlayer.setOnErrorListener(this);
+        mPlayer.setOnInfoListener(this);
+    }
+
+    @Override
+    public void setSource(String source) throws IOException {
+        final int resource;
+        if (PlaybackController.SOURCE_WHITE_NOISE.equals(source)) {
+            resource = R.raw.noise;
+        } else if (PlaybackController.SOURCE_JINGLE.equals(source)) {
+            resource = R.raw.jingle;
+        } else {
+            mPlayer.setDataSource(source);
+            return;
+        }
+        final AssetFileDescriptor d = mContext.getResources().openRawResourceFd(resource);
+        if (d == null) {
+            throw new IOException("Could not open the included sound " + source);
+        }
+        try {
+            mPlayer.setDataSource(d.getFileDescriptor(), d.getStartOffset(), d.getLength());
+        } finally {
+            d.close();
+        }
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        mPlayer.setLooping(looping);
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        mPlayer.setVolume(volume, volume);
+    }
+
+    @Override
+    public void prepareAsync() {
+        mPlayer.prepareAsync();
+    }
+
+    @Override
+    public void start() {
+        mPlayer.start();
+    }
+
+    @Override
+    public boolean setNext(Player next) {
+        // Only the framework from SDK 16 can start one player when another completes.
+        if (SDK < 16) {
+            return false;
+        }
+        mPlayer.setNextMediaPlayer((next == null) ? null : ((AndroidPlayer) next).mPlayer);
+        return true;
+    }
+
+    @Override
+    public int getDuration() {
+        return mPlayer.getDuration();
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return mPlayer.getCurrentPosition();
+    }
+
+    @Override
+    public void seekTo(int millis) {
+        mPlayer.seekTo(millis);
+    }
+
+    /**
+     * Stop the player and go back to the Idle state, so it can be given a new source.
+     * @throws IllegalStateException if the media player can't be reset, and should be released instead.
+     */
+    void reset() {
+        mPlayer.reset();
+    }
+
+    /**
+     * Release the native resources of the player. It can't be used after this.
+     */
+    void release() {
+        mPlayer.release();
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+        Tracing.beginSection("AndroidPlayer.onPrepared");
+        try {
+            mListener.onPrepared(this);
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+        mListener.onCompletion(this);
+    }
+
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        Log.e(TAG, "Player failed: " + what + ", " + extra);
+        mListener.onError(this, what);
+        // Handled: the listener has let go of the player or moved on, so there is no completion to follow.
+        return true;
+    }
+
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        if (what == MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT) {
+            mListener.onStartedAsNext(this);
+            return true;
+        }
+        return false;
+    }
+}
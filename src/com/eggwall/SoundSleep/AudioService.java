@@ -20,222 +20,884 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.AssetFileDescriptor;
-import android.media.MediaPlayer;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Runs the music in the background and holds a wake lock during the duration of music playing.
+ *
+ * <p>Clients in this process bind to the service and talk to it through {@link LocalBinder}: they read the state
+ * directly and hear about changes through a {@link Listener}. Intents to {@link #onStartCommand} carry the same
+ * requests for callers that aren't bound.</p>
+ *
+ * <p>What plays and when is decided by one {@link PlaybackController}: requests, the sleep timer, players and their
+ * callbacks, crossfades and skipping broken songs. The service is its {@link PlaybackController.Host}, and supplies
+ * what needs the device: songs from the card, synthesized noise and mixes, the notification, and saving state so
+ * playback can be resumed.</p>
+ *
+ * <p>All the work happens on one service thread: requests, reading the card, player callbacks, and the timers.
+ * State changes in one place, in order, and the main thread never waits on the disk or on a player. Only the
+ * listeners are called on the main thread.</p>
  */
-public class AudioService extends Service implements MediaPlayer.OnErrorListener, MediaPlayer.OnPreparedListener,
-        MediaPlayer.OnCompletionListener {
-    /** The namespace of our application, used for qualifying local messages. */
-    private static String NAMESPACE = "com.eggwall.SoundSleep";
-
+public class AudioService extends Service {
     /** For logging */
     private static final String TAG = "AudioService";
-    /** The tag used to pass the request. Can only be {@link #GET_STATUS}, {@link #MUSIC}, or {@link #WHITE_NOISE}*/
+    /**
+     * The tag used to pass the request. Can only be {@link #GET_STATUS}, {@link #MUSIC}, {@link #WHITE_NOISE},
+     * {@link #NOISE} or {@link #MUSIC_AND_NOISE}
+     */
     public static final String REQUEST = "request";
+    /**
+     * The tag used to pass the color of noise with a {@link #NOISE} or {@link #MUSIC_AND_NOISE} request. One of
+     * {@link NoiseGenerator#WHITE},
+     * {@link NoiseGenerator#PINK} or {@link NoiseGenerator#BROWN}. Defaults to pink.
+     */
+    public static final String NOISE_COLOR = "noise-color";
+    /**
+     * The tag used to pass a sleep timer, in minutes, with a request to play. Audio fades out and stops when the
+     * timer ends. Sending this with the type that is already playing sets the timer without stopping the audio.
+     */
+    public static final String SLEEP_MINUTES = "sleep-minutes";
+    /**
+     * The tag used to pass the {@link SystemClock#elapsedRealtime()} of the tap that made this request, so the
+     * time from the tap to the first sound can be measured.
+     */
+    public static final String TAPPED_AT = "tapped-at";
 
     /** Stop playing any audio. */
-    public static final int SILENCE = 0;
-    /** Broadcast message that says were were successful in starting silence. */
-    public static final String MESSAGE_SILENCE = NAMESPACE + ".message.silence";
+    public static final int SILENCE = PlaybackController.SILENCE;
 
     /** Play music from the SD card */
-    public static final int MUSIC = 1;
-    /** Broadcast message that says were were successful in starting music. */
-    public static final String MESSAGE_MUSIC = NAMESPACE + ".message.music";
+    public static final int MUSIC = PlaybackController.MUSIC;
 
     /** Play standard white noise file (included in the application */
-    public static final int WHITE_NOISE = 2;
-    /** Broadcast message that says were were successful in starting white noise. */
-    public static final String MESSAGE_WHITE_NOISE = NAMESPACE + ".message.white-noise";
+    public static final int WHITE_NOISE = PlaybackController.WHITE_NOISE;
+
+    /**
+     * Tell the listeners the current status without changing any state. Bound clients read
+     * {@link #getTypePlaying()} instead.
+     */
+    public static final int GET_STATUS = PlaybackController.GET_STATUS;
+
+    /** Play noise synthesized on the device rather than decoded from the included file. */
+    public static final int NOISE = PlaybackController.NOISE;
 
-    /** Just return the current status without changing any state. */
-    public static final int GET_STATUS = 3;
+    /**
+     * Play music from the SD card with synthesized noise under it, mixed into one stream. Falls back to music alone
+     * where the music can't be decoded by the application.
+     */
+    public static final int MUSIC_AND_NOISE = PlaybackController.MUSIC_AND_NOISE;
 
-    /** Map to perform type -> message lookups */
-    public static final String[] typeToMessage = {
-            MESSAGE_SILENCE, MESSAGE_MUSIC, MESSAGE_WHITE_NOISE
+    /** Names of each type, for dump(). */
+    private static final String[] MODE_NAMES = {
+            "silence", "music", "white-noise", null, "noise", "music-and-noise"
     };
-    /** Map to perform message -> type lookups. */
-    public static final HashMap <String, Integer> messageToType = new HashMap<String, Integer>(3);
-    static {
-        messageToType.put(MESSAGE_SILENCE, SILENCE);
-        messageToType.put(MESSAGE_MUSIC, MUSIC);
-        messageToType.put(MESSAGE_WHITE_NOISE, WHITE_NOISE);
+
+    /**
+     * Hears about changes in what the service is playing. Called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * The service started playing, or became silent.
+         * @param type {@link #SILENCE}, {@link #MUSIC}, {@link #WHITE_NOISE} or {@link #NOISE}
+         */
+        void onTypePlayingChanged(int type);
     }
 
+    /**
+     * Gives clients in this process the service itself, so calls are plain method calls with no intents.
+     */
+    public class LocalBinder extends Binder {
+        /** Returns the service. Call its methods from the main thread only, they return without waiting. */
+        public AudioService getService() {
+            return AudioService.this;
+        }
+    }
+
+    /**
+     * The most media players alive at once: the song playing and the song after it, with one to spare so a player
+     * can be recycled after its replacement is acquired.
+     */
+    private static final int MAX_PLAYERS = 3;
+    /** The most idle media players kept for reuse. */
+    private static final int MAX_IDLE_PLAYERS = 2;
+    /** Gain of the noise under the music in {@link #MUSIC_AND_NOISE}, so that the music stands out over it. */
+    private static final float MIX_NOISE_GAIN = 0.5f;
+    /** Gain of the music in {@link #MUSIC_AND_NOISE}, leaving some headroom for the noise. */
+    private static final float MIX_MUSIC_GAIN = 0.8f;
+    /** Loudness that songs are brought down to, in decibels relative to full scale. */
+    private static final float TARGET_LOUDNESS_DB = -20.0f;
+    /** The quietest a song is made by loudness matching, so that a mismeasured song is never lost. */
+    private static final float MIN_TRACK_GAIN = 0.25f;
+    /**
+     * How often the playback snapshot is written while music plays, so that a resume lands within this much of
+     * where the song was. One tiny write on a CPU that is awake for playback anyway.
+     */
+    private static final long SNAPSHOT_MILLIS = 60 * 1000;
+    /** The longest dump() waits for the service thread. */
+    private static final long DUMP_TIMEOUT_MILLIS = 2000;
+    /** Songs measured between saves of the library index. */
+    private static final int MEASURED_PER_SAVE = 10;
     /** This represents in invalid position in the list and also an invalid resource. */
     private static final int INVALID_POSITION = -1;
     /** Name of the directory in the main folder containing sleeping music */
     private final static String MUSIC_DIR = "sleeping";
 
+    /** Name of the file in the files directory that holds the index of the music directory. */
+    private final static String LIBRARY_INDEX_FILE = "library.idx";
+    /** Name of the file in the files directory that holds the shuffled order of songs. */
+    private final static String SHUFFLE_FILE = "shuffle.dat";
+    /** Identifies the shuffle file: "SSSO" */
+    private final static int SHUFFLE_MAGIC = 0x5353534f;
+    /** Bump this whenever the layout of the shuffle file changes. */
+    private final static int SHUFFLE_VERSION = 1;
+    /** Name of the preferences that hold small pieces of playback state. */
+    private final static String PREFERENCES = "playback";
+    /** Key in {@link #PREFERENCES} for the position in the shuffled order of songs. */
+    private final static String KEY_SHUFFLE_CURSOR = "shuffle-cursor";
+    /** Preference holding the length of crossfades between songs, in seconds. 0 plays songs back to back. */
+    private final static String KEY_CROSSFADE_SECONDS = "crossfade-seconds";
+    /** Name of the file in the files directory that holds the playback snapshot. */
+    private final static String SNAPSHOT_FILE = "snapshot.dat";
+    /** Name of the file in the files directory that holds the start latency histograms. */
+    private final static String LATENCY_FILE = "latency.dat";
+    /** Name of the file in the cache directory that holds the decoded white noise loop. */
+    private final static String NOISE_LOOP_FILE = "noise.pcm";
+    /** Directory in the cache directory holding copies of songs from the card. */
+    private final static String TRACK_CACHE_DIR = "tracks";
+    /** The most bytes that copies of songs may take. */
+    private final static long TRACK_CACHE_BYTES = 64L * 1024 * 1024;
+
     /** The ID for the global notification we post. */
     private final static int NOTIFICATION_ID = 0;
 
-    /** Single instance of random number generator */
-    private final Random mRandom = new Random();
     /** The SDK version */
     private final static int SDK = Build.VERSION.SDK_INT;
 
-    /** The object that actually plays the music on our behalf. */
-    private MediaPlayer mPlayer;
-    /** Set to {@link #SILENCE}, {@link #MUSIC}, or {@link #WHITE_NOISE}. */
-    private int mTypePlaying = SILENCE;
+    /** Runs requests, file access and player callbacks, one at a time. Started in onCreate. */
+    private HandlerThread mThread;
+    /** Handler on {@link #mThread}. Everything that touches playback state runs here. */
+    private Handler mHandler;
+    /** Handler on the main thread, where listeners are called. */
+    private final Handler mMainHandler = new Handler();
+    /** Decides what plays. Created in onCreate, and only called on {@link #mThread}. */
+    private PlaybackController mController;
+    /** Recycles media players instead of creating one for every song. Created with {@link #mController}. */
+    private MediaPlayerPool mPlayerPool;
+    /** What was playing, written at every change so that playback can be resumed after the process dies. */
+    private final PlaybackSnapshot mSnapshot = new PlaybackSnapshot();
+    /** The song to play first, from the snapshot being resumed, or null. */
+    private String mResumeTrack;
+    /** True while resuming from the snapshot, when the saved library is used without a scan. */
+    private boolean mResuming = false;
+    /** Counters for dump() and test harnesses. */
+    private final PlaybackStats mStats = PlaybackStats.get();
+    /**
+     * Times of each stage of the request being started, indexed by stage like {@link StartLatency#STAGE_TAPPED}.
+     * All zero when no request is being timed.
+     */
+    private final long[] mRequestTimes = new long[StartLatency.STAGE_COUNT];
+    /** Histograms of start latency, loaded from disk when first needed. */
+    private StartLatency mLatency;
+    /** Plays synthesized noise, the decoded white noise loop, or a mix. Null unless one of them is playing. */
+    private PcmPlayer mPcmPlayer;
+    /**
+     * Keeps the CPU awake while {@link #mPcmPlayer} is playing. Media players hold their own wake lock, but
+     * {@link android.media.AudioTrack} does not.
+     */
+    private PowerManager.WakeLock mWakeLock;
+    /** Decoded copy of {@link R.raw#noise}, so the white noise file is only decoded once. */
+    private NoiseLoopCache mNoiseLoopCache;
+    /** Mixes music over noise in {@link #MUSIC_AND_NOISE}. Played by {@link #mPcmPlayer}, null otherwise. */
+    private PcmMixer mMixer;
+    /** Volume that matches the loudness of the song in {@link #mMixer} to the others. */
+    private float mMixedGain = 1.0f;
+    /** Measures the loudness of songs while the device is charging. Created when first needed. */
+    private LoudnessAnalyzer mAnalyzer;
+    /** The song being measured, or null. */
+    private String mMeasuringTrack;
+    /** Songs measured since the library index was last saved. */
+    private int mMeasuredSinceSave = 0;
+    /** True while the device is on external power. */
+    private boolean mCharging = false;
     /** The actual directory that corresponds to the external SD card. */
     private File mMusicDir;
-    /** Names of all the songs */
-    private String[] mFilenames;
+    /** Names of all the songs, relative to {@link #mMusicDir}. Songs can be in subdirectories. */
+    private TrackList mTracks;
+    /** Index of all the songs in {@link #mMusicDir}, kept on disk between runs. */
+    private LibraryIndex mLibrary;
+    /** Copies of songs in internal storage, so the card can stay asleep. Created with the library. */
+    private TrackCache mTrackCache;
+    /** The order in which songs in {@link #mTracks} are played. */
+    private ShuffleBag mShuffle;
+    /** Keeps {@link #mLibrary} and {@link #mTracks} current while music plays. Created with the song list. */
+    private LibraryWatcher mWatcher;
     /** The global manager for notifications */
     private NotificationManager mNotificationManager;
+    /** Returned to every client that binds. */
+    private final IBinder mBinder = new LocalBinder();
+    /** Clients to tell about changes in what is playing. Only touched on the main thread. */
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+    /** True if the service was started, so it keeps running when no client is bound. Service thread only. */
+    private boolean mStarted = false;
 
     @Override
-    public boolean onError(MediaPlayer mp, int what, int extra) {
-        releasePlayer();
-        Log.e(TAG, "SleepActivity.AudioService encountered onError");
-        // Propagate the error up.
-        return false;
+    public void onCreate() {
+        super.onCreate();
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        Tracing.init(this);
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mPlayerPool = new MediaPlayerPool(getApplicationContext(), MAX_PLAYERS, MAX_IDLE_PLAYERS, mStats);
+        mController = new PlaybackController(mScheduler, mPlayerPool, mHost, mStats);
+        mPlayerPool.setListener(mController);
+        if (SDK >= 16) {
+            // Songs are only measured while charging, so listen for the charger, on the service thread.
+            final IntentFilter filter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+            filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+            registerReceiver(mPowerReceiver, filter, null, mHandler);
+            final Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            mCharging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        }
+    }
+
+    /**
+     * Starts measuring songs when the charger is connected, and stops when it is disconnected.
+     */
+    private final BroadcastReceiver mPowerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mCharging = Intent.ACTION_POWER_CONNECTED.equals(intent.getAction());
+            if (mCharging) {
+                measureNextTrack();
+            } else if (mAnalyzer != null) {
+                mAnalyzer.cancel();
+                mMeasuringTrack = null;
+            }
+        }
+    };
+
+    /**
+     * Measure the loudness of one song that hasn't been measured yet, in the background. Only while charging, and
+     * only one song at a time: the next one is started when this one is done.
+     */
+    private void measureNextTrack() {
+        if (SDK < 16 || !mCharging || mLibrary == null || mMeasuringTrack != null) {
+            return;
+        }
+        final LibraryIndex.Entry entry = mLibrary.nextUnmeasured();
+        if (entry == null) {
+            return;
+        }
+        if (mAnalyzer == null) {
+            mAnalyzer = new LoudnessAnalyzer(mHandler, mLoudnessMeasured);
+        }
+        if (mAnalyzer.analyze(entry.mPath, new File(mMusicDir, entry.mPath).getAbsolutePath())) {
+            mMeasuringTrack = entry.mPath;
+        }
+    }
+
+    /**
+     * Stores the loudness of each song measured, and moves on to the next.
+     */
+    private final LoudnessAnalyzer.Callback mLoudnessMeasured = new LoudnessAnalyzer.Callback() {
+        @Override
+        public void onAnalyzed(String path, float loudnessDb, float peak) {
+            mMeasuringTrack = null;
+            if (mLibrary == null) {
+                return;
+            }
+            mLibrary.setLoudness(path, loudnessDb, peak);
+            mMeasuredSinceSave++;
+            if (mMeasuredSinceSave >= MEASURED_PER_SAVE) {
+                saveLibrary();
+                mMeasuredSinceSave = 0;
+            }
+            measureNextTrack();
+        }
+    };
+
+    /**
+     * Returns the volume that brings a song to the same loudness as the others, or 1 if it hasn't been measured.
+     * @param track path relative to the music directory.
+     */
+    private float getTrackGain(String track) {
+        final LibraryIndex.Entry entry = mLibrary.get(track);
+        if (entry == null || entry.mPeak == LibraryIndex.UNKNOWN_PEAK) {
+            return 1.0f;
+        }
+        return LoudnessMeter.getGain(entry.mLoudness, entry.mPeak, TARGET_LOUDNESS_DB, MIN_TRACK_GAIN);
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if (mNotificationManager == null) {
-            mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        }
-        // If we don't get an extra (impossible), play white noise.
-        final int typeOfResource = intent.getIntExtra(REQUEST, WHITE_NOISE);
-        // If this is a call to get the status, just return right here.
-        if (typeOfResource == GET_STATUS) {
-            postSuccessMessage(mTypePlaying);
-            return 0;
-        }
-        if (mTypePlaying == typeOfResource || typeOfResource == SILENCE) {
-            // Pressing the same button twice is an instruction to stop playing this music.
-            mTypePlaying = SILENCE;
-            stopSelf();
-            return 0;
+        // An intent without a request only keeps the service running, see keepRunning().
+        final boolean hasRequest = intent != null && intent.hasExtra(REQUEST);
+        final long receivedAt = SystemClock.elapsedRealtime();
+        final int type = hasRequest ? intent.getIntExtra(REQUEST, WHITE_NOISE) : GET_STATUS;
+        final int sleepMinutes = hasRequest ? intent.getIntExtra(SLEEP_MINUTES, 0) : 0;
+        final int noiseColor = hasRequest ? intent.getIntExtra(NOISE_COLOR, NoiseGenerator.PINK) : 0;
+        final long tappedAt = hasRequest ? intent.getLongExtra(TAPPED_AT, 0) : 0;
+        // A null intent is the system starting the service again after the process was killed.
+        final boolean restarted = intent == null;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mStarted = true;
+                if (hasRequest) {
+                    mController.request(type, sleepMinutes, noiseColor, tappedAt, receivedAt);
+                } else if (restarted) {
+                    resumeFromSnapshot();
+                }
+            }
+        });
+        // Ask to be started again if the process is killed while playing. Stopping deliberately calls stopSelf().
+        return START_STICKY;
+    }
+
+    /**
+     * Carry on playing what was playing when the process was killed, from the snapshot: the same mode, the same
+     * song at about the same place, and the rest of the sleep timer. The library index saved on disk is used as it
+     * is, without scanning the card. Runs on the service thread.
+     */
+    private void resumeFromSnapshot() {
+        final long now = SystemClock.elapsedRealtime();
+        final boolean loaded = mSnapshot.load(new File(getFilesDir(), SNAPSHOT_FILE));
+        final int mode = mSnapshot.getMode();
+        final long sleepEndsAt = mSnapshot.getSleepEndsAt();
+        if (!loaded || mode == SILENCE || !mSnapshot.isCurrent(now) || (sleepEndsAt != 0 && sleepEndsAt <= now)) {
+            Log.d(TAG, "Nothing to resume.");
+            mController.stop();
+            return;
         }
-        // Switch to the other type of music
-        mTypePlaying = typeOfResource;
-        releasePlayer();
-        play(mTypePlaying);
-        return 0;
+        Log.d(TAG, "Resuming " + MODE_NAMES[mode] + " from the snapshot.");
+        final boolean music = mode == MUSIC || mode == MUSIC_AND_NOISE;
+        mResumeTrack = music ? mSnapshot.getTrack() : null;
+        final long position = (mode == MUSIC) ? mSnapshot.getPositionMillis() : 0;
+        mResuming = true;
+        mController.resume(mode, mSnapshot.getNoiseColor(), mResumeTrack, position,
+                (sleepEndsAt != 0) ? sleepEndsAt - now : 0);
+        mResuming = false;
     }
 
     /**
-     * Posts a message back to the activity that it was successful in either playing music, in playing white
-     * noise, or becoming silent.
+     * Write what is playing to the snapshot file, and if music is playing, schedule the next write so the position
+     * stays roughly current. Runs on the service thread.
      */
-    private void postSuccessMessage(int actionSuccessful) {
-        final Intent i = new Intent();
-        i.setAction(typeToMessage[actionSuccessful]);
-        final LocalBroadcastManager m = LocalBroadcastManager.getInstance(this);
-        m.sendBroadcast(i);
+    private void saveSnapshot() {
+        mHandler.removeCallbacks(mSnapshotter);
+        final long now = SystemClock.elapsedRealtime();
+        final int type = mController.getTypePlaying();
+        final String track = mController.getTrackPlaying();
+        final boolean music = type == MUSIC && track != null;
+        final long position = music ? mController.getPositionMillis() : 0;
+        mSnapshot.set(type, mController.getNoiseColor(), music ? track : null, position,
+                mController.getSleepEndsAt(), now);
+        try {
+            mSnapshot.save(new File(getFilesDir(), SNAPSHOT_FILE));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the playback snapshot", e);
+        }
+        if (music) {
+            mHandler.postDelayed(mSnapshotter, SNAPSHOT_MILLIS);
+        }
     }
 
     /**
-     * Start playing the resource specified here.
-     *
-     * @param type Either MUSIC, or WHITE_NOISE. Passing the same ID twice
-     *             is a signal to stop playing music altogether.
+     * Writes the snapshot again while music plays, to keep the position in it current.
      */
-    private void play(int type) {
-        if (type == MUSIC) {
-            final MediaPlayer player = tryStartingMusic();
-            if (player != null) {
-                mPlayer = player;
-                mPlayer.prepareAsync();
-                // onPrepared will get called when the media player is ready to play.
-                return;
+    private final Runnable mSnapshotter = new Runnable() {
+        @Override
+        public void run() {
+            saveSnapshot();
+        }
+    };
+
+    /**
+     * Returns what is playing right now: {@link #SILENCE}, {@link #MUSIC}, {@link #WHITE_NOISE}, {@link #NOISE} or
+     * {@link #MUSIC_AND_NOISE}. Only call this from the main thread.
+     */
+    public int getTypePlaying() {
+        return mController.getTypePlaying();
+    }
+
+    /**
+     * Start telling this listener about changes in what is playing. Only call this from the main thread.
+     */
+    public void addListener(Listener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    /**
+     * Stop telling this listener about changes. Only call this from the main thread.
+     */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Act on a request from a bound client. The request is carried out on the service thread, and this returns
+     * straight away: listeners hear about the outcome. A burst of requests is folded into one, as described in
+     * {@link PlaybackController#request}. Only call this from the main thread.
+     * @param typeOfResource one of {@link #SILENCE}, {@link #MUSIC}, {@link #WHITE_NOISE}, {@link #NOISE},
+     *                       {@link #MUSIC_AND_NOISE} or {@link #GET_STATUS}. Asking for what is already playing stops
+     *                       it.
+     * @param sleepMinutes as for {@link #SLEEP_MINUTES}, or 0 for no timer.
+     * @param noiseColor as for {@link #NOISE_COLOR}
+     * @param tappedAt as for {@link #TAPPED_AT}, or 0 if unknown.
+     */
+    public void request(final int typeOfResource, final int sleepMinutes, final int noiseColor,
+                        final long tappedAt) {
+        final long receivedAt = SystemClock.elapsedRealtime();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mController.request(typeOfResource, sleepMinutes, noiseColor, tappedAt, receivedAt);
             }
+        });
+    }
+
+    /**
+     * Make sure the service is started, so that audio keeps playing after the last client unbinds. Requests that
+     * come through the binder don't start the service by themselves.
+     */
+    private void keepRunning() {
+        if (!mStarted) {
+            mStarted = true;
+            startService(new Intent(this, AudioService.class));
         }
-        // Either we weren't able to play custom music, or we were asked to play white noise.
-        final int resourceToPlay;
-        if (type == WHITE_NOISE) {
-            Log.v(TAG, "Playing white noise.");
-            resourceToPlay = R.raw.noise;
-        } else {
-            Log.v(TAG, "Playing included jingle.");
-            resourceToPlay = R.raw.jingle;
+    }
+
+    /**
+     * Note the time a stage of the request being started was reached. Does nothing if no request is being timed,
+     * like for the songs that follow the first.
+     * @param stage one of the stages in {@link StartLatency}, like {@link StartLatency#STAGE_PREPARED}
+     */
+    private void markRequestStage(int stage) {
+        if (mRequestTimes[StartLatency.STAGE_RECEIVED] != 0) {
+            mRequestTimes[stage] = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Audio has started: add the times of the request to the histograms and stop timing it.
+     */
+    private void finishRequestTiming() {
+        if (mRequestTimes[StartLatency.STAGE_RECEIVED] == 0) {
+            return;
         }
+        markRequestStage(StartLatency.STAGE_STARTED);
+        final StartLatency latency = getLatency();
+        final int type = mController.getTypePlaying();
+        latency.record(type, mRequestTimes);
+        Arrays.fill(mRequestTimes, 0);
+        Log.d(TAG, "Start latency: " + latency.get(type, StartLatency.STAGE_TAPPED));
         try {
-            final AssetFileDescriptor d = getResources().openRawResourceFd(resourceToPlay);
-            if (d == null) {
-                Log.wtf(TAG, "Could not open the file to play");
-                return;
-            }
-            final FileDescriptor fd = d.getFileDescriptor();
-            mPlayer = getGenericMediaPlayer();
-            mPlayer.setDataSource(fd, d.getStartOffset(), d.getLength());
-            d.close();
-            // White noise or the default song is looped forever.
-            mPlayer.setLooping(true);
+            latency.save(new File(getFilesDir(), LATENCY_FILE));
         } catch (IOException e) {
-            Log.e(TAG, "Could not create a media player instance. Full error below.");
-            e.printStackTrace();
-            return;
+            Log.e(TAG, "Could not save start latency", e);
         }
-        postSuccessMessage(mTypePlaying);
-        mPlayer.prepareAsync();
     }
 
     /**
-     * Create a media player with the standard configuration both for white noise and music.
-     * @return a generic Media player suitable for this application.
+     * Returns the start latency histograms, reading them from disk the first time. Runs on the service thread.
      */
-    private MediaPlayer getGenericMediaPlayer() {
-        final MediaPlayer player = new MediaPlayer();
-        // Keep the CPU awake while playing music.
-        player.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
-        player.setOnPreparedListener(this);
-        return player;
+    private StartLatency getLatency() {
+        if (mLatency == null) {
+            mLatency = new StartLatency();
+            mLatency.load(new File(getFilesDir(), LATENCY_FILE));
+        }
+        return mLatency;
     }
 
     /**
-     * Try getting music from the [sdcard]/music/sleeping
-     * @return a valid media player if we can play from it. Returns null if we didn't find music, or we can't play
-     * custom music for any reason.
+     * Runs the controller's timers on the service thread. Times are read from {@link SystemClock#elapsedRealtime()},
+     * which survives the process and matches the timestamps that clients send, but the handler waits on
+     * {@link SystemClock#uptimeMillis()}, which stops while the CPU sleeps. The two only drift apart while the CPU
+     * is asleep, and the controller's timers (sleep timer, fade steps, crossfades) only run while audio plays, when
+     * the players' wake mode or {@link #mWakeLock} holds the CPU awake. So a deadline taken from one clock and waited
+     * out on the other ends on time.
      */
-    private MediaPlayer tryStartingMusic() {
-        final MediaPlayer player = getGenericMediaPlayer();
-        // Try to open the SD card and read from there. If nothing is found, play the
-        // default music.
-        final int nextPosition = nextTrackFromCard();
-        if (nextPosition == INVALID_POSITION) {
-            return null;
+    private final PlaybackController.Scheduler mScheduler = new PlaybackController.Scheduler() {
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public long cpuTime() {
+            return Process.getElapsedCpuTime();
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            mHandler.postDelayed(runnable, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            mHandler.removeCallbacks(runnable);
+        }
+    };
+
+    /**
+     * Gives the controller the songs on the card and the audio we produce ourselves, and carries what it does out
+     * to the listeners, the notification and the disk. Runs on the service thread.
+     */
+    private final PlaybackController.Host mHost = new PlaybackController.Host() {
+        @Override
+        public void onTypePlayingChanged(int type) {
+            notifyListeners(type);
+        }
+
+        @Override
+        public void onStateChanged() {
+            saveSnapshot();
+            updateWatcher();
+        }
+
+        @Override
+        public void onPlayRequested(long tappedAt, long receivedAt) {
+            keepRunning();
+            // Time this request until the first sound.
+            Arrays.fill(mRequestTimes, 0);
+            mRequestTimes[StartLatency.STAGE_TAPPED] = tappedAt;
+            mRequestTimes[StartLatency.STAGE_RECEIVED] = receivedAt;
+        }
+
+        @Override
+        public void onPreparing() {
+            markRequestStage(StartLatency.STAGE_PREPARING);
+        }
+
+        @Override
+        public void onPrepared() {
+            markRequestStage(StartLatency.STAGE_PREPARED);
+        }
+
+        @Override
+        public void onStarted(int type) {
+            finishRequestTiming();
+            setForegroundService();
+            notifyListeners(type);
+        }
+
+        @Override
+        public void onStopped() {
+            Arrays.fill(mRequestTimes, 0);
+            removeNotification();
+            // Let the service go away once no client is bound.
+            mStarted = false;
+            stopSelf();
+        }
+
+        @Override
+        public String nextTrack() {
+            final int position = nextTrackFromCard();
+            if (position == INVALID_POSITION) {
+                return null;
+            }
+            final String track = mTracks.get(position);
+            Log.d(TAG, "Now playing " + track);
+            return track;
+        }
+
+        @Override
+        public String getSource(String track) {
+            return getTrackPath(track);
+        }
+
+        @Override
+        public float getTrackGain(String track) {
+            return AudioService.this.getTrackGain(track);
+        }
+
+        @Override
+        public long getCrossfadeMillis() {
+            return getPreferences().getInt(KEY_CROSSFADE_SECONDS, 0) * 1000L;
+        }
+
+        @Override
+        public void onTrackPrepared(String track, int durationMillis) {
+            if (mLibrary != null) {
+                mLibrary.setDuration(track, durationMillis);
+            }
+        }
+
+        @Override
+        public void onUnplayable(String track) {
+            Log.e(TAG, "Could not play " + track);
+            markUnplayable(track);
+        }
+
+        @Override
+        public boolean startPcm(int type, int noiseColor, float volume) {
+            switch (type) {
+                case MUSIC_AND_NOISE:
+                    return tryStartingMix(noiseColor, volume);
+                case NOISE:
+                    return tryStartingNoise(noiseColor, volume);
+                case WHITE_NOISE:
+                    return tryStartingNoiseLoop(volume);
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void setPcmVolume(float volume) {
+            if (mPcmPlayer != null) {
+                mPcmPlayer.setVolume(volume);
+            }
+        }
+
+        @Override
+        public void releasePcm() {
+            AudioService.this.releasePcm();
+        }
+    };
+
+    /**
+     * Tells the listeners that we were successful in either playing music, in playing white noise, or becoming
+     * silent. Listeners are called on the main thread, after this returns.
+     */
+    private void notifyListeners(final int actionSuccessful) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                dispatchTypePlaying(actionSuccessful);
+            }
+        });
+    }
+
+    /**
+     * Call every listener with what is playing. Only call this from the main thread.
+     */
+    private void dispatchTypePlaying(int actionSuccessful) {
+        // Copy, in case a listener removes itself.
+        final Listener[] listeners = mListeners.toArray(new Listener[mListeners.size()]);
+        for (Listener listener : listeners) {
+            listener.onTypePlayingChanged(actionSuccessful);
+        }
+    }
+
+    /**
+     * Try synthesizing noise on the device, writing it straight to an audio track.
+     * @param color one of {@link NoiseGenerator#WHITE}, {@link NoiseGenerator#PINK} or {@link NoiseGenerator#BROWN}
+     * @param volume the volume to start at.
+     * @return true if noise is playing, false if it could not be started.
+     */
+    private boolean tryStartingNoise(int color, float volume) {
+        // The stereo channel configuration for AudioTrack only exists from SDK 5.
+        if (SDK < 5) {
+            return false;
         }
-        // Play files, not resources. Play the music file given here.
-        final String file = mMusicDir.getAbsolutePath() + File.separator + mFilenames[nextPosition];
-        Log.d(TAG, "Now playing " + file);
+        final NoiseGenerator generator;
         try {
-            player.setDataSource(file);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not create a media player instance. Full error below.");
-            e.printStackTrace();
-            return null;
+            generator = new NoiseGenerator(color);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Could not generate noise: " + e.getMessage());
+            return false;
+        }
+        Log.v(TAG, "Playing synthesized noise, color " + color);
+        return startPcm(generator, volume);
+    }
+
+    /**
+     * Try mixing music from the card over synthesized noise, written to one audio track. If there is no music, the
+     * noise plays alone.
+     * @param color the color of the noise, as for {@link #tryStartingNoise(int, float)}
+     * @param volume the volume to start at.
+     * @return true if audio is playing, false if it could not be started.
+     */
+    private boolean tryStartingMix(int color, float volume) {
+        // Music is decoded with MediaCodec.
+        if (SDK < 16) {
+            return false;
+        }
+        final NoiseGenerator noise;
+        try {
+            noise = new NoiseGenerator(color);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Could not generate noise: " + e.getMessage());
+            return false;
+        }
+        final PcmMixer mixer = new PcmMixer(noise, mMixedSongEnded);
+        mixer.setMusic(openMixedSong());
+        mixer.setGains(MIX_NOISE_GAIN, MIX_MUSIC_GAIN * mMixedGain);
+        Log.v(TAG, "Playing music over synthesized noise, color " + color);
+        if (!startPcm(mixer, volume)) {
+            return false;
+        }
+        mMixer = mixer;
+        return true;
+    }
+
+    /**
+     * Decode the next song from the card for the mixer, skipping songs that can't be decoded.
+     * @return the song, or null if there is none that can be played.
+     */
+    private PcmSource openMixedSong() {
+        for (int attempt = 0; attempt < PlaybackController.MAX_CONSECUTIVE_ERRORS; attempt++) {
+            final int position = nextTrackFromCard();
+            if (position == INVALID_POSITION) {
+                return null;
+            }
+            final String track = mTracks.get(position);
+            try {
+                final PcmDecoder decoder = PcmDecoder.open(getTrackPath(track));
+                Log.d(TAG, "Now mixing " + track);
+                mMixedGain = getTrackGain(track);
+                mStats.trackSwitched();
+                if (decoder.getDurationUs() > 0) {
+                    mLibrary.setDuration(track, decoder.getDurationUs() / 1000);
+                }
+                return decoder;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not decode " + track, e);
+                markUnplayable(track);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called on the audio thread when a song in the mix ends. Picking the next song happens on the service thread.
+     */
+    private final PcmMixer.Listener mMixedSongEnded = new PcmMixer.Listener() {
+        @Override
+        public void onMusicEnded() {
+            mHandler.post(mNextMixedSong);
+        }
+    };
+
+    /**
+     * Hands the next song to the mixer.
+     */
+    private final Runnable mNextMixedSong = new Runnable() {
+        @Override
+        public void run() {
+            if (mMixer != null) {
+                mMixer.setMusic(openMixedSong());
+                mMixer.setGains(MIX_NOISE_GAIN, MIX_MUSIC_GAIN * mMixedGain);
+            }
+        }
+    };
+
+    /**
+     * Try playing the white noise file from its decoded copy in the cache directory. If there is no copy yet, one
+     * is made in the background for next time.
+     * @param volume the volume to start at.
+     * @return true if white noise is playing, false if the file needs to be decoded by a media player.
+     */
+    private boolean tryStartingNoiseLoop(float volume) {
+        if (SDK < 5) {
+            return false;
+        }
+        if (mNoiseLoopCache == null) {
+            mNoiseLoopCache = new NoiseLoopCache(getApplicationContext(), R.raw.noise, NOISE_LOOP_FILE);
+        }
+        final PcmLoop loop = mNoiseLoopCache.open();
+        if (loop == null) {
+            mNoiseLoopCache.buildInBackground();
+            return false;
+        }
+        Log.v(TAG, "Playing white noise from the decoded loop.");
+        return startPcm(loop, volume);
+    }
+
+    /**
+     * Play audio that we produce ourselves, writing it to an audio track.
+     * @param source the audio to play. It is closed when playback stops.
+     * @param volume the volume to start at.
+     * @return true if audio is playing, false if the audio track could not be created.
+     */
+    private boolean startPcm(PcmSource source, float volume) {
+        final PcmPlayer player = new PcmPlayer(source);
+        if (!player.isValid()) {
+            Log.e(TAG, "Could not create an audio track.");
+            player.release();
+            return false;
+        }
+        acquireWakeLock();
+        mPcmPlayer = player;
+        mPcmPlayer.setVolume(volume);
+        mPcmPlayer.start();
+        return true;
+    }
+
+    /**
+     * Stop the audio we produce ourselves, if any, and let the CPU sleep.
+     */
+    private void releasePcm() {
+        if (mPcmPlayer != null) {
+            // Closes the mixer too, if there is one.
+            mPcmPlayer.release();
+            mPcmPlayer = null;
+        }
+        mMixer = null;
+        mHandler.removeCallbacks(mNextMixedSong);
+        releaseWakeLock();
+    }
+
+    /**
+     * Keep the CPU awake while we write audio ourselves. Safe to call repeatedly.
+     */
+    private void acquireWakeLock() {
+        if (mWakeLock == null) {
+            final PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+            mWakeLock.setReferenceCounted(false);
+        }
+        if (!mWakeLock.isHeld()) {
+            mWakeLock.acquire();
+            mStats.wakeLockAcquired(SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Let the CPU sleep again. Safe to call repeatedly.
+     */
+    private void releaseWakeLock() {
+        if (mWakeLock != null && mWakeLock.isHeld()) {
+            mWakeLock.release();
+            mStats.wakeLockReleased(SystemClock.elapsedRealtime());
         }
-        player.setOnCompletionListener(this);
-        // Play this song, and a different one when done.
-        player.setLooping(false);
-        return player;
     }
 
     /**
@@ -243,17 +905,167 @@ public class AudioService extends Service implements MediaPlayer.OnErrorListener
      * played.
      */
     private int nextTrackFromCard() {
-        if (mFilenames == null || mFilenames.length <= 0) {
+        if (mTracks == null || mTracks.size() <= 0) {
             // Fill the filename list and return the first position.
-            mFilenames = getMusicList();
-            Log.d(TAG, "All filenames: " + Arrays.toString(mFilenames));
+            final String[] paths = getMusicList();
             // Still nothing? Go back with an invalid position.
-            if (mFilenames.length <= 0) {
+            if (paths.length <= 0) {
                 Log.e(TAG, "Music directory has no files.");
                 return INVALID_POSITION;
             }
+            loadShuffle(paths);
+            if (mWatcher == null) {
+                mWatcher = new LibraryWatcher(mMusicDir, mLibrary, mHandler, mLibraryListener);
+            }
+            // The songs were just listed, so there is nothing to catch up with before watching.
+            mWatcher.start();
+        }
+        final String resumeTrack = mResumeTrack;
+        mResumeTrack = null;
+        if (resumeTrack != null) {
+            // Play the song from the snapshot again, without moving on in the shuffled order.
+            final int position = mTracks.indexOf(resumeTrack);
+            if (position >= 0) {
+                return position;
+            }
+        }
+        final int track = mShuffle.next();
+        saveShuffle();
+        prefetchTrack(mShuffle.peek());
+        return (track == TrackOrder.NO_TRACK) ? INVALID_POSITION : track;
+    }
+
+    /**
+     * Returns the path to play a song from: its copy in internal storage if there is one, otherwise the card.
+     * @param track path relative to the music directory.
+     */
+    private String getTrackPath(String track) {
+        final LibraryIndex.Entry entry = mLibrary.get(track);
+        if (entry != null) {
+            final File copy = mTrackCache.get(entry);
+            if (copy != null) {
+                return copy.getAbsolutePath();
+            }
+        }
+        return mMusicDir.getAbsolutePath() + File.separator + track;
+    }
+
+    /**
+     * Start copying a song to internal storage, so that it plays without reading the card when its turn comes.
+     * @param position the song's position in {@link #mTracks}, or {@link TrackOrder#NO_TRACK}
+     */
+    private void prefetchTrack(int position) {
+        if (position == TrackOrder.NO_TRACK) {
+            return;
+        }
+        final LibraryIndex.Entry entry = mLibrary.get(mTracks.get(position));
+        if (entry != null) {
+            mTrackCache.prefetch(entry);
+        }
+    }
+
+    /**
+     * Set up the songs and their shuffled order, resuming the order from where the last process left it. The saved
+     * order is stored with the songs it was made for, and songs added or removed since are applied to it one at a
+     * time, so a change to the library doesn't reshuffle everything. A new order is only started if the file is
+     * missing, or from an older layout.
+     * @param paths the songs there are now.
+     */
+    private void loadShuffle(String[] paths) {
+        mShuffle = new ShuffleBag();
+        final File file = new File(getFilesDir(), SHUFFLE_FILE);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() == SHUFFLE_MAGIC && in.readInt() == SHUFFLE_VERSION) {
+                final int count = in.readInt();
+                if (count < 0) {
+                    throw new IOException("Corrupt shuffle file");
+                }
+                final String[] saved = new String[count];
+                for (int i = 0; i < count; i++) {
+                    saved[i] = in.readUTF();
+                }
+                mShuffle.readFrom(in);
+                final TrackList tracks = new TrackList(saved);
+                if (mShuffle.size() == count && tracks.size() == count) {
+                    mShuffle.setCursor(getPreferences().getInt(KEY_SHUFFLE_CURSOR, 0));
+                    final int changes = tracks.update(paths, mShuffle);
+                    Log.d(TAG, "Resuming the shuffled order, " + changes + " songs added or removed.");
+                    mTracks = tracks;
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // No saved order, or it can't be read. Start afresh.
+        } finally {
+            closeQuietly(in);
+        }
+        Log.d(TAG, "Starting a new shuffled order of songs.");
+        mShuffle = new ShuffleBag();
+        mTracks = new TrackList(paths);
+        mShuffle.reset(mTracks.size());
+    }
+
+    /**
+     * Save the position in the shuffled order. The order itself, with the songs it is for, is only written when it
+     * changes: once per round of songs, and when songs are added or removed.
+     */
+    private void saveShuffle() {
+        if (mShuffle.isDirty()) {
+            final File file = new File(getFilesDir(), SHUFFLE_FILE);
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                out.writeInt(SHUFFLE_MAGIC);
+                out.writeInt(SHUFFLE_VERSION);
+                final int count = mTracks.size();
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeUTF(mTracks.get(i));
+                }
+                mShuffle.writeTo(out);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save the shuffled order", e);
+            } finally {
+                closeQuietly(out);
+            }
+        }
+        final SharedPreferences.Editor editor = getPreferences().edit();
+        editor.putInt(KEY_SHUFFLE_CURSOR, mShuffle.getCursor());
+        apply(editor);
+    }
+
+    /**
+     * Returns the preferences that hold small pieces of playback state.
+     */
+    private SharedPreferences getPreferences() {
+        return getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Write preferences without waiting for the disk, where the platform allows it.
+     */
+    private static void apply(SharedPreferences.Editor editor) {
+        if (SDK >= 9) {
+            editor.apply();
+        } else {
+            editor.commit();
+        }
+    }
+
+    /**
+     * Close a stream, ignoring errors.
+     */
+    private static void closeQuietly(Closeable stream) {
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // Nothing to do.
         }
-        return mRandom.nextInt(mFilenames.length);
     }
 
     /**
@@ -270,8 +1082,23 @@ public class AudioService extends Service implements MediaPlayer.OnErrorListener
         if (mMusicDir == null) {
             return foundNothing;
         }
-        final String[] filenames = mMusicDir.list();
-        Log.e(TAG, "All filenames: " + Arrays.toString(filenames));
+        if (mLibrary == null) {
+            mLibrary = new LibraryIndex(mMusicDir, new File(getFilesDir(), LIBRARY_INDEX_FILE));
+            mLibrary.load();
+            mTrackCache = new TrackCache(mMusicDir, new File(getCacheDir(), TRACK_CACHE_DIR), TRACK_CACHE_BYTES);
+        }
+        if (mResuming && mLibrary.size() > 0) {
+            // Get the music going again quickly, with the songs known before the process was killed.
+            Log.d(TAG, "Resuming without a library scan.");
+        } else {
+            mLibrary.scan();
+            Log.d(TAG, "Library scan listed " + mLibrary.getListedCount() + " directories, statted "
+                    + mLibrary.getStattedCount() + " files");
+            saveLibrary();
+        }
+        measureNextTrack();
+        final String[] filenames = mLibrary.getPlayablePaths();
+        Log.d(TAG, "Found " + filenames.length + " songs.");
         if (filenames.length <= 0) {
             Log.e(TAG, "Music directory has no files." + mMusicDir);
             return foundNothing;
@@ -279,6 +1106,20 @@ public class AudioService extends Service implements MediaPlayer.OnErrorListener
         return filenames;
     }
 
+    /**
+     * Write the library index to disk if anything new was learnt about it.
+     */
+    private void saveLibrary() {
+        if (mLibrary == null) {
+            return;
+        }
+        try {
+            mLibrary.save();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the library index", e);
+        }
+    }
+
     /**
      * Returns the location of the music directory which is
      * [sdcard]/music/sleeping.
@@ -353,16 +1194,100 @@ public class AudioService extends Service implements MediaPlayer.OnErrorListener
     }
 
     /**
-     * Close the music player, if any, and remove our reference to it.
+     * Watch the music directory only while songs from it are playing. Other modes never read the card, so when
+     * watching starts again the songs are brought up to date with {@link #rescanTracks()} first.
      */
-    private void releasePlayer() {
-        if (mPlayer != null) {
-            mPlayer.stop();
-            mPlayer.release();
-            mPlayer = null;
+    private void updateWatcher() {
+        if (mWatcher == null) {
+            return;
+        }
+        final int type = mController.getTypePlaying();
+        if (type == MUSIC || type == MUSIC_AND_NOISE) {
+            if (!mWatcher.isWatching()) {
+                rescanTracks();
+                mWatcher.start();
+            }
+        } else if (mWatcher.isWatching()) {
+            mWatcher.stop();
+            // Songs added or removed while watching are only in memory until now.
+            saveLibrary();
         }
     }
 
+    /**
+     * Find the songs added to and removed from the card while it was not being watched, and apply them to the songs
+     * being played and their shuffled order. Only directories that changed are listed again, so this is cheap when
+     * nothing happened.
+     */
+    private void rescanTracks() {
+        if (mLibrary == null || mTracks == null) {
+            return;
+        }
+        mLibrary.scan();
+        final int changes = mTracks.update(mLibrary.getPlayablePaths(), mShuffle);
+        Log.d(TAG, "Rescan listed " + mLibrary.getListedCount() + " directories, " + changes + " songs changed");
+        saveLibrary();
+        measureNextTrack();
+    }
+
+    /**
+     * Applies songs that appear on and disappear from the card to the songs being played and their shuffled order.
+     * Runs on the service thread.
+     */
+    private final LibraryWatcher.Listener mLibraryListener = new LibraryWatcher.Listener() {
+        @Override
+        public void onTrackAdded(String path) {
+            if (mTracks.add(path, mShuffle)) {
+                Log.d(TAG, "Added " + path);
+            }
+        }
+
+        @Override
+        public void onTrackRemoved(String path) {
+            if (mTracks.remove(path, mShuffle)) {
+                Log.d(TAG, "Removed " + path);
+            }
+        }
+    };
+
+    /**
+     * Print what is playing and the counters. Called on a binder thread, so the work is handed to the service
+     * thread, which owns the state being read, and this waits a little while for it.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, final PrintWriter writer, String[] args) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean posted = mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                dumpState(writer);
+                done.countDown();
+            }
+        });
+        try {
+            if (!posted || !done.await(DUMP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                writer.println("AudioService: the service thread is busy or gone, nothing to show.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Print what is playing and the counters. Runs on the service thread.
+     */
+    private void dumpState(PrintWriter writer) {
+        writer.println("AudioService: playing " + MODE_NAMES[mController.getTypePlaying()] + ", volume "
+                + mController.getVolume());
+        writer.println("  players alive: " + mPlayerPool.getAliveCount());
+        if (mLibrary != null) {
+            writer.println("  library: " + mLibrary.size() + " files");
+            mTrackCache.dump(writer);
+        }
+        mStats.dump(writer, MODE_NAMES, SystemClock.elapsedRealtime(), Process.getElapsedCpuTime());
+        getLatency().dump(writer, MODE_NAMES);
+    }
+
     /**
      * Remove the persistent notification.
      */
@@ -374,32 +1299,56 @@ public class AudioService extends Service implements MediaPlayer.OnErrorListener
     @Override
     public void onDestroy() {
         Log.v(TAG, "AudioService: onDestroy() called");
-        removeNotification();
-        releasePlayer();
+        if (SDK >= 16) {
+            unregisterReceiver(mPowerReceiver);
+        }
+        // Releasing the players and saving state happen on the service thread, after any request still waiting.
+        mHandler.post(mShutdown);
         // Indicate that the service is quitting.
-        postSuccessMessage(SILENCE);
+        dispatchTypePlaying(SILENCE);
+        mListeners.clear();
         super.onDestroy();
     }
 
-    @Override
-    public IBinder onBind(Intent intent) {
-        return null;
-    }
+    /**
+     * Stops all playback, writes state to disk and ends the service thread. The last thing to run on it.
+     */
+    private final Runnable mShutdown = new Runnable() {
+        @Override
+        public void run() {
+            mController.shutdown();
+            removeNotification();
+            mPlayerPool.clear();
+            Log.d(TAG, "Media players created " + mStats.getPlayersCreated() + ", reused "
+                    + mStats.getPlayersReused() + ", released " + mStats.getPlayersReleased());
+            if (mAnalyzer != null) {
+                mAnalyzer.shutdown();
+            }
+            saveLibrary();
+            // Anything posted after this, like a late result from the analyzer, is dropped.
+            mThread.quit();
+        }
+    };
 
     @Override
-    public void onPrepared(MediaPlayer mp) {
-        setForegroundService();
-        postSuccessMessage(mTypePlaying);
-        mPlayer.start();
+    public IBinder onBind(Intent intent) {
+        return mBinder;
     }
 
-    @Override
-    public void onCompletion(MediaPlayer mp) {
-        // This method is only called for songs, since white noise is on endless loop, and will never get this event.
-        releasePlayer();
-        // Play the next song.  Should only be called for mTypePlaying == MUSIC
-        if (mTypePlaying == MUSIC) {
-            play(mTypePlaying);
+    /**
+     * Remember that a song can't be played, and take it out of the songs being played, so that it isn't picked again
+     * until the file changes. A changed file is added back by {@link #mWatcher} or the next scan.
+     */
+    private void markUnplayable(String track) {
+        if (track == null) {
+            return;
+        }
+        if (mLibrary != null) {
+            mLibrary.setUnplayable(track);
+        }
+        if (mTracks != null && mTracks.remove(track, mShuffle)) {
+            Log.d(TAG, "Removed unplayable " + track);
+            saveShuffle();
         }
     }
 }
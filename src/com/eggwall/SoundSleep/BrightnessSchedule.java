@@ -0,0 +1,110 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+/**
+ * How bright the clock screen is over the night: the brightness of the window, and the alpha of the clock and of
+ * the icons, all stepping down together. The screen starts at the user's own brightness and goes down one step
+ * every time the clock moves, until it reaches the dimmest step, where it stays. A touch brings it back to the
+ * first step. No step is brighter than the user's own setting, so a screen that is already dim only ever gets
+ * dimmer.
+ *
+ * <p>The steps are few and coarse on purpose: each one costs a redraw and a change to the window.</p>
+ */
+public class BrightnessSchedule {
+    /**
+     * Brightness that leaves the screen at the user's own setting. The same value as
+     * WindowManager.LayoutParams.BRIGHTNESS_OVERRIDE_NONE.
+     */
+    public static final float SYSTEM_BRIGHTNESS = -1.0f;
+
+    /**
+     * Window brightness of each step, between 0 and 1, before it is capped at the user's own brightness. Stops short
+     * of 0, which turns the backlight off on some devices.
+     */
+    private static final float[] SCREEN_BRIGHTNESS = {SYSTEM_BRIGHTNESS, 0.5f, 0.3f, 0.15f, 0.08f, 0.04f};
+    /** Alpha of the clock text in each step. */
+    private static final float[] CLOCK_ALPHA = {1.0f, 0.9f, 0.8f, 0.7f, 0.6f, 0.5f};
+    /** How much darker than normal the icons are in each step, as for {@link IconLayout#setAlphaDecrement(int)} */
+    private static final int[] ICON_ALPHA_DECREMENT = {0, 5, 10, 15, 20, 20};
+
+    /** The current step. 0 is the brightest. */
+    private int mStep = 0;
+    /** The user's own brightness, between 0 and 1. No step is brighter than this. */
+    private float mUserBrightness = 1.0f;
+
+    /**
+     * Set the brightness the user has chosen for the device, which caps every step.
+     * @param brightness between 0 and 1.
+     */
+    public void setUserBrightness(float brightness) {
+        mUserBrightness = brightness;
+    }
+
+    /**
+     * Go to the next dimmer step, if there is one.
+     * @return true if anything changed.
+     */
+    public boolean advance() {
+        if (mStep >= SCREEN_BRIGHTNESS.length - 1) {
+            return false;
+        }
+        mStep++;
+        return true;
+    }
+
+    /**
+     * Go back to the brightest step.
+     * @return true if anything changed.
+     */
+    public boolean reset() {
+        if (mStep == 0) {
+            return false;
+        }
+        mStep = 0;
+        return true;
+    }
+
+    /** Returns the current step. 0 is the brightest. */
+    public int getStep() {
+        return mStep;
+    }
+
+    /** Returns the number of steps. */
+    public int getStepCount() {
+        return SCREEN_BRIGHTNESS.length;
+    }
+
+    /** Returns the window brightness, between 0 and 1, or {@link #SYSTEM_BRIGHTNESS}. */
+    public float getScreenBrightness() {
+        final float brightness = SCREEN_BRIGHTNESS[mStep];
+        if (brightness == SYSTEM_BRIGHTNESS) {
+            return SYSTEM_BRIGHTNESS;
+        }
+        return Math.min(brightness, mUserBrightness);
+    }
+
+    /** Returns the alpha of the clock text, between 0 and 1. */
+    public float getClockAlpha() {
+        return CLOCK_ALPHA[mStep];
+    }
+
+    /** Returns how much darker than normal the icons are, as for {@link IconLayout#setAlphaDecrement(int)} */
+    public int getIconAlphaDecrement() {
+        return ICON_ALPHA_DECREMENT[mStep];
+    }
+}
@@ -0,0 +1,487 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Build;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.GestureDetector;
+import android.view.HapticFeedbackConstants;
+import android.view.MotionEvent;
+import android.view.SoundEffectConstants;
+import android.view.View;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * The whole clock screen in one view: the time, the cloud and the note, drawn straight onto the canvas. The top
+ * half of the screen is the music button and the bottom half is the white noise button.
+ *
+ * <p>Moving the clock or the icons changes a few numbers and redraws this one view, with no layout pass. The icon
+ * bitmaps are decoded once and kept for as long as the view lives.</p>
+ *
+ * <p>The clock wakes once a minute, just after the minute turns, and formats the time into a reused buffer. It is
+ * only redrawn if the digits changed. Every digit is drawn in a cell as wide as the widest digit, so the clock
+ * box has the same size whatever the time, and a new time never moves anything.</p>
+ */
+public class ClockFaceView extends View {
+    /** The top half of the screen, which plays music. */
+    public static final int ZONE_MUSIC = 0;
+    /** The bottom half of the screen, which plays white noise. */
+    public static final int ZONE_WHITE_NOISE = 1;
+
+    /** Size of the clock text. */
+    private static final float TEXT_SIZE_DIP = 120;
+    /** Length of a minute in milliseconds. */
+    private static final long MINUTE_MILLIS = 60 * 1000;
+    /** The characters a time is made of. Their widths are measured once. */
+    private static final String GLYPHS = "0123456789:";
+    /** Length of each half of the fade when things move: out, and then in again. */
+    private static final long FADE_MILLIS = 400;
+    /** The SDK version */
+    private final static int SDK = Build.VERSION.SDK_INT;
+
+    /**
+     * Hears about taps on the two halves of the screen.
+     */
+    public interface OnZoneListener {
+        /**
+         * A half of the screen was tapped.
+         * @param zone {@link #ZONE_MUSIC} or {@link #ZONE_WHITE_NOISE}
+         */
+        void onZoneClick(int zone);
+
+        /**
+         * A half of the screen was held down.
+         * @param zone {@link #ZONE_MUSIC} or {@link #ZONE_WHITE_NOISE}
+         */
+        void onZoneLongClick(int zone);
+    }
+
+    /** Draws the time. */
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    /** Draws the box behind the time, so that it hides the icons when they pass under it. */
+    private final Paint mClockBackgroundPaint = new Paint();
+    /** Draws the icons, with their alpha. */
+    private final Paint mIconPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    /** Color of the screen. */
+    private final int mBlack;
+    /** Distance from the top of the clock box to the baseline of the text. */
+    private final float mTextTop;
+    /** Height of the clock box. */
+    private final float mTextHeight;
+
+    /** The cloud, shown in the bottom half when white noise isn't playing. */
+    private final Bitmap mRain;
+    /** The note, shown in the top half when music isn't playing. */
+    private final Bitmap mMusic;
+    /** Shown in place of whatever is playing. */
+    private final Bitmap mPause;
+    /** The icon in the bottom half right now. */
+    private Bitmap mCloud;
+    /** The icon in the top half right now. */
+    private Bitmap mNote;
+    /** Where the icons are and how bright they are. */
+    private final IconLayout mIconLayout = new IconLayout();
+
+    /** Width of each character in {@link #GLYPHS}. */
+    private final float[] mGlyphWidths = new float[GLYPHS.length()];
+    /** Width of the cell each digit is drawn in: the width of the widest digit. */
+    private final float mDigitCellWidth;
+    /** Width of the clock box, which fits the longest time. */
+    private final float mClockWidth;
+    /** The time as displayed. */
+    private final char[] mText = new char[ClockFormat.MAX_LENGTH];
+    /** Number of characters in {@link #mText}. */
+    private int mTextLength = 0;
+    /** The time just formatted, to compare with {@link #mText}. */
+    private final char[] mNewText = new char[ClockFormat.MAX_LENGTH];
+    /** Left edge of the clock box. */
+    private float mClockX = 0;
+    /** Top edge of the clock box. */
+    private float mClockY = 0;
+
+    /** The current time. */
+    private Calendar mTime;
+    /** The time zone set with {@link #setTimeZone(String)}, or null to follow the system. */
+    private String mTimeZone;
+    /** True if this view is currently attached to the window. */
+    private boolean mAttached = false;
+
+    /** Turns touches into taps and long presses. */
+    private final GestureDetector mGestures;
+    /** Told about taps, or null. */
+    private OnZoneListener mListener;
+
+    public ClockFaceView(Context context) {
+        this(context, null);
+    }
+
+    public ClockFaceView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP,
+                getResources().getDisplayMetrics()));
+        final Paint.FontMetrics metrics = mTextPaint.getFontMetrics();
+        mTextTop = -metrics.top;
+        mTextHeight = metrics.bottom - metrics.top;
+        final char[] glyphs = GLYPHS.toCharArray();
+        float widest = 0;
+        for (int i = 0; i < glyphs.length; i++) {
+            mGlyphWidths[i] = mTextPaint.measureText(glyphs, i, 1);
+            if (glyphs[i] != ':') {
+                widest = Math.max(widest, mGlyphWidths[i]);
+            }
+        }
+        mDigitCellWidth = widest;
+        mClockWidth = (ClockFormat.MAX_LENGTH - 1) * widest + mGlyphWidths[GLYPHS.indexOf(':')];
+        mClockBackgroundPaint.setColor(getResources().getColor(R.color.blackSemiTransparent));
+        mBlack = getResources().getColor(R.color.black);
+        mRain = BitmapFactory.decodeResource(getResources(), R.drawable.rain);
+        mMusic = BitmapFactory.decodeResource(getResources(), R.drawable.music);
+        mPause = BitmapFactory.decodeResource(getResources(), R.drawable.pause);
+        mCloud = mRain;
+        mNote = mMusic;
+        mIconLayout.setAlphaDecrement(0);
+        mGestures = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                // Claim every touch, or we never hear about the tap.
+                return true;
+            }
+
+            @Override
+            public boolean onSingleTapUp(MotionEvent e) {
+                playSoundEffect(SoundEffectConstants.CLICK);
+                if (mListener != null) {
+                    mListener.onZoneClick(getZone(e));
+                }
+                return true;
+            }
+
+            @Override
+            public void onLongPress(MotionEvent e) {
+                performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+                if (mListener != null) {
+                    mListener.onZoneLongClick(getZone(e));
+                }
+            }
+        });
+        createTime(null);
+    }
+
+    /**
+     * Set who hears about taps on the two halves of the screen.
+     */
+    public void setOnZoneListener(OnZoneListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the half of the screen that this touch is in.
+     */
+    private int getZone(MotionEvent e) {
+        return (e.getY() < getHeight() / 2) ? ZONE_MUSIC : ZONE_WHITE_NOISE;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        return mGestures.onTouchEvent(event);
+    }
+
+    /**
+     * Show the icons for what the {@link AudioService} is doing.
+     * @param state {@link AudioService#MUSIC}, {@link AudioService#WHITE_NOISE}, {@link AudioService#NOISE}, or
+     *              {@link AudioService#SILENCE}
+     */
+    public void setState(int state) {
+        final Bitmap cloud;
+        final Bitmap note;
+        switch (state) {
+            case AudioService.MUSIC:
+                cloud = mRain;
+                note = mPause;
+                break;
+            case AudioService.WHITE_NOISE:
+            case AudioService.NOISE:
+                cloud = mPause;
+                note = mMusic;
+                break;
+            case AudioService.MUSIC_AND_NOISE:
+                cloud = mPause;
+                note = mPause;
+                break;
+            default:
+                cloud = mRain;
+                note = mMusic;
+                break;
+        }
+        if (cloud != mCloud || note != mNote) {
+            mCloud = cloud;
+            mNote = note;
+            invalidate();
+        }
+    }
+
+    /**
+     * Move the clock and the icons somewhere else, fading out and in again where the platform can do that on a
+     * hardware layer.
+     * @param clockX where the clock goes across the screen, in [0, 1).
+     * @param clockY where the clock goes down the screen, in [0, 1).
+     * @param iconX where the icons go across the screen, in [0, 1).
+     * @param alphaDecrement how much to darken the icons, as for {@link IconLayout#compute}
+     */
+    public void moveTo(final double clockX, final double clockY, final double iconX, final int alphaDecrement) {
+        if (getWidth() == 0 || getHeight() == 0) {
+            // Not laid out yet.
+            return;
+        }
+        if (SDK < 16) {
+            place(clockX, clockY, iconX, alphaDecrement);
+            return;
+        }
+        // The content doesn't change during the fade, so it is drawn into the layer once, and the fade only
+        // composites the layer.
+        animate().alpha(0).setDuration(FADE_MILLIS).withLayer().withEndAction(new Runnable() {
+            @Override
+            public void run() {
+                place(clockX, clockY, iconX, alphaDecrement);
+                animate().alpha(1).setDuration(FADE_MILLIS).withLayer();
+            }
+        });
+    }
+
+    /**
+     * Put the clock and the icons in their new places, and redraw.
+     */
+    private void place(double clockX, double clockY, double iconX, int alphaDecrement) {
+        final int width = getWidth();
+        final int height = getHeight();
+        mClockX = (float) (clockX * (width - mClockWidth));
+        mClockY = (float) (clockY * (height - mTextHeight));
+        mIconLayout.compute(width, height, new Pair(mCloud.getWidth(), mCloud.getHeight()),
+                new Pair(mNote.getWidth(), mNote.getHeight()), iconX, alphaDecrement);
+        invalidate();
+    }
+
+    /**
+     * Change the alpha of the clock text. Only the clock is redrawn.
+     * @param alpha between 0 and 1.
+     */
+    public void setClockAlpha(float alpha) {
+        final int value = (int) (alpha * 255);
+        if (value == mTextPaint.getAlpha()) {
+            return;
+        }
+        mTextPaint.setAlpha(value);
+        invalidateClock();
+    }
+
+    /**
+     * Change the brightness of the icons without moving them.
+     * @param alphaDecrement how much to darken the icons, as for {@link IconLayout#compute}
+     */
+    public void setIconAlphaDecrement(int alphaDecrement) {
+        mIconLayout.setAlphaDecrement(alphaDecrement);
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        // The only fill on the screen: the window has no background of its own.
+        canvas.drawColor(mBlack);
+        final IconLayout icons = mIconLayout;
+        mIconPaint.setAlpha((int) (icons.mCloudAlpha * 255));
+        canvas.drawBitmap(mCloud, icons.mCloudX, icons.mCloudY, mIconPaint);
+        mIconPaint.setAlpha((int) (icons.mNoteAlpha * 255));
+        canvas.drawBitmap(mNote, icons.mNoteX, icons.mNoteY, mIconPaint);
+        canvas.drawRect(mClockX, mClockY, mClockX + mClockWidth, mClockY + mTextHeight, mClockBackgroundPaint);
+        drawTime(canvas);
+    }
+
+    /**
+     * Draw the time centered in the clock box, each character centered in its own cell.
+     */
+    private void drawTime(Canvas canvas) {
+        final char[] text = mText;
+        final int length = mTextLength;
+        float textWidth = 0;
+        for (int i = 0; i < length; i++) {
+            textWidth += getCellWidth(text[i]);
+        }
+        float x = mClockX + (mClockWidth - textWidth) / 2;
+        final float y = mClockY + mTextTop;
+        for (int i = 0; i < length; i++) {
+            final float cell = getCellWidth(text[i]);
+            canvas.drawText(text, i, 1, x + (cell - getGlyphWidth(text[i])) / 2, y, mTextPaint);
+            x += cell;
+        }
+    }
+
+    /**
+     * Returns the width of the cell this character is drawn in.
+     */
+    private float getCellWidth(char c) {
+        return (c == ':') ? getGlyphWidth(c) : mDigitCellWidth;
+    }
+
+    /**
+     * Returns the measured width of a digit or the colon.
+     */
+    private float getGlyphWidth(char c) {
+        return (c == ':') ? mGlyphWidths[GLYPHS.length() - 1] : mGlyphWidths[c - '0'];
+    }
+
+    /**
+     * Receive changes to the time or the timezone and change our clock accordingly. The minute ticks themselves
+     * come from {@link #mTicker}.
+     */
+    private final BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (mTimeZone == null && Intent.ACTION_TIMEZONE_CHANGED.equals(intent.getAction())) {
+                final String timeZone = intent.getStringExtra("time-zone");
+                createTime(timeZone);
+            }
+            onTimeChanged();
+            // The next minute may be closer or further away now.
+            scheduleTick();
+        }
+    };
+
+    /**
+     * Updates the clock, and runs again when the next minute starts.
+     */
+    private final Runnable mTicker = new Runnable() {
+        @Override
+        public void run() {
+            onTimeChanged();
+            scheduleTick();
+        }
+    };
+
+    /**
+     * Run {@link #mTicker} when the next minute starts, replacing any earlier schedule. Minutes start at the same
+     * instant in every time zone that is a whole number of minutes from UTC, which is all of them.
+     */
+    private void scheduleTick() {
+        removeCallbacks(mTicker);
+        final long now = System.currentTimeMillis();
+        // A tick that comes a little early finds the same digits, and runs again a moment later.
+        postDelayed(mTicker, MINUTE_MILLIS - (now % MINUTE_MILLIS));
+    }
+
+    /**
+     * Initialize our time object to the current or default time zone
+     * @param timeZone either a time zone specified in {@link TimeZone#getTimeZone(String)} or null to get the default
+     *                 locale.
+     */
+    private void createTime(String timeZone) {
+        if (timeZone != null) {
+            mTime = Calendar.getInstance(TimeZone.getTimeZone(timeZone));
+        } else {
+            mTime = Calendar.getInstance();
+        }
+    }
+
+    /**
+     * Set the clock to the system time, and redraw it if the digits changed. Allocates nothing.
+     */
+    private void onTimeChanged() {
+        mTime.setTimeInMillis(System.currentTimeMillis());
+        // Show hours : minutes only
+        final int length = ClockFormat.format(mTime, mNewText);
+        boolean changed = (length != mTextLength);
+        for (int i = 0; i < length && !changed; i++) {
+            changed = (mNewText[i] != mText[i]);
+        }
+        if (!changed) {
+            return;
+        }
+        System.arraycopy(mNewText, 0, mText, 0, length);
+        mTextLength = length;
+        invalidateClock();
+    }
+
+    /**
+     * Redraw only the clock box.
+     */
+    private void invalidateClock() {
+        invalidate((int) mClockX, (int) mClockY, (int) Math.ceil(mClockX + mClockWidth),
+                (int) Math.ceil(mClockY + mTextHeight));
+    }
+
+    /**
+     * Sets the specified time zone to use in this clock. When the time zone
+     * is set through this method, system time zone changes (when the user
+     * sets the time zone in settings for instance) will be ignored.
+     *
+     * @param timeZone The desired time zone's ID as specified in {@link TimeZone}
+     *                 or null to user the time zone specified by the user
+     *                 (system time zone)
+     *
+     * @see java.util.TimeZone#getAvailableIDs()
+     * @see TimeZone#getTimeZone(String)
+     */
+    public void setTimeZone(String timeZone) {
+        mTimeZone = timeZone;
+        createTime(timeZone);
+        onTimeChanged();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (!mAttached) {
+            mAttached = true;
+            registerReceiver();
+        }
+        onTimeChanged();
+        scheduleTick();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mAttached) {
+            unregisterReceiver();
+            removeCallbacks(mTicker);
+            mAttached = false;
+        }
+    }
+
+    private void registerReceiver() {
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        getContext().registerReceiver(mIntentReceiver, filter, null, getHandler());
+    }
+
+    private void unregisterReceiver() {
+        getContext().unregisterReceiver(mIntentReceiver);
+    }
+}
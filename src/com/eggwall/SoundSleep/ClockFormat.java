@@ -0,0 +1,62 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import java.util.Calendar;
+
+/**
+ * Formats the time the way the clock shows it: hours and minutes, h:mm, even in 24 hour mode.
+ */
+public class ClockFormat {
+    /** Not instantiable, only static methods. */
+    private ClockFormat() {
+    }
+
+    /** The most characters a formatted time takes: "12:59". */
+    public static final int MAX_LENGTH = 5;
+
+    /**
+     * Returns the time as h:mm, with hours from 1 to 12.
+     */
+    public static String format(Calendar time) {
+        final char[] text = new char[MAX_LENGTH];
+        return new String(text, 0, format(time, text));
+    }
+
+    /**
+     * Writes the time as h:mm, with hours from 1 to 12, without allocating anything.
+     * @param time the time to format.
+     * @param out receives the characters. At least {@link #MAX_LENGTH} long.
+     * @return the number of characters written.
+     */
+    public static int format(Calendar time, char[] out) {
+        int hour = time.get(Calendar.HOUR);
+        if (hour == 0) {
+            hour = 12;
+        }
+        final int minute = time.get(Calendar.MINUTE);
+        int length = 0;
+        if (hour >= 10) {
+            out[length++] = (char) ('0' + hour / 10);
+        }
+        out[length++] = (char) ('0' + hour % 10);
+        out[length++] = ':';
+        out[length++] = (char) ('0' + minute / 10);
+        out[length++] = (char) ('0' + minute % 10);
+        return length;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+/**
+ * Volume curves for fading audio out in a few coarse steps. Loudness is perceived logarithmically, so the curve
+ * falls evenly in decibels rather than in amplitude: a linear amplitude fade sounds like nothing happens for most
+ * of its length and then drops off a cliff.
+ *
+ * <p>Crossfades between two songs use a different pair of curves, which keep the combined power constant.</p>
+ */
+public class FadeCurve {
+    /** Attenuation at the last audible step, in decibels. */
+    private static final double FLOOR_DB = -40.0;
+
+    /** Not instantiable, only static methods. */
+    private FadeCurve() {
+    }
+
+    /**
+     * Returns the volume for one step of a fade out.
+     * @param step the step, from 0 (full volume) to steps (silence).
+     * @param steps the total number of steps in the fade.
+     * @return linear volume between 0 and 1, suitable for {@link android.media.MediaPlayer#setVolume(float, float)}
+     */
+    public static float fadeOut(int step, int steps) {
+        if (step <= 0 || steps <= 0) {
+            return 1.0f;
+        }
+        if (step >= steps) {
+            return 0.0f;
+        }
+        final double db = FLOOR_DB * step / (steps - 1);
+        return (float) Math.pow(10.0, db / 20.0);
+    }
+
+    /**
+     * Returns the volume of the song fading out, for one step of a crossfade. With {@link #crossfadeIn} the total
+     * power stays the same all through the crossfade, so the overlap neither dips nor swells.
+     * @param step the step, from 0 (only the old song) to steps (only the new song).
+     * @param steps the total number of steps in the crossfade.
+     */
+    public static float crossfadeOut(int step, int steps) {
+        return (float) Math.cos(crossfadeAngle(step, steps));
+    }
+
+    /**
+     * Returns the volume of the song fading in, for one step of a crossfade.
+     * @param step the step, from 0 (only the old song) to steps (only the new song).
+     * @param steps the total number of steps in the crossfade.
+     */
+    public static float crossfadeIn(int step, int steps) {
+        return (float) Math.sin(crossfadeAngle(step, steps));
+    }
+
+    /**
+     * Returns how far a crossfade has gone, as an angle from 0 to a right angle.
+     */
+    private static double crossfadeAngle(int step, int steps) {
+        if (step <= 0) {
+            return 0.0;
+        }
+        if (step >= steps) {
+            return Math.PI / 2;
+        }
+        return Math.PI / 2 * step / steps;
+    }
+}
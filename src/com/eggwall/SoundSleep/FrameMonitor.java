@@ -0,0 +1,173 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.eggwall.SoundSleep;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Printer;
+import android.view.Choreographer;
+
+import java.io.PrintWriter;
+
+/**
+ * Measures how smoothly the clock screen draws, for debug builds. Frame times are recorded for a second after each
+ * change to the screen, and the main thread is watched all the time for messages that take too long. Both end up in
+ * {@link LatencyHistogram}s that {@link #dump(PrintWriter)} prints.
+ *
+ * <p>Frames are only watched around changes so that the monitor doesn't wake up at every vsync all night long.
+ * Stalls are found through the main looper's message logging, which formats a string per message: fine for a
+ * debug build, not for every user. Needs SDK 16 for {@link Choreographer}. Only call this from the main thread.</p>
+ */
+public class FrameMonitor implements Choreographer.FrameCallback, Printer {
+    /** The clock and the icons moved to a new place. */
+    public static final int EVENT_MOVE = 0;
+    /** The icons changed to show what is playing. */
+    public static final int EVENT_STATE = 1;
+    /** Number of events. */
+    private static final int EVENT_COUNT = 2;
+    /** Names of each event, for dump(). */
+    private static final String[] EVENT_NAMES = {"move", "state"};
+
+    /** Frames are recorded for this long after an event, which covers the fade out and in of a move. */
+    private static final long WATCH_NANOS = 1000L * 1000 * 1000;
+    /** Time between frames at 60 frames a second. */
+    private static final long FRAME_NANOS = 1000L * 1000 * 1000 / 60;
+    /** Main thread messages that take longer than this are stalls. */
+    private static final long STALL_MILLIS = 50;
+
+    /** Time between frames after each event, in milliseconds, indexed by event. */
+    private final LatencyHistogram[] mFrames = new LatencyHistogram[EVENT_COUNT];
+    /** Frames that were due but not drawn after each event, indexed by event. */
+    private final int[] mDropped = new int[EVENT_COUNT];
+    /** Length of main thread messages that took longer than {@link #STALL_MILLIS}. */
+    private final LatencyHistogram mStalls = new LatencyHistogram();
+    /** True between {@link #start()} and {@link #stop()}. */
+    private boolean mStarted = false;
+    /** The event whose frames are being recorded, or -1. */
+    private int mWatching = -1;
+    /** {@link System#nanoTime()} after which frames are no longer recorded. */
+    private long mWatchUntilNanos = 0;
+    /** Frame time of the last frame seen, or 0 if this is the first frame after an event. */
+    private long mLastFrameNanos = 0;
+    /** {@link SystemClock#uptimeMillis()} when the current main thread message started, or -1. */
+    private long mDispatchStartedAt = -1;
+
+    public FrameMonitor() {
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            mFrames[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Start watching the main thread for stalls. Frames are watched after calls to {@link #watch(int)}.
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        Looper.getMainLooper().setMessageLogging(this);
+    }
+
+    /**
+     * Stop watching the main thread and frames. What was recorded is kept.
+     */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        Looper.getMainLooper().setMessageLogging(null);
+        Choreographer.getInstance().removeFrameCallback(this);
+        mWatching = -1;
+        mDispatchStartedAt = -1;
+    }
+
+    /**
+     * Record frames for a while after this event. A new event replaces the one being watched.
+     * @param event one of {@link #EVENT_MOVE} or {@link #EVENT_STATE}
+     */
+    public void watch(int event) {
+        if (!mStarted) {
+            return;
+        }
+        if (mWatching < 0) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+        mWatching = event;
+        mWatchUntilNanos = System.nanoTime() + WATCH_NANOS;
+        mLastFrameNanos = 0;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mWatching < 0) {
+            return;
+        }
+        if (mLastFrameNanos != 0) {
+            final long interval = frameTimeNanos - mLastFrameNanos;
+            mFrames[mWatching].record(interval / (1000 * 1000));
+            // A frame that came late by a whole frame or more means that many frames weren't drawn.
+            mDropped[mWatching] += Math.max(0, (int) ((interval + FRAME_NANOS / 2) / FRAME_NANOS) - 1);
+        }
+        mLastFrameNanos = frameTimeNanos;
+        if (frameTimeNanos < mWatchUntilNanos) {
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            mWatching = -1;
+        }
+    }
+
+    /**
+     * Called by the main looper before and after each message it dispatches.
+     */
+    @Override
+    public void println(String line) {
+        if (line.startsWith(">>>>>")) {
+            mDispatchStartedAt = SystemClock.uptimeMillis();
+        } else if (line.startsWith("<<<<<") && mDispatchStartedAt >= 0) {
+            final long millis = SystemClock.uptimeMillis() - mDispatchStartedAt;
+            if (millis > STALL_MILLIS) {
+                mStalls.record(millis);
+            }
+            mDispatchStartedAt = -1;
+        }
+    }
+
+    /**
+     * Forget everything recorded.
+     */
+    public void reset() {
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            mFrames[i].reset();
+            mDropped[i] = 0;
+        }
+        mStalls.reset();
+    }
+
+    /**
+     * Print the histograms, one per line.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Frame monitor:");
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            writer.println("  frames after " + EVENT_NAMES[i] + " (ms): " + mFrames[i] + " dropped=" + mDropped[i]);
+        }
+        writer.println("  stalls over " + STALL_MILLIS + "ms: " + mStalls);
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+/**
+ * Works out where the cloud and the note icons go, and how bright they are. The note sits at the top of the
+ * screen, the cloud at the bottom, and they mirror each other left to right to increase visual separation.
+ *
+ * <p>The results are kept in fields so one instance can be reused for every move.</p>
+ */
+public class IconLayout {
+    /** Alpha of the cloud at full brightness. */
+    public static final float CLOUD_ALPHA = .35f;
+    /** Alpha of the note at full brightness. */
+    public static final float NOTE_ALPHA = .50f;
+
+    /** Left edge of the cloud. */
+    public int mCloudX;
+    /** Top edge of the cloud. */
+    public int mCloudY;
+    /** Left edge of the note. */
+    public int mNoteX;
+    /** Top edge of the note. */
+    public int mNoteY;
+    /** Alpha of the cloud. */
+    public float mCloudAlpha;
+    /** Alpha of the note. */
+    public float mNoteAlpha;
+
+    /**
+     * Place the icons.
+     * @param width width of the screen.
+     * @param height height of the screen.
+     * @param cloud width and height of the cloud.
+     * @param note width and height of the note.
+     * @param locationX a number in [0, 1) that decides the horizontal position.
+     * @param alphaDecrement how much to darken the icons, in hundredths of alpha.
+     */
+    public void compute(int width, int height, Pair cloud, Pair note, double locationX, int alphaDecrement) {
+        // The top half of the screen is for the note.
+        mNoteY = 0;
+        // The bottom half of the screen is for white noise.
+        mCloudY = height - cloud.mSecond;
+        mCloudX = (int) (locationX * (width - cloud.mFirst));
+        mNoteX = (int) ((1 - locationX) * (width - note.mFirst));
+        setAlphaDecrement(alphaDecrement);
+    }
+
+    /**
+     * Change only the brightness of the icons, leaving them where they are.
+     * @param alphaDecrement how much to darken the icons, in hundredths of alpha.
+     */
+    public void setAlphaDecrement(int alphaDecrement) {
+        mCloudAlpha = (float) (CLOUD_ALPHA - (alphaDecrement / 100.0));
+        mNoteAlpha = (float) (NOTE_ALPHA - (alphaDecrement / 100.0));
+    }
+}
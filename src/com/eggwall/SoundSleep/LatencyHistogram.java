@@ -0,0 +1,136 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.eggwall.SoundSleep;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Counts latencies in fixed buckets that grow roughly by half each step, from 1ms to 10s, so that percentiles
+ * can be read back without keeping every sample. A percentile is reported as the upper bound of the bucket it
+ * falls in, or the largest sample if that is lower, which errs on the slow side by at most half.
+ */
+public class LatencyHistogram {
+    /** Upper bound of each bucket, inclusive, in milliseconds. One more bucket holds everything slower. */
+    private static final long[] BOUNDS = {
+            1, 2, 3, 5, 7, 10, 15, 20, 30, 50, 70, 100, 150, 200, 300, 500, 700, 1000, 1500, 2000, 3000, 5000,
+            7000, 10000
+    };
+
+    /** Number of samples in each bucket. */
+    private final int[] mCounts = new int[BOUNDS.length + 1];
+    /** Number of samples in all buckets. */
+    private int mCount = 0;
+    /** Largest sample, in milliseconds. */
+    private long mMax = 0;
+
+    /**
+     * Count one latency.
+     * @param millis the latency in milliseconds. Negative values, from clocks that don't agree, count as 0.
+     */
+    public void record(long millis) {
+        int bucket = 0;
+        while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+            bucket++;
+        }
+        mCounts[bucket]++;
+        mCount++;
+        mMax = Math.max(mMax, millis);
+    }
+
+    /** Returns the number of latencies counted. */
+    public int getCount() {
+        return mCount;
+    }
+
+    /** Returns the largest latency counted, in milliseconds. */
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Returns the latency that this fraction of samples were at or below, rounded up to a bucket bound.
+     * @param fraction between 0 and 1, such as 0.95 for the 95th percentile.
+     * @return the latency in milliseconds, or -1 if nothing was counted.
+     */
+    public long getPercentile(double fraction) {
+        if (mCount == 0) {
+            return -1;
+        }
+        // The rank of the sample we want, counting from 1.
+        final long rank = Math.max(1, (long) Math.ceil(fraction * mCount));
+        long seen = 0;
+        for (int bucket = 0; bucket < BOUNDS.length; bucket++) {
+            seen += mCounts[bucket];
+            if (seen >= rank) {
+                return Math.min(BOUNDS[bucket], mMax);
+            }
+        }
+        // The last bucket has no upper bound.
+        return mMax;
+    }
+
+    /** Forget all samples. */
+    public void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mMax = 0;
+    }
+
+    /**
+     * Write the counts, to be read back by {@link #readFrom(DataInputStream)}.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(mCounts.length);
+        for (int count : mCounts) {
+            out.writeInt(count);
+        }
+        out.writeLong(mMax);
+    }
+
+    /**
+     * Replace the counts with ones written by {@link #writeTo(DataOutputStream)}.
+     * @throws IOException if the stream can't be read, or was written with different buckets.
+     */
+    public void readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != mCounts.length) {
+            throw new IOException("Histogram has different buckets");
+        }
+        int total = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            final int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Corrupt histogram");
+            }
+            mCounts[i] = count;
+            total += count;
+        }
+        mCount = total;
+        mMax = in.readLong();
+    }
+
+    /**
+     * Returns the percentiles in a short form for dump(), like "n=12 p50=70 p95=280 p99=280 max=280".
+     */
+    @Override
+    public String toString() {
+        return "n=" + mCount + " p50=" + getPercentile(0.50) + " p95=" + getPercentile(0.95) + " p99="
+                + getPercentile(0.99) + " max=" + mMax;
+    }
+}
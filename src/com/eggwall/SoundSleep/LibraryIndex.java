@@ -0,0 +1,594 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+
+/**
+ * An index of the audio files in the music directory and all its subdirectories, kept in a compact file so that it
+ * survives the process.
+ *
+ * <p>Each directory is stored with its modification time. A directory's time changes when files are added to it,
+ * removed from it or renamed in it, so a later {@link #scan()} only lists and stats the files of directories whose
+ * time has changed. On a library that hasn't changed, a scan costs one stat per directory, and one per file that
+ * failed to play.</p>
+ *
+ * <p>A file overwritten in place keeps its name, and doesn't change the time of its directory. Files that failed
+ * to play are statted on every scan anyway, so a fixed copy is tried again. Other files keep what was learnt about
+ * them: the duration is learnt again the next time the file plays, but a loudness measured before the file was
+ * overwritten stays until the file is renamed or its directory changes. {@link LibraryWatcher} sees overwrites
+ * that happen while music plays.</p>
+ *
+ * <p>The duration and playability of a file are learnt when it is played, rather than probed during the scan, so
+ * indexing never has to open a media file. Loudness is measured separately, in the background, and stored here so
+ * that each file is only measured once.</p>
+ *
+ * <p>While music plays, {@link LibraryWatcher} keeps the index current one file at a time with {@link #addFile} and
+ * {@link #removeFile}, so that a change on the card never needs a scan.</p>
+ */
+public class LibraryIndex {
+    /** File extensions that we try to play, in lower case. */
+    private static final String[] AUDIO_EXTENSIONS = {
+            ".mp3", ".ogg", ".oga", ".m4a", ".aac", ".flac", ".wav", ".mid", ".midi", ".amr", ".3gp", ".mp4",
+            ".opus", ".mka", ".wma"
+    };
+
+    /** Identifies our files: "SSLI" */
+    private static final int MAGIC = 0x53534c49;
+    /** Bump this whenever the file layout changes. */
+    private static final int VERSION = 2;
+    /** The relative path of the root directory. */
+    private static final String ROOT = "";
+    /** A duration that hasn't been learnt yet. */
+    public static final long UNKNOWN_DURATION = -1;
+    /** A peak for a file whose loudness hasn't been measured yet. */
+    public static final float UNKNOWN_PEAK = -1;
+
+    /** One audio file in the library. */
+    public static class Entry {
+        /** Path relative to the music directory. */
+        public final String mPath;
+        /** Size in bytes. */
+        public final long mSize;
+        /** Modification time, as from {@link File#lastModified()}. */
+        public final long mModified;
+        /** Duration in milliseconds, or {@link #UNKNOWN_DURATION}. */
+        public long mDuration;
+        /** False if the file failed to play. */
+        public boolean mPlayable;
+        /** Loudness in decibels relative to full scale, as from {@link LoudnessMeter#getLoudnessDb()} */
+        public float mLoudness;
+        /**
+         * Highest sample level, between 0 and 1, or {@link #UNKNOWN_PEAK} if not measured yet. 0 if the file is
+         * silent or could not be measured.
+         */
+        public float mPeak;
+
+        Entry(String path, long size, long modified, long duration, boolean playable, float loudness, float peak) {
+            mPath = path;
+            mSize = size;
+            mModified = modified;
+            mDuration = duration;
+            mPlayable = playable;
+            mLoudness = loudness;
+            mPeak = peak;
+        }
+    }
+
+    /** One directory in the library. */
+    private static class Directory {
+        /** Path relative to the music directory. */
+        final String mPath;
+        /** Modification time when the directory was last listed. */
+        final long mModified;
+        /** Relative paths of the subdirectories. */
+        final ArrayList<String> mChildren = new ArrayList<String>();
+        /** Audio files directly in this directory, by relative path, so that one can be removed in O(1). */
+        final LinkedHashMap<String, Entry> mFiles = new LinkedHashMap<String, Entry>();
+
+        Directory(String path, long modified) {
+            mPath = path;
+            mModified = modified;
+        }
+    }
+
+    /** The music directory. */
+    private final File mRoot;
+    /** Where the index is stored. */
+    private final File mIndexFile;
+    /** All directories, by relative path, in the order they were scanned. */
+    private LinkedHashMap<String, Directory> mDirectories = new LinkedHashMap<String, Directory>();
+    /** All files, by relative path. */
+    private HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    /** True if the index has changed since it was loaded or saved. */
+    private boolean mDirty = false;
+    /** Number of directories listed in the last scan. */
+    private int mListedCount = 0;
+    /** Number of files statted in the last scan. */
+    private int mStattedCount = 0;
+
+    /**
+     * @param root the music directory.
+     * @param indexFile where the index is stored between runs.
+     */
+    public LibraryIndex(File root, File indexFile) {
+        mRoot = root;
+        mIndexFile = indexFile;
+    }
+
+    /**
+     * Returns true if the name looks like an audio file we can play.
+     */
+    public static boolean isAudioFile(String name) {
+        if (name.startsWith(".")) {
+            return false;
+        }
+        final String lower = name.toLowerCase(Locale.US);
+        for (String extension : AUDIO_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the index from disk. A missing, corrupt, or out of date index is ignored, and the next scan walks the
+     * whole tree.
+     * @return true if an index was read.
+     */
+    public boolean load() {
+        if (!mIndexFile.isFile()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !mRoot.getPath().equals(in.readUTF())) {
+                return false;
+            }
+            final LinkedHashMap<String, Directory> directories = new LinkedHashMap<String, Directory>();
+            final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+            final int directoryCount = in.readInt();
+            for (int i = 0; i < directoryCount; i++) {
+                final Directory d = new Directory(in.readUTF(), in.readLong());
+                final int childCount = in.readInt();
+                for (int j = 0; j < childCount; j++) {
+                    d.mChildren.add(in.readUTF());
+                }
+                final int fileCount = in.readInt();
+                for (int j = 0; j < fileCount; j++) {
+                    final Entry e = new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readLong(),
+                            in.readBoolean(), in.readFloat(), in.readFloat());
+                    d.mFiles.put(e.mPath, e);
+                    entries.put(e.mPath, e);
+                }
+                directories.put(d.mPath, d);
+            }
+            mDirectories = directories;
+            mEntries = entries;
+            mDirty = false;
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the index to disk, if it has changed.
+     */
+    public void save() throws IOException {
+        if (!mDirty) {
+            return;
+        }
+        final File temp = new File(mIndexFile.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mRoot.getPath());
+            out.writeInt(mDirectories.size());
+            for (Directory d : mDirectories.values()) {
+                out.writeUTF(d.mPath);
+                out.writeLong(d.mModified);
+                out.writeInt(d.mChildren.size());
+                for (String child : d.mChildren) {
+                    out.writeUTF(child);
+                }
+                out.writeInt(d.mFiles.size());
+                for (Entry e : d.mFiles.values()) {
+                    out.writeUTF(e.mPath);
+                    out.writeLong(e.mSize);
+                    out.writeLong(e.mModified);
+                    out.writeLong(e.mDuration);
+                    out.writeBoolean(e.mPlayable);
+                    out.writeFloat(e.mLoudness);
+                    out.writeFloat(e.mPeak);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mIndexFile)) {
+            temp.delete();
+            throw new IOException("Could not write the library index to " + mIndexFile);
+        }
+        mDirty = false;
+    }
+
+    /**
+     * Bring the index up to date with the music directory. Directories that haven't changed since they were last
+     * listed are not listed again, and their files are not statted.
+     * @return true if anything changed.
+     */
+    public boolean scan() {
+        mListedCount = 0;
+        mStattedCount = 0;
+        final LinkedHashMap<String, Directory> directories = new LinkedHashMap<String, Directory>();
+        final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+        final boolean changed = scanDirectory(ROOT, directories, entries)
+                || directories.size() != mDirectories.size();
+        mDirectories = directories;
+        mEntries = entries;
+        if (changed) {
+            mDirty = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Scan one directory and everything below it.
+     * @return true if anything changed in this part of the tree.
+     */
+    private boolean scanDirectory(String path, LinkedHashMap<String, Directory> directories,
+                                  HashMap<String, Entry> entries) {
+        final File dir = (path.length() == 0) ? mRoot : new File(mRoot, path);
+        final long modified = dir.lastModified();
+        final Directory old = mDirectories.get(path);
+        final Directory d;
+        boolean changed = false;
+        if (old != null && modified != 0 && old.mModified == modified) {
+            d = old;
+            changed = restatUnplayable(d, dir);
+        } else {
+            final String[] names = dir.list();
+            if (names == null) {
+                // Gone, or not a directory anymore.
+                return true;
+            }
+            mListedCount++;
+            changed = true;
+            d = new Directory(path, modified);
+            for (String name : names) {
+                if (name.startsWith(".")) {
+                    continue;
+                }
+                final String childPath = (path.length() == 0) ? name : path + File.separator + name;
+                final File child = new File(dir, name);
+                if (child.isDirectory()) {
+                    d.mChildren.add(childPath);
+                } else if (isAudioFile(name)) {
+                    d.mFiles.put(childPath, statFile(childPath, child));
+                }
+            }
+        }
+        directories.put(path, d);
+        entries.putAll(d.mFiles);
+        for (String child : d.mChildren) {
+            changed |= scanDirectory(child, directories, entries);
+        }
+        return changed;
+    }
+
+    /**
+     * Stat again the files that failed to play in a directory that hasn't changed, in case one was overwritten in
+     * place with a file that plays.
+     * @return true if any of them changed.
+     */
+    private boolean restatUnplayable(Directory d, File dir) {
+        boolean changed = false;
+        for (Map.Entry<String, Entry> file : d.mFiles.entrySet()) {
+            final Entry old = file.getValue();
+            if (old.mPlayable) {
+                continue;
+            }
+            final String name = old.mPath.substring(old.mPath.lastIndexOf(File.separatorChar) + 1);
+            final Entry e = statFile(old.mPath, new File(dir, name));
+            if (e != old) {
+                file.setValue(e);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the entry for a file, keeping what we learnt about it if it is unchanged.
+     */
+    private Entry statFile(String path, File file) {
+        mStattedCount++;
+        final long size = file.length();
+        final long modified = file.lastModified();
+        final Entry old = mEntries.get(path);
+        if (old != null && old.mSize == size && old.mModified == modified) {
+            return old;
+        }
+        return new Entry(path, size, modified, UNKNOWN_DURATION, true, 0, UNKNOWN_PEAK);
+    }
+
+    /**
+     * Add one file that appeared in an indexed directory, without scanning anything else. A file that is already in
+     * the index is statted again, and forgets what was learnt about it if it changed.
+     * @param path path relative to the music directory.
+     * @return true if the file wasn't in the index before.
+     */
+    public boolean addFile(String path) {
+        final Directory d = mDirectories.get(getParent(path));
+        final File file = new File(mRoot, path);
+        if (d == null || !isAudioFile(file.getName()) || !file.isFile()) {
+            return false;
+        }
+        final Entry e = statFile(path, file);
+        final Entry old = mEntries.put(path, e);
+        d.mFiles.put(path, e);
+        if (old != e) {
+            mDirty = true;
+        }
+        return old == null;
+    }
+
+    /**
+     * Remove one file that is gone from the music directory.
+     * @param path path relative to the music directory.
+     * @return true if the file was in the index.
+     */
+    public boolean removeFile(String path) {
+        if (mEntries.remove(path) == null) {
+            return false;
+        }
+        final Directory d = mDirectories.get(getParent(path));
+        if (d != null) {
+            d.mFiles.remove(path);
+        }
+        mDirty = true;
+        return true;
+    }
+
+    /**
+     * Add a directory that appeared in an indexed directory, with everything below it. Only the new directories are
+     * listed.
+     * @param path path relative to the music directory.
+     * @param directories the relative paths of the directories added are appended here.
+     * @param files the relative paths of the files added are appended here.
+     */
+    public void addDirectory(String path, List<String> directories, List<String> files) {
+        final Directory parent = mDirectories.get(getParent(path));
+        if (parent == null || mDirectories.containsKey(path)) {
+            return;
+        }
+        parent.mChildren.add(path);
+        listDirectory(path, directories, files);
+        mDirty = true;
+    }
+
+    /**
+     * List a new directory and everything below it into the index.
+     */
+    private void listDirectory(String path, List<String> directories, List<String> files) {
+        final File dir = new File(mRoot, path);
+        final String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        // Saved with no modification time, so the next scan lists it again rather than trust what we saw here.
+        final Directory d = new Directory(path, 0);
+        mDirectories.put(path, d);
+        directories.add(path);
+        for (String name : names) {
+            if (name.startsWith(".")) {
+                continue;
+            }
+            final String childPath = path + File.separator + name;
+            final File child = new File(dir, name);
+            if (child.isDirectory()) {
+                d.mChildren.add(childPath);
+                listDirectory(childPath, directories, files);
+            } else if (isAudioFile(name)) {
+                final Entry e = statFile(childPath, child);
+                d.mFiles.put(childPath, e);
+                if (mEntries.put(childPath, e) == null) {
+                    files.add(childPath);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a directory that is gone from the music directory, with everything below it.
+     * @param path path relative to the music directory.
+     * @param directories the relative paths of the directories removed are appended here.
+     * @param files the relative paths of the files removed are appended here.
+     */
+    public void removeDirectory(String path, List<String> directories, List<String> files) {
+        final Directory d = mDirectories.remove(path);
+        if (d == null) {
+            return;
+        }
+        final Directory parent = mDirectories.get(getParent(path));
+        if (parent != null) {
+            parent.mChildren.remove(path);
+        }
+        forgetDirectory(d, directories, files);
+        mDirty = true;
+    }
+
+    /**
+     * Forget the files of a directory that was removed, and all directories below it.
+     */
+    private void forgetDirectory(Directory d, List<String> directories, List<String> files) {
+        directories.add(d.mPath);
+        for (String file : d.mFiles.keySet()) {
+            mEntries.remove(file);
+            files.add(file);
+        }
+        for (String child : d.mChildren) {
+            final Directory c = mDirectories.remove(child);
+            if (c != null) {
+                forgetDirectory(c, directories, files);
+            }
+        }
+    }
+
+    /**
+     * Returns true if this relative path is a directory in the index.
+     */
+    public boolean isDirectory(String path) {
+        return mDirectories.containsKey(path);
+    }
+
+    /**
+     * Returns the relative paths of all directories in the index. The music directory itself is the empty string.
+     */
+    public ArrayList<String> getDirectories() {
+        return new ArrayList<String>(mDirectories.keySet());
+    }
+
+    /**
+     * Returns the relative path of the directory containing this relative path.
+     */
+    private static String getParent(String path) {
+        final int slash = path.lastIndexOf(File.separatorChar);
+        return (slash < 0) ? ROOT : path.substring(0, slash);
+    }
+
+    /**
+     * Returns the relative paths of all files that are believed to be playable, in a stable order.
+     */
+    public String[] getPlayablePaths() {
+        final ArrayList<String> paths = new ArrayList<String>(mEntries.size());
+        for (Directory d : mDirectories.values()) {
+            for (Entry e : d.mFiles.values()) {
+                if (e.mPlayable) {
+                    paths.add(e.mPath);
+                }
+            }
+        }
+        return paths.toArray(new String[paths.size()]);
+    }
+
+    /**
+     * Returns the entry for this relative path, or null if it isn't in the index.
+     */
+    public Entry get(String path) {
+        return mEntries.get(path);
+    }
+
+    /**
+     * Remember the duration of a file that played.
+     */
+    public void setDuration(String path, long durationMillis) {
+        final Entry e = mEntries.get(path);
+        if (e != null && (e.mDuration != durationMillis || !e.mPlayable)) {
+            e.mDuration = durationMillis;
+            e.mPlayable = true;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Remember that a file could not be played, so it isn't picked again until it changes.
+     */
+    public void setUnplayable(String path) {
+        final Entry e = mEntries.get(path);
+        if (e != null && e.mPlayable) {
+            e.mPlayable = false;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Remember the loudness of a file.
+     * @param loudnessDb as from {@link LoudnessMeter#getLoudnessDb()}
+     * @param peak as from {@link LoudnessMeter#getPeak()}, or 0 if the file could not be measured.
+     */
+    public void setLoudness(String path, float loudnessDb, float peak) {
+        final Entry e = mEntries.get(path);
+        if (e != null) {
+            e.mLoudness = loudnessDb;
+            e.mPeak = peak;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Returns a playable file whose loudness hasn't been measured, or null if all have been.
+     */
+    public Entry nextUnmeasured() {
+        for (Directory d : mDirectories.values()) {
+            for (Entry e : d.mFiles.values()) {
+                if (e.mPlayable && e.mPeak == UNKNOWN_PEAK) {
+                    return e;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Returns the number of files in the index, playable or not. */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /** Returns the number of directories listed by the last {@link #scan()}. */
+    public int getListedCount() {
+        return mListedCount;
+    }
+
+    /** Returns the number of files statted by the last {@link #scan()}. */
+    public int getStattedCount() {
+        return mStattedCount;
+    }
+
+    /**
+     * Close a stream, ignoring errors.
+     */
+    private static void closeQuietly(DataInputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Keeps a {@link LibraryIndex} current while music plays, by watching the music directory and every directory below
+ * it. Each file created, deleted or moved is applied to the index as it happens, in O(1), and passed on to a
+ * {@link Listener}, so a change on the card never needs a scan.
+ *
+ * <p>{@link FileObserver} only watches one directory, so there is one per directory in the index. Events arrive on
+ * the observers' own thread, and are handled on the thread of the handler given here, which must be the thread
+ * that owns the index. Only call this class from that thread.</p>
+ */
+public class LibraryWatcher {
+    /** For logging */
+    private static final String TAG = "LibraryWatcher";
+
+    /**
+     * The events we act on. Files are added when they are closed after writing, rather than when they are created,
+     * so a song being copied isn't played half written.
+     */
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.DELETE_SELF;
+
+    /**
+     * Told about songs that appear and disappear. Called on the handler's thread.
+     */
+    public interface Listener {
+        /**
+         * A song was added to the index.
+         * @param path path relative to the music directory.
+         */
+        void onTrackAdded(String path);
+
+        /**
+         * A song was removed from the index.
+         * @param path path relative to the music directory.
+         */
+        void onTrackRemoved(String path);
+    }
+
+    /** The music directory. */
+    private final File mRoot;
+    /** The index to keep current. */
+    private final LibraryIndex mLibrary;
+    /** Runs event handling on the thread that owns {@link #mLibrary}. */
+    private final Handler mHandler;
+    /** Told about songs that appear and disappear. */
+    private final Listener mListener;
+    /**
+     * One observer per directory, by relative path. An observer stops watching once it is garbage collected, so
+     * these references keep them alive.
+     */
+    private final HashMap<String, DirectoryObserver> mObservers = new HashMap<String, DirectoryObserver>();
+    /** True between {@link #start()} and {@link #stop()}. */
+    private boolean mWatching = false;
+
+    /**
+     * @param root the music directory.
+     * @param library the index of the music directory.
+     * @param handler handler on the thread that owns the index.
+     * @param listener told about songs that appear and disappear.
+     */
+    public LibraryWatcher(File root, LibraryIndex library, Handler handler, Listener listener) {
+        mRoot = root;
+        mLibrary = library;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Start watching every directory in the index. Does nothing if already watching.
+     */
+    public void start() {
+        if (mWatching) {
+            return;
+        }
+        mWatching = true;
+        for (String path : mLibrary.getDirectories()) {
+            watch(path);
+        }
+        Log.d(TAG, "Watching " + mObservers.size() + " directories");
+    }
+
+    /**
+     * Stop watching all directories. Events already on their way are dropped.
+     */
+    public void stop() {
+        if (!mWatching) {
+            return;
+        }
+        mWatching = false;
+        for (DirectoryObserver observer : mObservers.values()) {
+            observer.stopWatching();
+        }
+        mObservers.clear();
+    }
+
+    /** Returns true if the directories are being watched. */
+    public boolean isWatching() {
+        return mWatching;
+    }
+
+    /**
+     * Start watching one directory.
+     * @param path path relative to the music directory.
+     */
+    private void watch(String path) {
+        if (mObservers.containsKey(path)) {
+            return;
+        }
+        final File dir = (path.length() == 0) ? mRoot : new File(mRoot, path);
+        final DirectoryObserver observer = new DirectoryObserver(dir.getPath(), path);
+        observer.startWatching();
+        mObservers.put(path, observer);
+    }
+
+    /**
+     * Stop watching one directory.
+     * @param path path relative to the music directory.
+     */
+    private void unwatch(String path) {
+        final DirectoryObserver observer = mObservers.remove(path);
+        if (observer != null) {
+            observer.stopWatching();
+        }
+    }
+
+    /**
+     * Apply one event to the index. Runs on the handler's thread.
+     * @param event a single {@link FileObserver} event.
+     * @param directory the relative path of the watched directory.
+     * @param name the name of the file in that directory, or null if the event is about the directory itself.
+     */
+    private void handleEvent(int event, String directory, String name) {
+        if (!mWatching) {
+            return;
+        }
+        if (event == FileObserver.DELETE_SELF) {
+            // Its parent hears of it too, and removes whatever is left below it.
+            unwatch(directory);
+            return;
+        }
+        if (name == null) {
+            return;
+        }
+        final String path = (directory.length() == 0) ? name : directory + File.separator + name;
+        switch (event) {
+            case FileObserver.CREATE:
+            case FileObserver.CLOSE_WRITE:
+            case FileObserver.MOVED_TO:
+                if (new File(mRoot, path).isDirectory()) {
+                    addDirectory(path);
+                } else if (event != FileObserver.CREATE && mLibrary.addFile(path)) {
+                    mListener.onTrackAdded(path);
+                }
+                break;
+            case FileObserver.DELETE:
+            case FileObserver.MOVED_FROM:
+                if (mLibrary.isDirectory(path)) {
+                    removeDirectory(path);
+                } else if (mLibrary.removeFile(path)) {
+                    mListener.onTrackRemoved(path);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Index and watch a directory that appeared, with everything already in it.
+     */
+    private void addDirectory(String path) {
+        final ArrayList<String> directories = new ArrayList<String>();
+        final ArrayList<String> files = new ArrayList<String>();
+        mLibrary.addDirectory(path, directories, files);
+        for (String directory : directories) {
+            watch(directory);
+        }
+        for (String file : files) {
+            mListener.onTrackAdded(file);
+        }
+    }
+
+    /**
+     * Forget a directory that disappeared, with everything that was in it.
+     */
+    private void removeDirectory(String path) {
+        final ArrayList<String> directories = new ArrayList<String>();
+        final ArrayList<String> files = new ArrayList<String>();
+        mLibrary.removeDirectory(path, directories, files);
+        for (String directory : directories) {
+            unwatch(directory);
+        }
+        for (String file : files) {
+            mListener.onTrackRemoved(file);
+        }
+    }
+
+    /**
+     * Watches one directory, and passes its events to the handler's thread.
+     */
+    private class DirectoryObserver extends FileObserver {
+        /** Path of the watched directory relative to the music directory. */
+        private final String mPath;
+
+        DirectoryObserver(String absolutePath, String path) {
+            super(absolutePath, EVENTS);
+            mPath = path;
+        }
+
+        @Override
+        public void onEvent(int event, final String name) {
+            // Strip flags such as the one that marks the subject as a directory.
+            final int type = event & FileObserver.ALL_EVENTS;
+            if ((type & EVENTS) == 0) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleEvent(type, mPath, name);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the loudness of songs in the background, one song at a time, by decoding them with {@link PcmDecoder}.
+ * Only available from SDK 16.
+ *
+ * <p>The work runs on a single low priority thread with room for one song waiting, so however many songs need
+ * measuring, at most one is being decoded and one is queued. The caller asks for the next song when it hears about
+ * the last one, which keeps the work incremental, and can stop it at any time with {@link #cancel()}.</p>
+ */
+public class LoudnessAnalyzer {
+    /** For logging */
+    private static final String TAG = "LoudnessAnalyzer";
+    /** Samples decoded at a time. */
+    private static final int CHUNK_SAMPLES = 16 * 1024;
+    /** How long the thread waits for more work before exiting, in seconds. */
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Hears about each song measured.
+     */
+    public interface Callback {
+        /**
+         * A song was measured. Called on the thread of the handler given to the analyzer.
+         * @param path the song, as passed to {@link #analyze}
+         * @param loudnessDb as from {@link LoudnessMeter#getLoudnessDb()}
+         * @param peak as from {@link LoudnessMeter#getPeak()}, or 0 if the song could not be decoded.
+         */
+        void onAnalyzed(String path, float loudnessDb, float peak);
+    }
+
+    /** Where results are delivered. */
+    private final Handler mHandler;
+    /** Hears about results. */
+    private final Callback mCallback;
+    /** Runs the measurements: one thread, and one waiting song. */
+    private final ThreadPoolExecutor mExecutor;
+    /**
+     * Bumped by {@link #cancel()}. Each song remembers the generation it was asked for in, and is dropped once this
+     * moves on, so asking for a new song never brings a cancelled one back.
+     */
+    private volatile int mGeneration = 0;
+
+    /**
+     * @param handler results are delivered on this handler's thread.
+     * @param callback hears about results.
+     */
+    public LoudnessAnalyzer(Handler handler, Callback callback) {
+        mHandler = handler;
+        mCallback = callback;
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, TAG);
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Measure a song in the background, unless the analyzer already has as much work as it takes.
+     * @param path the song within the music directory, handed back with the result.
+     * @param file the absolute path to the song.
+     * @return true if the song will be measured.
+     */
+    public boolean analyze(final String path, final String file) {
+        final int generation = mGeneration;
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                    measure(path, file, generation);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop the measurement in progress and drop the waiting one. Nothing is delivered for either, even if they
+     * finish later. Call on the thread of the handler given to the analyzer.
+     */
+    public void cancel() {
+        mGeneration++;
+        mExecutor.getQueue().clear();
+    }
+
+    /**
+     * Stop all work for good.
+     */
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Decode a song and measure it, then deliver the result. Runs on the analyzer's thread.
+     *
+     * <p>A song the platform fails to decode, however it fails, is delivered with a peak of 0 so the caller moves
+     * on to the next one.</p>
+     * @param generation the value of {@link #mGeneration} when the song was asked for.
+     */
+    private void measure(final String path, String file, final int generation) {
+        final long start = System.currentTimeMillis();
+        float loudness = LoudnessMeter.SILENCE_DB;
+        float peak = 0;
+        PcmDecoder decoder = null;
+        try {
+            decoder = PcmDecoder.open(file);
+            final LoudnessMeter meter = new LoudnessMeter(decoder.getSampleRate(), decoder.getChannelCount());
+            final short[] chunk = new short[CHUNK_SAMPLES];
+            int read;
+            while ((read = decoder.read(chunk, 0, chunk.length)) != PcmSource.END_OF_STREAM) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                meter.add(chunk, 0, read);
+            }
+            if (decoder.hasFailed()) {
+                Log.e(TAG, "Could not decode all of " + path);
+            } else {
+                loudness = meter.getLoudnessDb();
+                peak = meter.getPeak();
+                Log.d(TAG, "Measured " + path + " in " + (System.currentTimeMillis() - start) + "ms: " + loudness
+                        + "dB, peak " + peak);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not decode " + path, e);
+        } catch (RuntimeException e) {
+            // Some platform decoders throw unchecked exceptions on broken files.
+            Log.e(TAG, "Could not decode " + path, e);
+        } finally {
+            if (decoder != null) {
+                decoder.close();
+            }
+        }
+        final float resultLoudness = loudness;
+        final float resultPeak = peak;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration) {
+                    mCallback.onAnalyzed(path, resultLoudness, resultPeak);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+/**
+ * Measures how loud a piece of audio is, from its 16 bit samples: the average power in decibels relative to full
+ * scale, and the highest sample.
+ *
+ * <p>The power is averaged over blocks of 400 milliseconds, and blocks quieter than {@link #GATE_DB} are left out,
+ * so that silence at the start and end of a song doesn't make it seem quieter than it sounds.</p>
+ */
+public class LoudnessMeter {
+    /** Blocks quieter than this, in decibels relative to full scale, are not counted. */
+    public static final float GATE_DB = -60.0f;
+    /** The loudness of silence, or of audio with nothing above the gate. */
+    public static final float SILENCE_DB = -100.0f;
+    /** Length of a block, in milliseconds. */
+    private static final int BLOCK_MILLIS = 400;
+    /** Full scale of a 16 bit sample. */
+    private static final double FULL_SCALE = 32768.0;
+
+    /** Number of samples, across all channels, in a block. */
+    private final int mBlockSamples;
+    /** The gate as a sum of squares over a whole block. */
+    private final double mGate;
+    /** Sum of squares of the samples in the current block. */
+    private long mBlockSum = 0;
+    /** Number of samples in the current block. */
+    private int mBlockCount = 0;
+    /** Sum of squares of the samples in all counted blocks. */
+    private double mSum = 0;
+    /** Number of samples in all counted blocks. */
+    private long mCount = 0;
+    /** Highest absolute sample value. */
+    private int mPeak = 0;
+
+    /**
+     * @param sampleRate the sample rate of the audio, in Hz.
+     * @param channels the number of interleaved channels.
+     */
+    public LoudnessMeter(int sampleRate, int channels) {
+        mBlockSamples = Math.max(1, sampleRate * channels * BLOCK_MILLIS / 1000);
+        mGate = Math.pow(10.0, GATE_DB / 10.0) * FULL_SCALE * FULL_SCALE * mBlockSamples;
+    }
+
+    /**
+     * Measure these samples, following on from the ones measured before.
+     */
+    public void add(short[] samples, int offset, int length) {
+        final int end = offset + length;
+        long blockSum = mBlockSum;
+        int blockCount = mBlockCount;
+        int peak = mPeak;
+        for (int i = offset; i < end; i++) {
+            final int sample = samples[i];
+            blockSum += sample * sample;
+            final int level = (sample < 0) ? -sample : sample;
+            if (level > peak) {
+                peak = level;
+            }
+            blockCount++;
+            if (blockCount == mBlockSamples) {
+                if (blockSum > mGate) {
+                    mSum += blockSum;
+                    mCount += blockCount;
+                }
+                blockSum = 0;
+                blockCount = 0;
+            }
+        }
+        mBlockSum = blockSum;
+        mBlockCount = blockCount;
+        mPeak = peak;
+    }
+
+    /**
+     * Returns the average power of the audio measured, in decibels relative to a full scale square wave. Music is
+     * typically between -25 and -10. Returns {@link #SILENCE_DB} if nothing was above the gate.
+     */
+    public float getLoudnessDb() {
+        if (mCount == 0) {
+            return SILENCE_DB;
+        }
+        final double power = mSum / mCount / (FULL_SCALE * FULL_SCALE);
+        return (float) Math.max(SILENCE_DB, 10.0 * Math.log10(power));
+    }
+
+    /**
+     * Returns the highest sample level, between 0 and 1.
+     */
+    public float getPeak() {
+        return (float) (mPeak / FULL_SCALE);
+    }
+
+    /**
+     * Returns the volume at which to play a song so that it sounds as loud as the target.
+     * @param loudnessDb the song's loudness, as from {@link #getLoudnessDb()}
+     * @param peak the song's peak, as from {@link #getPeak()}. A peak of 0 or less means the song wasn't measured,
+     *             and it is played as it is.
+     * @param targetDb the loudness to aim for.
+     * @param minGain the lowest volume to return, so that a mismeasured song is never made inaudible.
+     * @return a volume between minGain and 1. Songs are only made quieter, never louder, since that would clip.
+     */
+    public static float getGain(float loudnessDb, float peak, float targetDb, float minGain) {
+        if (peak <= 0 || loudnessDb <= SILENCE_DB) {
+            return 1.0f;
+        }
+        double gain = Math.pow(10.0, (targetDb - loudnessDb) / 20.0);
+        // Never push the peak past full scale.
+        gain = Math.min(gain, 1.0 / peak);
+        return (float) Math.max(minGain, Math.min(1.0, gain));
+    }
+}
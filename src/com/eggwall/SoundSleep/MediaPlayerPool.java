@@ -0,0 +1,143 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Hands out {@link AndroidPlayer}s to {@link PlaybackController}, recycling their {@link MediaPlayer} through
+ * {@link MediaPlayer#reset()} instead of creating a new one for every song. Constructing and releasing a player sets
+ * up and tears down its native player and its wake lock, which adds up over a night of short songs.
+ *
+ * <p>The pool caps how many players are alive at once, counting both those in use and those idle in the pool.
+ * Only call this from one thread, the one the players' events should arrive on.</p>
+ */
+public class MediaPlayerPool implements Player.Factory {
+    /** For logging */
+    private static final String TAG = "MediaPlayerPool";
+
+    /** Context used to set the wake mode on new players, and to open the included sounds. */
+    private final Context mContext;
+    /** Hears about the events of every player. */
+    private Player.Listener mListener;
+    /** The most players that can be alive, in use or idle. */
+    private final int mMaxAlive;
+    /** The most players kept idle in the pool. Extra players are released. */
+    private final int mMaxIdle;
+    /** Players that have been reset and can be handed out again. */
+    private final ArrayList<AndroidPlayer> mIdle;
+    /** Counts players constructed, reused and released. */
+    private final PlaybackStats mStats;
+    /** Players alive right now, in use or idle. */
+    private int mAlive = 0;
+
+    /**
+     * @param context a long lived context, such as the application context.
+     * @param maxAlive the most players alive at once, in use or idle.
+     * @param maxIdle the most idle players to keep.
+     * @param stats where to count players constructed, reused and released.
+     */
+    public MediaPlayerPool(Context context, int maxAlive, int maxIdle, PlaybackStats stats) {
+        mContext = context;
+        mStats = stats;
+        mMaxAlive = maxAlive;
+        mMaxIdle = maxIdle;
+        mIdle = new ArrayList<AndroidPlayer>(maxIdle);
+    }
+
+    /**
+     * Set who hears about the events of every player. Call this before the first {@link #acquire()}.
+     */
+    public void setListener(Player.Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns a player in the Idle state that holds a partial wake lock while playing, or null if the maximum
+     * number of players are already in use.
+     */
+    @Override
+    public Player acquire() {
+        final int idle = mIdle.size();
+        if (idle > 0) {
+            mStats.playerReused();
+            return mIdle.remove(idle - 1);
+        }
+        if (mAlive >= mMaxAlive) {
+            Log.e(TAG, "All " + mMaxAlive + " players are in use.");
+            return null;
+        }
+        final MediaPlayer player = new MediaPlayer();
+        // Keep the CPU awake while playing music. This survives reset().
+        player.setWakeMode(mContext, PowerManager.PARTIAL_WAKE_LOCK);
+        mAlive++;
+        mStats.playerCreated();
+        return new AndroidPlayer(mContext, player, mListener);
+    }
+
+    /**
+     * Give a player back to the pool. It is reset, which stops it, and kept for the next {@link #acquire()}, or
+     * released if the pool is full. The caller must not use the player after this.
+     */
+    @Override
+    public void recycle(Player player) {
+        if (player == null) {
+            return;
+        }
+        final AndroidPlayer recycled = (AndroidPlayer) player;
+        if (mIdle.size() < mMaxIdle) {
+            try {
+                recycled.reset();
+                mIdle.add(recycled);
+                return;
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Could not reset a player, releasing it.", e);
+            }
+        }
+        release(recycled);
+    }
+
+    /**
+     * Release all idle players. Players in use are released when they are recycled.
+     */
+    public void clear() {
+        for (AndroidPlayer player : mIdle) {
+            release(player);
+        }
+        mIdle.clear();
+    }
+
+    /** Returns the number of players alive, in use or idle. */
+    public int getAliveCount() {
+        return mAlive;
+    }
+
+
+    /**
+     * Release the native resources of a player.
+     */
+    private void release(AndroidPlayer player) {
+        player.release();
+        mAlive--;
+        mStats.playerReleased();
+    }
+}
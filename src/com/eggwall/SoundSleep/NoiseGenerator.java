@@ -0,0 +1,181 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+/**
+ * Synthesizes white, pink or brown noise forever. Each channel gets its own filter state so the stereo image is
+ * wide rather than a mono signal copied to both ears. Nothing is allocated after construction.
+ */
+public class NoiseGenerator implements PcmSource {
+    /** Flat spectrum: equal energy per Hz. Sounds like hiss. */
+    public static final int WHITE = 0;
+    /** Energy falls 3dB per octave. Sounds like steady rain. */
+    public static final int PINK = 1;
+    /** Energy falls 6dB per octave. Sounds like a distant waterfall or surf. */
+    public static final int BROWN = 2;
+
+    /** The sample rate we generate at, when none is specified. */
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+
+    /** Output level for white noise. Full scale white noise is harsh, so keep it about 12dB down. */
+    private static final float WHITE_GAIN = 0.25f;
+    /** Output level for pink noise, chosen so that it is about as loud as white noise. */
+    private static final float PINK_GAIN = 0.08f;
+    /** Output level for brown noise, chosen so that it is about as loud as white noise. */
+    private static final float BROWN_GAIN = 0.7f;
+    /** Converts a random integer to a float in [-1, 1). */
+    private static final float INT_TO_FLOAT = 1.0f / 2147483648.0f;
+
+    /** One of {@link #WHITE}, {@link #PINK} or {@link #BROWN}. */
+    private final int mColor;
+    /** Sample rate in Hz. */
+    private final int mSampleRate;
+    /** Number of interleaved channels. */
+    private final int mChannels;
+    /** Pink noise filter state, three poles per channel. */
+    private final float[] mPink;
+    /** Brown noise integrator state, one per channel. */
+    private final float[] mBrown;
+    /** State of the xorshift random number generator. Must never be zero. */
+    private int mSeed;
+
+    /**
+     * Create a stereo generator at {@link #DEFAULT_SAMPLE_RATE}.
+     * @param color one of {@link #WHITE}, {@link #PINK} or {@link #BROWN}.
+     */
+    public NoiseGenerator(int color) {
+        this(color, DEFAULT_SAMPLE_RATE, 2, (int) System.nanoTime());
+    }
+
+    /**
+     * Create a generator.
+     * @param color one of {@link #WHITE}, {@link #PINK} or {@link #BROWN}.
+     * @param sampleRate the sample rate in Hz.
+     * @param channels number of interleaved channels to produce.
+     * @param seed seed for the random number generator, so that the output can be reproduced.
+     */
+    public NoiseGenerator(int color, int sampleRate, int channels, int seed) {
+        if (color != WHITE && color != PINK && color != BROWN) {
+            throw new IllegalArgumentException("Unknown noise color: " + color);
+        }
+        if (channels <= 0) {
+            throw new IllegalArgumentException("Need at least one channel, got " + channels);
+        }
+        mColor = color;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mPink = new float[3 * channels];
+        mBrown = new float[channels];
+        // Xorshift gets stuck at zero.
+        mSeed = (seed == 0) ? 0x2545F491 : seed;
+    }
+
+    /** Returns the color of noise being generated. */
+    public int getColor() {
+        return mColor;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length) {
+        final int end = offset + length;
+        int channel = 0;
+        for (int i = offset; i < end; i++) {
+            final float white = nextWhite();
+            final float value;
+            switch (mColor) {
+                case PINK:
+                    value = pink(white, channel) * PINK_GAIN;
+                    break;
+                case BROWN:
+                    value = brown(white, channel) * BROWN_GAIN;
+                    break;
+                default:
+                    value = white * WHITE_GAIN;
+                    break;
+            }
+            buffer[i] = toShort(value);
+            channel++;
+            if (channel == mChannels) {
+                channel = 0;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release.
+    }
+
+    /**
+     * Returns the next uniformly distributed value in [-1, 1).
+     */
+    private float nextWhite() {
+        int x = mSeed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        mSeed = x;
+        return x * INT_TO_FLOAT;
+    }
+
+    /**
+     * Filters white noise down to pink with Paul Kellet's economy filter: three leaky poles which approximate a
+     * -3dB/octave slope to within half a dB across the audible range.
+     */
+    private float pink(float white, int channel) {
+        final float[] b = mPink;
+        final int i = channel * 3;
+        b[i] = 0.99765f * b[i] + white * 0.0990460f;
+        b[i + 1] = 0.96300f * b[i + 1] + white * 0.2965164f;
+        b[i + 2] = 0.57000f * b[i + 2] + white * 1.0526913f;
+        return b[i] + b[i + 1] + b[i + 2] + white * 0.1848f;
+    }
+
+    /**
+     * Integrates white noise into brown noise. The leak keeps the integrator from wandering off to a DC offset.
+     */
+    private float brown(float white, int channel) {
+        final float value = (mBrown[channel] + 0.02f * white) / 1.02f;
+        mBrown[channel] = value;
+        return value * 3.5f;
+    }
+
+    /**
+     * Converts a float in [-1, 1] to a 16 bit sample, clipping anything outside that range.
+     */
+    static short toShort(float value) {
+        final int sample = (int) (value * 32767.0f);
+        if (sample > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (sample < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) sample;
+    }
+}
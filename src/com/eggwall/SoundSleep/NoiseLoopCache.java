@@ -0,0 +1,222 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a decoded copy of a raw audio resource in the cache directory as a {@link PcmLoop}. The resource is decoded
+ * once, in the background, and the loop is replayed from the mapped file after that.
+ *
+ * <p>The loop is stamped with the time the package was last updated. When that changes, the resource is
+ * checksummed, and the loop is only decoded again if the resource itself changed.</p>
+ */
+public class NoiseLoopCache {
+    /** For logging */
+    private static final String TAG = "NoiseLoopCache";
+    /** Length of the crossfade at the loop seam. */
+    private static final int FADE_MILLIS = 500;
+    /** Samples decoded at a time while building the cache. */
+    private static final int CHUNK_SAMPLES = 16 * 1024;
+    /** The SDK version */
+    private final static int SDK = Build.VERSION.SDK_INT;
+
+    /** Context used to read the resource and the package information. */
+    private final Context mContext;
+    /** The raw resource to decode. */
+    private final int mResource;
+    /** Where the loop is stored. */
+    private final File mFile;
+    /** True while a background thread is building the cache. */
+    private volatile boolean mBuilding = false;
+
+    /**
+     * @param context a long lived context, such as the application context.
+     * @param resource the raw resource to cache, like {@link R.raw#noise}
+     * @param name the file name for the loop in the cache directory.
+     */
+    public NoiseLoopCache(Context context, int resource, String name) {
+        mContext = context;
+        mResource = resource;
+        mFile = new File(context.getCacheDir(), name);
+    }
+
+    /**
+     * Returns true if this device can build the cache: decoding needs {@link android.media.MediaCodec}.
+     */
+    public static boolean isSupported() {
+        return SDK >= 16;
+    }
+
+    /**
+     * Open the cached loop, if it is up to date.
+     * @return the loop, or null if there is no valid cache yet. Call {@link #buildInBackground()} in that case.
+     */
+    public PcmLoop open() {
+        final long stamp = getStamp();
+        final PcmLoop loop = PcmLoop.open(mFile, stamp);
+        if (loop != null || !mFile.exists()) {
+            return loop;
+        }
+        // The package changed since the cache was written. If the resource is unchanged, keep the cache.
+        final long checksum = getChecksum();
+        if (checksum == -1 || checksum != PcmLoop.readChecksum(mFile)) {
+            Log.d(TAG, "Cached loop is stale.");
+            return null;
+        }
+        try {
+            PcmLoop.restamp(mFile, stamp);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not restamp the cached loop", e);
+            return null;
+        }
+        return PcmLoop.open(mFile, stamp);
+    }
+
+    /**
+     * Decode the resource into the cache on a low priority thread, unless that is already happening.
+     */
+    public void buildInBackground() {
+        if (!isSupported() || mBuilding) {
+            return;
+        }
+        mBuilding = true;
+        final Thread builder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    build();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not build the cached loop", e);
+                } finally {
+                    mBuilding = false;
+                }
+            }
+        }, TAG);
+        builder.start();
+    }
+
+    /**
+     * Decode the resource and write it to the loop file. Runs on a background thread.
+     */
+    private void build() throws IOException {
+        final long start = System.currentTimeMillis();
+        final long stamp = getStamp();
+        final long checksum = getChecksum();
+        final File temp = new File(mFile.getPath() + ".tmp");
+        final AssetFileDescriptor afd = mContext.getResources().openRawResourceFd(mResource);
+        if (afd == null) {
+            throw new IOException("Could not open resource " + mResource);
+        }
+        final PcmDecoder decoder;
+        try {
+            decoder = PcmDecoder.open(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+        } finally {
+            afd.close();
+        }
+        final FileOutputStream out = new FileOutputStream(temp);
+        try {
+            final FileChannel channel = out.getChannel();
+            // Leave space for the header, which is written last.
+            channel.write(ByteBuffer.allocate(PcmLoop.HEADER_SIZE));
+            final short[] chunk = new short[CHUNK_SAMPLES];
+            final ByteBuffer bytes = ByteBuffer.allocateDirect(CHUNK_SAMPLES * 2).order(ByteOrder.nativeOrder());
+            final ShortBuffer shorts = bytes.asShortBuffer();
+            int read;
+            while ((read = decoder.read(chunk, 0, chunk.length)) != PcmSource.END_OF_STREAM) {
+                shorts.clear();
+                shorts.put(chunk, 0, read);
+                bytes.clear();
+                bytes.limit(read * 2);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+        } finally {
+            decoder.close();
+            out.close();
+        }
+        if (decoder.hasFailed()) {
+            temp.delete();
+            throw new IOException("Could not decode resource " + mResource);
+        }
+        final int rate = decoder.getSampleRate();
+        PcmLoop.finish(temp, rate, decoder.getChannelCount(), stamp, checksum, rate * FADE_MILLIS / 1000);
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Could not move the loop into place: " + mFile);
+        }
+        Log.d(TAG, "Built cached loop in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Returns the time the package was last installed or updated, or the version code before SDK 9.
+     */
+    private long getStamp() {
+        try {
+            final PackageInfo info = mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0);
+            return (SDK >= 9) ? info.lastUpdateTime : info.versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            // Our own package always exists.
+            return 0;
+        }
+    }
+
+    /**
+     * Returns a checksum of the compressed resource, or -1 if it can't be read.
+     */
+    private long getChecksum() {
+        InputStream in = null;
+        try {
+            in = mContext.getResources().openRawResource(mResource);
+            final CRC32 crc = new CRC32();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+            return crc.getValue();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+}
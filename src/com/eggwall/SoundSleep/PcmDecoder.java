@@ -0,0 +1,296 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Decodes the first audio track of a file to PCM with {@link MediaCodec}. Only available from SDK 16.
+ *
+ * <p>Samples are copied out of the codec's own buffers through views that are created once per buffer set, so
+ * reading allocates nothing once the codec is running.</p>
+ *
+ * <p>The codec throws runtime exceptions on corrupt or unsupported files. Opening turns them into an
+ * {@link IOException}, and reading into the end of the stream, so that one bad song never takes the process
+ * down.</p>
+ */
+public class PcmDecoder implements PcmSource {
+    /** For logging */
+    private static final String TAG = "PcmDecoder";
+    /** How long to wait for the codec before giving up on one attempt, in microseconds. */
+    private static final long TIMEOUT_US = 10000;
+
+    /** Reads compressed samples from the file. */
+    private final MediaExtractor mExtractor;
+    /** Turns compressed samples into PCM. */
+    private final MediaCodec mCodec;
+    /** Describes the output buffer most recently dequeued. */
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    /** The codec's input buffers. */
+    private ByteBuffer[] mInputs;
+    /** 16 bit views on the codec's output buffers, in the same order. */
+    private ShortBuffer[] mOutputs;
+    /** The output buffer currently being read from, or null if we need another one. */
+    private ShortBuffer mCurrent;
+    /** The codec's index for {@link #mCurrent}, or -1. */
+    private int mCurrentIndex = -1;
+    /** True once the extractor has no more samples for the codec. */
+    private boolean mInputDone = false;
+    /** True once the codec has produced its last output buffer. */
+    private boolean mOutputDone = false;
+    /** True if decoding stopped early because the codec failed. */
+    private boolean mFailed = false;
+    /** Sample rate in Hz. */
+    private int mSampleRate;
+    /** Number of interleaved channels. */
+    private int mChannels;
+    /** Duration in microseconds, or -1 if the file doesn't say. */
+    private final long mDurationUs;
+
+    /**
+     * Open a file for decoding.
+     * @param path the absolute path to the file.
+     * @throws IOException if the file can't be read or has no audio track.
+     */
+    public static PcmDecoder open(String path) throws IOException {
+        final MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+        } catch (IOException e) {
+            extractor.release();
+            throw e;
+        } catch (RuntimeException e) {
+            extractor.release();
+            throw new IOException("Could not read the file", e);
+        }
+        return new PcmDecoder(extractor);
+    }
+
+    /**
+     * Open a part of a file for decoding, such as a resource in the application package.
+     * @throws IOException if the file can't be read or has no audio track.
+     */
+    public static PcmDecoder open(FileDescriptor fd, long offset, long length) throws IOException {
+        final MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(fd, offset, length);
+        } catch (IOException e) {
+            extractor.release();
+            throw e;
+        } catch (RuntimeException e) {
+            extractor.release();
+            throw new IOException("Could not read the file", e);
+        }
+        return new PcmDecoder(extractor);
+    }
+
+    /**
+     * Set up a codec for the first audio track of the extractor. The extractor is released if this fails.
+     * @throws IOException if there is no audio track, or no codec that can decode it.
+     */
+    private PcmDecoder(MediaExtractor extractor) throws IOException {
+        mExtractor = extractor;
+        MediaCodec codec = null;
+        try {
+            MediaFormat format = null;
+            final int tracks = extractor.getTrackCount();
+            for (int i = 0; i < tracks; i++) {
+                final MediaFormat candidate = extractor.getTrackFormat(i);
+                final String mime = candidate.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = candidate;
+                    break;
+                }
+            }
+            if (format == null) {
+                throw new IOException("No audio track found");
+            }
+            mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            mDurationUs = format.containsKey(MediaFormat.KEY_DURATION)
+                    ? format.getLong(MediaFormat.KEY_DURATION) : -1;
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            mCodec = codec;
+            mInputs = codec.getInputBuffers();
+            refreshOutputs();
+        } catch (IOException e) {
+            release(codec, extractor);
+            throw e;
+        } catch (RuntimeException e) {
+            // Corrupt or unsupported: the codec can't be created, configured or started.
+            release(codec, extractor);
+            throw new IOException("Could not set up a decoder", e);
+        }
+    }
+
+    /**
+     * Release a codec that may be half set up, and its extractor, ignoring further errors.
+     * @param codec the codec, or null if it wasn't created.
+     */
+    private static void release(MediaCodec codec, MediaExtractor extractor) {
+        if (codec != null) {
+            try {
+                codec.release();
+            } catch (RuntimeException e) {
+                // Nothing more to do.
+            }
+        }
+        extractor.release();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    /** Returns the duration of the audio in microseconds, or -1 if unknown. */
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    /**
+     * Returns true if the stream ended early because the codec failed, rather than at the end of the file.
+     */
+    public boolean hasFailed() {
+        return mFailed;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length) {
+        int written = 0;
+        try {
+            while (written < length) {
+                if (mCurrent == null || !mCurrent.hasRemaining()) {
+                    releaseCurrent();
+                    if (mOutputDone) {
+                        break;
+                    }
+                    dequeue();
+                    continue;
+                }
+                final int count = Math.min(length - written, mCurrent.remaining());
+                mCurrent.get(buffer, offset + written, count);
+                written += count;
+            }
+        } catch (RuntimeException e) {
+            // The codec failed part way through a broken file. End the song here; the buffers it held are gone.
+            Log.e(TAG, "Decoding failed, ending the stream", e);
+            mCurrent = null;
+            mCurrentIndex = -1;
+            mOutputDone = true;
+            mFailed = true;
+        }
+        if (written == 0 && mOutputDone) {
+            return END_OF_STREAM;
+        }
+        return written;
+    }
+
+    @Override
+    public void close() {
+        try {
+            releaseCurrent();
+            mCodec.stop();
+        } catch (RuntimeException e) {
+            // A codec in the error state can't be stopped, only released.
+        }
+        release(mCodec, mExtractor);
+    }
+
+    /**
+     * Feed the codec once, and try to get one output buffer from it into {@link #mCurrent}.
+     */
+    private void dequeue() {
+        if (!mInputDone) {
+            final int in = mCodec.dequeueInputBuffer(TIMEOUT_US);
+            if (in >= 0) {
+                final int size = mExtractor.readSampleData(mInputs[in], 0);
+                if (size < 0) {
+                    mCodec.queueInputBuffer(in, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mInputDone = true;
+                } else {
+                    mCodec.queueInputBuffer(in, 0, size, mExtractor.getSampleTime(), 0);
+                    mExtractor.advance();
+                }
+            }
+        }
+        final int out = mCodec.dequeueOutputBuffer(mInfo, TIMEOUT_US);
+        if (out >= 0) {
+            if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mOutputDone = true;
+            }
+            if (mInfo.size <= 0) {
+                mCodec.releaseOutputBuffer(out, false);
+                return;
+            }
+            final ShortBuffer samples = mOutputs[out];
+            samples.clear();
+            samples.limit((mInfo.offset + mInfo.size) / 2);
+            samples.position(mInfo.offset / 2);
+            mCurrent = samples;
+            mCurrentIndex = out;
+        } else if (out == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            refreshOutputs();
+        } else if (out == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            final MediaFormat format = mCodec.getOutputFormat();
+            mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        }
+    }
+
+    /**
+     * Give the current output buffer back to the codec.
+     */
+    private void releaseCurrent() {
+        if (mCurrentIndex >= 0) {
+            mCodec.releaseOutputBuffer(mCurrentIndex, false);
+            mCurrentIndex = -1;
+        }
+        mCurrent = null;
+    }
+
+    /**
+     * Create 16 bit views of the codec's output buffers. This happens once, and again only if the codec replaces
+     * its buffers.
+     */
+    private void refreshOutputs() {
+        final ByteBuffer[] outputs = mCodec.getOutputBuffers();
+        mOutputs = new ShortBuffer[outputs.length];
+        for (int i = 0; i < outputs.length; i++) {
+            final ByteBuffer b = outputs[i].duplicate();
+            b.clear();
+            mOutputs[i] = b.order(ByteOrder.nativeOrder()).asShortBuffer();
+        }
+    }
+}
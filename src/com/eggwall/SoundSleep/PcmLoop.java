@@ -0,0 +1,269 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A loop of decoded PCM audio, stored in a file and memory mapped. Reading it is a copy out of the page cache, with
+ * no decoding at all. The loop seam is crossfaded when the file is written, so playback wraps around on exactly
+ * the right sample with no click and no gap.
+ *
+ * <p>The file is a small header followed by the interleaved samples in native byte order. The header records a
+ * stamp and a checksum of whatever the audio was decoded from, so the owner can tell when the file is stale.</p>
+ */
+public class PcmLoop implements PcmSource {
+    /** Identifies our files: "SSPC" */
+    private static final int MAGIC = 0x53535043;
+    /** Bump this whenever the file layout changes. */
+    private static final int VERSION = 1;
+    /** Size of the header in bytes. Samples start right after this, aligned to 8 bytes. */
+    public static final int HEADER_SIZE = 40;
+
+    /** Offset of the stamp in the header. */
+    private static final int STAMP_OFFSET = 8;
+    /** Offset of the checksum in the header. */
+    private static final int CHECKSUM_OFFSET = 16;
+
+    /** Sample rate in Hz. */
+    private final int mSampleRate;
+    /** Number of interleaved channels. */
+    private final int mChannels;
+    /** All the samples in the loop, mapped from the file. */
+    private final ShortBuffer mSamples;
+
+    /**
+     * Use {@link #open(File, long)} to read loops.
+     */
+    private PcmLoop(int sampleRate, int channels, ShortBuffer samples) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mSamples = samples;
+    }
+
+    /**
+     * Opens a loop written by {@link #finish(File, int, int, long, long, int)}.
+     * @param file the loop file.
+     * @param stamp the stamp the file must carry to be valid.
+     * @return the loop, or null if the file is missing, corrupt, or has a different stamp.
+     */
+    public static PcmLoop open(File file, long stamp) {
+        if (!file.isFile() || file.length() <= HEADER_SIZE) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.nativeOrder());
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getLong(STAMP_OFFSET) != stamp) {
+                return null;
+            }
+            final int rate = map.getInt(24);
+            final int channels = map.getInt(28);
+            final int frames = map.getInt(32);
+            if (rate <= 0 || channels <= 0 || frames <= 0
+                    || HEADER_SIZE + (long) frames * channels * 2 > channel.size()) {
+                return null;
+            }
+            map.position(HEADER_SIZE);
+            final ShortBuffer samples = map.slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+            samples.limit(frames * channels);
+            return new PcmLoop(rate, channels, samples);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            // The mapping stays valid after the file is closed.
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Returns the checksum stored in the loop file, or -1 if the file can't be read.
+     */
+    public static long readChecksum(File file) {
+        return readLong(file, CHECKSUM_OFFSET);
+    }
+
+    /**
+     * Replaces the stamp in an existing loop file. Used when the source changed its stamp, but not its content.
+     */
+    public static void restamp(File file, long stamp) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+            b.putLong(0, stamp);
+            raf.getChannel().write(b, STAMP_OFFSET);
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Turns a file of raw samples into a loop file. The caller writes the decoded samples starting at
+     * {@link #HEADER_SIZE}; this crossfades the seam in place, trims the tail that was mixed into the head, and writes
+     * the header.
+     *
+     * <p>For a loop of m frames out of n decoded frames, with a fade of f = n - m frames, the first f frames of the
+     * loop are an equal power mix of the decoded head fading in and the decoded tail (frames m to n) fading out.
+     * The last frame of the loop is frame m - 1, so wrapping around to the start of the loop continues into
+     * frame m exactly as the original recording did.</p>
+     *
+     * @param file file with samples after the header.
+     * @param sampleRate sample rate of the audio in Hz.
+     * @param channels number of interleaved channels.
+     * @param stamp stamp of the source, checked by {@link #open(File, long)}.
+     * @param checksum checksum of the source, returned by {@link #readChecksum(File)}.
+     * @param fadeFrames how many frames to crossfade. Shortened if the audio is too short for this.
+     */
+    public static void finish(File file, int sampleRate, int channels, long stamp, long checksum, int fadeFrames)
+            throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final int frameBytes = channels * 2;
+            final int decodedFrames = (int) ((channel.size() - HEADER_SIZE) / frameBytes);
+            // The fade can be at most a third of the audio, so the head and tail never overlap.
+            final int fade = Math.min(fadeFrames, decodedFrames / 3);
+            final int loopFrames = decodedFrames - fade;
+            if (loopFrames <= 0) {
+                throw new IOException("Too little audio for a loop: " + decodedFrames + " frames");
+            }
+            final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) decodedFrames * frameBytes);
+            map.order(ByteOrder.nativeOrder());
+            map.position(HEADER_SIZE);
+            final ShortBuffer samples = map.slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+            crossfade(samples, channels, loopFrames, fade);
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putLong(STAMP_OFFSET, stamp);
+            map.putLong(CHECKSUM_OFFSET, checksum);
+            map.putInt(24, sampleRate);
+            map.putInt(28, channels);
+            map.putInt(32, loopFrames);
+            map.putInt(36, fade);
+            map.force();
+            channel.truncate(HEADER_SIZE + (long) loopFrames * frameBytes);
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Mixes the frames after the loop end into the loop start, with equal power gains since the two signals are
+     * uncorrelated.
+     * @param samples interleaved samples, at least (loopFrames + fade) frames long.
+     * @param channels number of interleaved channels.
+     * @param loopFrames frames in the finished loop.
+     * @param fade frames to crossfade.
+     */
+    static void crossfade(ShortBuffer samples, int channels, int loopFrames, int fade) {
+        for (int frame = 0; frame < fade; frame++) {
+            final double t = (frame + 0.5) / fade;
+            final double fadeIn = Math.sin(t * Math.PI / 2);
+            final double fadeOut = Math.cos(t * Math.PI / 2);
+            for (int c = 0; c < channels; c++) {
+                final int head = frame * channels + c;
+                final int tail = (loopFrames + frame) * channels + c;
+                final double mixed = samples.get(head) * fadeIn + samples.get(tail) * fadeOut;
+                samples.put(head, (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(mixed))));
+            }
+        }
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    /** Returns the length of the loop in frames. */
+    public int getFrameCount() {
+        return mSamples.limit() / mChannels;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length) {
+        final ShortBuffer samples = mSamples;
+        int written = 0;
+        while (written < length) {
+            if (!samples.hasRemaining()) {
+                // The seam: wrap to the start, which was crossfaded with the tail.
+                samples.rewind();
+            }
+            final int count = Math.min(length - written, samples.remaining());
+            samples.get(buffer, offset + written, count);
+            written += count;
+        }
+        return written;
+    }
+
+    @Override
+    public void close() {
+        // The mapping is released when it is garbage collected.
+    }
+
+    /**
+     * Reads a long from the header of the file, returning -1 on any error.
+     */
+    private static long readLong(File file, int offset) {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return -1;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            raf.getChannel().read(b, 0);
+            if (b.getInt(0) != MAGIC) {
+                return -1;
+            }
+            return b.getLong(offset);
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Close a file, ignoring errors.
+     */
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf == null) {
+            return;
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
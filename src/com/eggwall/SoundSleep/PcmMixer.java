@@ -0,0 +1,285 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import java.util.Arrays;
+
+/**
+ * Layers music over a bed of noise, producing one stream for a single {@link PcmPlayer}. Playing both through one
+ * audio track costs one writing thread and one wake lock, rather than a second {@link android.media.MediaPlayer}
+ * with its own decoder and wake lock.
+ *
+ * <p>The output has the sample rate and channels of the noise. Music is resampled to that rate by linear
+ * interpolation, and mono music is played on every channel. Both layers have their own gain. The mix is done in
+ * integer arithmetic on buffers allocated once, so the mix loop allocates nothing, and is cheap on devices without
+ * a fast floating point unit.</p>
+ *
+ * <p>Songs come and go while the noise plays on. {@link #setMusic} hands over the next song from any thread, and
+ * the {@link Listener} hears when a song ends. Everything else happens on the thread that reads the mix.</p>
+ */
+public class PcmMixer implements PcmSource {
+    /**
+     * Hears when a song ends.
+     */
+    public interface Listener {
+        /**
+         * The song has ended and been closed, and only the noise is playing. Called on the thread reading the mix,
+         * so implementations should only hand the work over to another thread.
+         */
+        void onMusicEnded();
+    }
+
+    /** Gains are fixed point numbers with this many fractional bits. */
+    private static final int GAIN_BITS = 12;
+    /** A gain of 1 in fixed point. */
+    private static final int UNITY_GAIN = 1 << GAIN_BITS;
+    /**
+     * Positions in the music are fixed point numbers with this many fractional bits. Small enough that the
+     * difference of two samples times a fraction fits in an int.
+     */
+    private static final int FRACTION_BITS = 14;
+    /** Extracts the fractional part of a position. */
+    private static final int FRACTION_MASK = (1 << FRACTION_BITS) - 1;
+    /** Size of the buffer that music is read into, in samples. */
+    private static final int MUSIC_BUFFER_SAMPLES = 8192;
+
+    /** The noise, which sets the format of the mix. */
+    private final PcmSource mNoise;
+    /** Sample rate of the mix, in Hz. */
+    private final int mSampleRate;
+    /** Number of channels in the mix. */
+    private final int mChannels;
+    /** Hears when songs end. */
+    private final Listener mListener;
+    /** Guards {@link #mPendingMusic}. */
+    private final Object mLock = new Object();
+    /** The next song, handed over but not yet picked up by the reading thread. */
+    private PcmSource mPendingMusic;
+
+    /** The song playing, or null if only the noise is playing. Only used by the reading thread. */
+    private PcmSource mMusic;
+    /** Samples read from the music, interleaved by the music's own channels. */
+    private final short[] mMusicBuffer = new short[MUSIC_BUFFER_SAMPLES];
+    /** Number of music channels in {@link #mMusicBuffer}. */
+    private int mMusicChannels = 1;
+    /** Number of frames in {@link #mMusicBuffer}. */
+    private int mMusicFrames = 0;
+    /** Position of the next output frame in {@link #mMusicBuffer}, in frames, as a fixed point number. */
+    private int mPosition = 0;
+    /** How far the position moves for each output frame, as a fixed point number. */
+    private int mStep = 1 << FRACTION_BITS;
+
+    /** Gain of the noise, in fixed point. */
+    private volatile int mNoiseGain = UNITY_GAIN;
+    /** Gain of the music, in fixed point. */
+    private volatile int mMusicGain = UNITY_GAIN;
+
+    /**
+     * @param noise the noise to play under the music. It plays without end, and sets the format of the mix.
+     * @param listener hears when songs end.
+     */
+    public PcmMixer(PcmSource noise, Listener listener) {
+        mNoise = noise;
+        mSampleRate = noise.getSampleRate();
+        mChannels = noise.getChannelCount();
+        mListener = listener;
+    }
+
+    /**
+     * Set the gain of each layer.
+     * @param noiseGain between 0 (silent) and 1 (as loud as the noise itself).
+     * @param musicGain between 0 (silent) and 1 (as loud as the music itself).
+     */
+    public void setGains(float noiseGain, float musicGain) {
+        mNoiseGain = toFixedGain(noiseGain);
+        mMusicGain = toFixedGain(musicGain);
+    }
+
+    /**
+     * Start playing a song over the noise, in place of the current one. Can be called from any thread.
+     * @param music the song. The mixer closes it when it ends, or when the mixer is closed.
+     */
+    public void setMusic(PcmSource music) {
+        final PcmSource replaced;
+        synchronized (mLock) {
+            replaced = mPendingMusic;
+            mPendingMusic = music;
+        }
+        if (replaced != null) {
+            replaced.close();
+        }
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return mChannels;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length) {
+        pickUpMusic();
+        readNoise(buffer, offset, length);
+        if (mMusic != null) {
+            addMusic(buffer, offset, length);
+        }
+        return length;
+    }
+
+    @Override
+    public void close() {
+        mNoise.close();
+        if (mMusic != null) {
+            mMusic.close();
+            mMusic = null;
+        }
+        setMusic(null);
+    }
+
+    /**
+     * Switch to a song handed over by {@link #setMusic}, if there is one.
+     */
+    private void pickUpMusic() {
+        final PcmSource music;
+        synchronized (mLock) {
+            music = mPendingMusic;
+            mPendingMusic = null;
+        }
+        if (music == null) {
+            return;
+        }
+        if (mMusic != null) {
+            mMusic.close();
+        }
+        mMusic = music;
+        mMusicFrames = 0;
+        mPosition = 0;
+    }
+
+    /**
+     * Fill the buffer with noise at its gain.
+     */
+    private void readNoise(short[] buffer, int offset, int length) {
+        int filled = 0;
+        while (filled < length) {
+            final int read = mNoise.read(buffer, offset + filled, length - filled);
+            if (read <= 0) {
+                Arrays.fill(buffer, offset + filled, offset + length, (short) 0);
+                break;
+            }
+            filled += read;
+        }
+        final int gain = mNoiseGain;
+        if (gain == UNITY_GAIN) {
+            return;
+        }
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            buffer[i] = (short) ((buffer[i] * gain) >> GAIN_BITS);
+        }
+    }
+
+    /**
+     * Add music at its gain to the noise already in the buffer, resampling it to the rate of the mix.
+     */
+    private void addMusic(short[] buffer, int offset, int length) {
+        final short[] music = mMusicBuffer;
+        final int channels = mChannels;
+        final int gain = mMusicGain;
+        final int end = offset + length;
+        for (int i = offset; i < end; i += channels) {
+            int frame = mPosition >> FRACTION_BITS;
+            while (frame + 1 >= mMusicFrames) {
+                if (!readMusic()) {
+                    endMusic();
+                    return;
+                }
+                frame = mPosition >> FRACTION_BITS;
+            }
+            final int fraction = mPosition & FRACTION_MASK;
+            final int musicChannels = mMusicChannels;
+            final int first = frame * musicChannels;
+            final int second = first + musicChannels;
+            for (int c = 0; c < channels; c++) {
+                final int musicChannel = (c < musicChannels) ? c : musicChannels - 1;
+                final int a = music[first + musicChannel];
+                final int b = music[second + musicChannel];
+                final int sample = a + (((b - a) * fraction) >> FRACTION_BITS);
+                final int mixed = buffer[i + c] + ((sample * gain) >> GAIN_BITS);
+                buffer[i + c] = (short) ((mixed > Short.MAX_VALUE) ? Short.MAX_VALUE
+                        : ((mixed < Short.MIN_VALUE) ? Short.MIN_VALUE : mixed));
+            }
+            mPosition += mStep;
+        }
+    }
+
+    /**
+     * Read more music into the buffer. The last frame is kept at the start, so that interpolation carries on
+     * smoothly across reads.
+     * @return false if the song has ended.
+     */
+    private boolean readMusic() {
+        final int channels = mMusic.getChannelCount();
+        final int frame = mPosition >> FRACTION_BITS;
+        int kept = 0;
+        if (channels == mMusicChannels && frame < mMusicFrames) {
+            System.arraycopy(mMusicBuffer, frame * channels, mMusicBuffer, 0, channels);
+            kept = 1;
+            mPosition -= frame << FRACTION_BITS;
+        } else {
+            // Skipped past the end of what was read, or the format changed: start afresh on the new samples.
+            mPosition -= Math.min(frame, mMusicFrames) << FRACTION_BITS;
+        }
+        mMusicChannels = channels;
+        final int capacity = (mMusicBuffer.length / channels) * channels;
+        final int read = mMusic.read(mMusicBuffer, kept * channels, capacity - kept * channels);
+        if (read <= 0) {
+            return false;
+        }
+        mMusicFrames = kept + read / channels;
+        mStep = (int) (((long) mMusic.getSampleRate() << FRACTION_BITS) / mSampleRate);
+        return true;
+    }
+
+    /**
+     * Close the song that ended, and say so.
+     */
+    private void endMusic() {
+        mMusic.close();
+        mMusic = null;
+        mMusicFrames = 0;
+        mPosition = 0;
+        mListener.onMusicEnded();
+    }
+
+    /**
+     * Converts a gain between 0 and 1 to fixed point.
+     */
+    private static int toFixedGain(float gain) {
+        if (gain <= 0) {
+            return 0;
+        }
+        if (gain >= 1) {
+            return UNITY_GAIN;
+        }
+        return (int) (gain * UNITY_GAIN);
+    }
+}
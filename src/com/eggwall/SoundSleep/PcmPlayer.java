@@ -0,0 +1,174 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Plays a {@link PcmSource} through an {@link AudioTrack} in streaming mode on its own thread. There is no codec
+ * involved: the samples from the source are copied straight to the audio mixer. The single buffer is allocated
+ * once, so the render loop allocates nothing however long it runs.
+ */
+public class PcmPlayer implements Runnable {
+    /** For logging */
+    private static final String TAG = "PcmPlayer";
+    /**
+     * How much audio, in milliseconds, the track holds. Larger buffers mean fewer wakeups of the writing thread, and
+     * latency doesn't matter for background noise.
+     */
+    private static final int BUFFER_MILLIS = 500;
+
+    /** Where the samples come from. */
+    private final PcmSource mSource;
+    /** Where the samples go to. */
+    private final AudioTrack mTrack;
+    /** Samples are read into this buffer, and written from it to {@link #mTrack}. */
+    private final short[] mBuffer;
+    /** The thread writing samples to the track. Null when not playing. */
+    private Thread mThread;
+    /** Set to false to ask the writing thread to exit. */
+    private volatile boolean mRunning = false;
+    /** True once {@link #release()} was called. Guarded by this. */
+    private boolean mReleased = false;
+    /** True once the writing thread has exited, and no longer touches the track or the source. Guarded by this. */
+    private boolean mWriterExited = false;
+
+    /**
+     * Create a player for this source. Call {@link #start()} to begin playing.
+     * @param source the audio to play. Ownership passes to this player, which closes it on {@link #release()}.
+     */
+    public PcmPlayer(PcmSource source) {
+        mSource = source;
+        final int rate = source.getSampleRate();
+        final int channels = source.getChannelCount();
+        final int channelConfig = (channels == 1) ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        final int minBytes = AudioTrack.getMinBufferSize(rate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        // Two bytes per sample.
+        final int wantedBytes = rate * channels * 2 * BUFFER_MILLIS / 1000;
+        final int trackBytes = Math.max(minBytes, wantedBytes);
+        mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, rate, channelConfig, AudioFormat.ENCODING_PCM_16BIT,
+                trackBytes, AudioTrack.MODE_STREAM);
+        // Write a quarter of the track at a time, rounded down to whole frames, so the track never runs dry.
+        final int samples = (trackBytes / 2 / 4 / channels) * channels;
+        mBuffer = new short[Math.max(samples, channels)];
+    }
+
+    /**
+     * Returns true if the audio track could be created. If this is false, nothing will play.
+     */
+    public boolean isValid() {
+        return mTrack.getState() == AudioTrack.STATE_INITIALIZED;
+    }
+
+    /**
+     * Start playing on a background thread.
+     */
+    public void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mTrack.play();
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Sets the volume on both channels.
+     * @param volume between 0 (silent) and 1 (full volume).
+     */
+    public void setVolume(float volume) {
+        mTrack.setStereoVolume(volume, volume);
+    }
+
+    /**
+     * Stop playing, wait for the writing thread to exit and release the track and the source. If the writer is
+     * still stuck in the source after waiting, it releases them itself when it gets out, so a decoder is never
+     * closed under a read.
+     */
+    public void release() {
+        mRunning = false;
+        final Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            // The writer is blocked on at most one buffer's worth of audio.
+            mTrack.pause();
+            mTrack.flush();
+            try {
+                thread.join(BUFFER_MILLIS * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            mReleased = true;
+            if (thread != null && !mWriterExited) {
+                Log.e(TAG, "Writer is still busy, it will release the track when it exits.");
+                return;
+            }
+        }
+        releaseTrackAndSource();
+    }
+
+    /**
+     * Release the track and close the source. Only called once nothing else uses them.
+     */
+    private void releaseTrackAndSource() {
+        mTrack.stop();
+        mTrack.release();
+        mSource.close();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        final short[] buffer = mBuffer;
+        try {
+            while (mRunning) {
+                final int read = mSource.read(buffer, 0, buffer.length);
+                if (read == PcmSource.END_OF_STREAM) {
+                    Log.d(TAG, "Source finished.");
+                    break;
+                }
+                int written = 0;
+                while (mRunning && written < read) {
+                    final int result = mTrack.write(buffer, written, read - written);
+                    if (result < 0) {
+                        Log.e(TAG, "AudioTrack write failed: " + result);
+                        mRunning = false;
+                        break;
+                    }
+                    written += result;
+                }
+            }
+        } finally {
+            final boolean released;
+            synchronized (this) {
+                mWriterExited = true;
+                released = mReleased;
+            }
+            if (released) {
+                // release() gave up waiting, and left the track and the source to us.
+                releaseTrackAndSource();
+            }
+        }
+    }
+}
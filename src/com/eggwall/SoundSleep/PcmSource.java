@@ -0,0 +1,47 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+/**
+ * A source of signed 16 bit PCM audio, interleaved by channel. This is plain Java so that sources can be exercised
+ * without a device.
+ */
+public interface PcmSource {
+    /** Returned from {@link #read(short[], int, int)} when the source has no more audio. */
+    int END_OF_STREAM = -1;
+
+    /** The sample rate of the audio, in Hz. */
+    int getSampleRate();
+
+    /** The number of interleaved channels: 1 for mono, 2 for stereo. */
+    int getChannelCount();
+
+    /**
+     * Fills the buffer with samples. Implementations must not allocate here, since this is called continuously
+     * for the entire night.
+     * @param buffer the buffer to write samples into.
+     * @param offset the first position in the buffer to write to.
+     * @param length the maximum number of samples to write. This is always a multiple of the channel count.
+     * @return the number of samples written, or {@link #END_OF_STREAM} if nothing more can be read.
+     */
+    int read(short[] buffer, int offset, int length);
+
+    /**
+     * Release any resources held by this source. The source cannot be read after this.
+     */
+    void close();
+}
@@ -0,0 +1,914 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import java.io.IOException;
+
+/**
+ * The rules of playback, with no Android in them: what a request does given what is playing, falling back to what
+ * the device can play, preparing the next song while one plays and chaining or crossfading it on, skipping broken
+ * songs, resuming a song part way through, and the sleep timer. {@link AudioService} runs all of its playback
+ * through one controller.
+ *
+ * <p>Players are reached through {@link Player}, time through a {@link Scheduler}, and everything else through a
+ * {@link Host}: the songs to play, audio that the host produces itself, like synthesized noise and mixes, and the
+ * notification and listeners. So the same code can run against simulated players on a virtual clock, and replay a
+ * night in seconds.</p>
+ *
+ * <p>Only call this from one thread, the one the scheduler and players call back on. The exception is
+ * {@link #getTypePlaying()}, which can be read from any thread.</p>
+ */
+public class PlaybackController implements Player.Listener {
+    /** Stop playing any audio. */
+    public static final int SILENCE = 0;
+    /** Play music from the SD card. */
+    public static final int MUSIC = 1;
+    /** Play the included white noise file. */
+    public static final int WHITE_NOISE = 2;
+    /** Tell the host the current status without changing any state. */
+    public static final int GET_STATUS = 3;
+    /** Play noise synthesized on the device. */
+    public static final int NOISE = 4;
+    /** Play music with synthesized noise under it. */
+    public static final int MUSIC_AND_NOISE = 5;
+    /** Number of modes, including {@link #GET_STATUS} which is never entered. */
+    public static final int MODE_COUNT = 6;
+
+    /** Source of the included white noise, for {@link Player#setSource(String)}. */
+    public static final String SOURCE_WHITE_NOISE = "raw:noise";
+    /** Source of the included jingle, played when there is no music to play. */
+    public static final String SOURCE_JINGLE = "raw:jingle";
+
+    /** Give up skipping broken songs after this many fail in a row. */
+    public static final int MAX_CONSECUTIVE_ERRORS = 5;
+    /** The longest a sleep timer fades out for. Shorter timers fade out over their whole length. */
+    public static final long SLEEP_FADE_MILLIS = 10 * 60 * 1000;
+    /**
+     * Number of volume changes in the fade out of a sleep timer. Each is one short callback on a CPU that is held
+     * awake for playback anyway, so the fade costs no extra wakeups.
+     */
+    public static final int SLEEP_FADE_STEPS = 8;
+    /** Number of volume changes in one crossfade between songs. */
+    public static final int CROSSFADE_STEPS = 10;
+
+    /**
+     * Runs code later, on the controller's thread, and tells the time. A {@code Handler} and
+     * {@code SystemClock.elapsedRealtime()} on a device, a virtual clock in a simulation.
+     */
+    public interface Scheduler {
+        /** Returns the current time in milliseconds, on a monotonic clock. */
+        long now();
+
+        /** Returns the CPU time used by the process in milliseconds, or 0 if it isn't known. */
+        long cpuTime();
+
+        /** Run this after a delay, in milliseconds. */
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        /** Forget every pending run of this runnable. */
+        void removeCallbacks(Runnable runnable);
+    }
+
+    /**
+     * Everything the controller needs from around it: the songs, audio that the host plays itself, and telling the
+     * user. All called on the controller's thread.
+     */
+    public interface Host {
+        /**
+         * Tell clients what is playing: after audio starts, when it stops, or when asked.
+         * @param type a mode like {@link #MUSIC}, or {@link #SILENCE}.
+         */
+        void onTypePlayingChanged(int type);
+
+        /**
+         * The mode, the song, its position or the sleep timer changed. A good time to save them, so that playback
+         * can be resumed with {@link #resume}.
+         */
+        void onStateChanged();
+
+        /**
+         * A request to play was acted on. Audio starts after this, and {@link #onStarted(int)} follows.
+         * @param tappedAt when the user tapped, or 0 if unknown.
+         * @param receivedAt when the request came in, or 0 if it is not being timed.
+         */
+        void onPlayRequested(long tappedAt, long receivedAt);
+
+        /** Audio for the request started preparing. */
+        void onPreparing();
+
+        /** Audio for the request finished preparing. */
+        void onPrepared();
+
+        /**
+         * Audio started playing after a request, or after playback moved on to a song that had to be prepared from
+         * scratch.
+         * @param type the mode playing.
+         */
+        void onStarted(int type);
+
+        /** All audio stopped, because it was asked to or the sleep timer ended. */
+        void onStopped();
+
+        /** Returns the next song to play, moving on in the order, or null if there is none. */
+        String nextTrack();
+
+        /** Returns the source for {@link Player#setSource(String)} that plays this song. */
+        String getSource(String track);
+
+        /** Returns the volume that matches the loudness of this song to the others, 1 if unknown. */
+        float getTrackGain(String track);
+
+        /** Returns the length of crossfades between songs in milliseconds, or 0 to play them back to back. */
+        long getCrossfadeMillis();
+
+        /** A song was read far enough to know its length. */
+        void onTrackPrepared(String track, int durationMillis);
+
+        /** This song couldn't be played, and shouldn't be picked again until it changes. */
+        void onUnplayable(String track);
+
+        /**
+         * Play a mode with audio that the host produces itself, rather than with a {@link Player}.
+         * @param type {@link #MUSIC_AND_NOISE}, {@link #NOISE}, or {@link #WHITE_NOISE}
+         * @param noiseColor the color of the noise, as given with the request.
+         * @param volume the volume to start at.
+         * @return true if the audio is playing, false if the device can't play it this way.
+         */
+        boolean startPcm(int type, int noiseColor, float volume);
+
+        /** Set the volume of the audio from {@link #startPcm}. */
+        void setPcmVolume(float volume);
+
+        /** Stop the audio from {@link #startPcm}. */
+        void releasePcm();
+    }
+
+    /** Runs code later, and tells the time. */
+    private final Scheduler mScheduler;
+    /** Hands out players. */
+    private final Player.Factory mPlayers;
+    /** Supplies songs and host audio, and hears about changes. */
+    private final Host mHost;
+    /** Counters for modes, songs and errors. */
+    private final PlaybackStats mStats;
+    /** Folds bursts of requests into one, which {@link #mApplyRequest} acts on. */
+    private final RequestCoalescer mCoalescer;
+    /** Number of changes from one mode to another, indexed by the mode before and the mode after. */
+    private final int[][] mTransitions = new int[MODE_COUNT][MODE_COUNT];
+
+    /** What is playing, a mode like {@link #MUSIC}. Written on the controller's thread, read from any. */
+    private volatile int mTypePlaying = SILENCE;
+    /** The color of noise requested with the last {@link #NOISE} or {@link #MUSIC_AND_NOISE} request. */
+    private int mNoiseColor = NoiseGenerator.PINK;
+    /** True while the host plays audio from {@link Host#startPcm}. */
+    private boolean mPcmPlaying = false;
+    /** The player playing, or null. */
+    private Player mPlayer;
+    /** The song {@link #mPlayer} is playing, or null if it is playing an included sound. */
+    private String mPlayerTrack;
+    /** Loudness matching volume for {@link #mPlayer}. */
+    private float mPlayerGain = 1.0f;
+    /** True if {@link #mPlayer} is playing a song rather than an included sound. */
+    private boolean mPlayingFromCard = false;
+    /**
+     * The next song, prepared while {@link #mPlayer} plays, so that it can start the moment the current song
+     * completes. Only used for songs.
+     */
+    private Player mNextPlayer;
+    /** The song {@link #mNextPlayer} is preparing, or null. */
+    private String mNextPlayerTrack;
+    /** Loudness matching volume for {@link #mNextPlayer}. */
+    private float mNextPlayerGain = 1.0f;
+    /** True once {@link #mNextPlayer} has finished preparing. */
+    private boolean mNextPrepared = false;
+    /** True if {@link #mNextPlayer} should start as soon as it is prepared, because the last song already ended. */
+    private boolean mStartNextWhenPrepared = false;
+    /** True if {@link #mNextPlayer} is chained to {@link #mPlayer}, so it starts by itself. */
+    private boolean mNextChained = false;
+    /** The song fading out during a crossfade, which was {@link #mPlayer} before the crossfade. Null otherwise. */
+    private Player mFadingPlayer;
+    /** Loudness matching volume for {@link #mFadingPlayer}. */
+    private float mFadingPlayerGain = 1.0f;
+    /** Step of the crossfade, from 1 to {@link #CROSSFADE_STEPS} while one is going on, 0 before it starts. */
+    private int mCrossfadeStep = 0;
+    /** Time between steps of the crossfade, in milliseconds. */
+    private long mCrossfadeStepMillis = 0;
+    /** When the crossfade started. */
+    private long mCrossfadeStartedAt = 0;
+    /** CPU time of the process when the crossfade started. */
+    private long mCrossfadeCpuStartedAt = 0;
+    /** The song most recently picked by {@link #tryStartingMusic()}. */
+    private String mPickedTrack;
+    /** Volume that matches the loudness of {@link #mPickedTrack} to the others. */
+    private float mPickedGain = 1.0f;
+    /** When {@link #mPlayer} started preparing. */
+    private long mPrepareStartedAt = 0;
+    /** When {@link #mNextPlayer} started preparing. */
+    private long mNextPrepareStartedAt = 0;
+    /** When the last song completed, or 0 if not waiting for the next. */
+    private long mCompletedAt = 0;
+    /** When the chained song started, or 0 if not yet started. */
+    private long mNextStartedAt = 0;
+    /**
+     * When {@link #mPlayerTrack} would have started to be where it is now, counting any seek, or 0 if no song is
+     * playing. Saves asking the player for its position.
+     */
+    private long mTrackStartedAt = 0;
+    /** The song to seek into once it is prepared, from {@link #resume}, or null. */
+    private String mResumeTrack;
+    /** Where to seek to in {@link #mResumeTrack}, in milliseconds. */
+    private long mResumePositionMillis = 0;
+    /** Songs that failed to play one after the other. Reset when a song plays. */
+    private int mConsecutiveErrors = 0;
+    /** Volume for all playback, lowered while the sleep timer fades out. */
+    private float mVolume = 1.0f;
+    /** The step of the sleep timer fade we are at. 0 is full volume. */
+    private int mSleepFadeStep = 0;
+    /** Time between steps of the sleep timer fade. */
+    private long mSleepStepMillis = 0;
+    /** When the sleep timer ends, or 0 if there is none. */
+    private long mSleepEndsAt = 0;
+
+    /**
+     * @param scheduler runs code later, and tells the time.
+     * @param players hands out players, which call back this controller as their {@link Player.Listener}.
+     * @param host supplies songs and host audio, and hears about changes.
+     * @param stats counters for modes, songs, errors and coalesced requests.
+     */
+    public PlaybackController(Scheduler scheduler, Player.Factory players, Host host, PlaybackStats stats) {
+        mScheduler = scheduler;
+        mPlayers = players;
+        mHost = host;
+        mStats = stats;
+        mCoalescer = new RequestCoalescer(stats);
+    }
+
+    /** Returns what is playing, a mode like {@link #MUSIC}, or {@link #SILENCE}. Can be called from any thread. */
+    public int getTypePlaying() {
+        return mTypePlaying;
+    }
+
+    /** Returns the color of noise for {@link #NOISE} and {@link #MUSIC_AND_NOISE}. */
+    public int getNoiseColor() {
+        return mNoiseColor;
+    }
+
+    /** Returns the song playing, or null if none is. */
+    public String getTrackPlaying() {
+        return mPlayerTrack;
+    }
+
+    /** Returns how far into {@link #getTrackPlaying()} playback is, in milliseconds, or 0 if no song is playing. */
+    public long getPositionMillis() {
+        return (mPlayerTrack != null && mTrackStartedAt != 0) ? mScheduler.now() - mTrackStartedAt : 0;
+    }
+
+    /** Returns when the sleep timer ends, on the scheduler's clock, or 0 if there is none. */
+    public long getSleepEndsAt() {
+        return mSleepEndsAt;
+    }
+
+    /** Returns the volume all playback is at, lowered by the sleep timer. */
+    public float getVolume() {
+        return mVolume;
+    }
+
+    /** Returns the number of changes from one mode to another. */
+    public int getTransitions(int from, int to) {
+        return mTransitions[from][to];
+    }
+
+    /**
+     * Take in a request. Requests aren't acted on straight away. The first one waits
+     * {@link RequestCoalescer#WINDOW_MILLIS}, and any that come in meanwhile are folded into it: each one applies to
+     * what the requests before it would have left playing. Only the end result is played, so a burst of taps
+     * builds one player instead of one per tap.
+     * @param type a mode like {@link #MUSIC}, {@link #SILENCE} to stop, or {@link #GET_STATUS}. Asking for what is
+     *             already playing stops it.
+     * @param sleepMinutes minutes after which audio fades out and stops, or 0 for no timer.
+     * @param noiseColor the color of noise for {@link #NOISE} and {@link #MUSIC_AND_NOISE}.
+     * @param tappedAt when the user tapped, on the scheduler's clock, or 0 if unknown.
+     * @param receivedAt when the request came in, on the scheduler's clock.
+     */
+    public void request(int type, int sleepMinutes, int noiseColor, long tappedAt, long receivedAt) {
+        if (type == GET_STATUS) {
+            mHost.onTypePlayingChanged(mTypePlaying);
+            return;
+        }
+        if (mCoalescer.offer(mTypePlaying, type, sleepMinutes, noiseColor, tappedAt, receivedAt)) {
+            mScheduler.postDelayed(mApplyRequest, RequestCoalescer.WINDOW_MILLIS);
+        }
+    }
+
+    /**
+     * Acts on the pending request, once no request has replaced it for {@link RequestCoalescer#WINDOW_MILLIS}.
+     */
+    private final Runnable mApplyRequest = new Runnable() {
+        @Override
+        public void run() {
+            mCoalescer.take();
+            applyRequest(mCoalescer.getType(), mCoalescer.getSleepMinutes(), mCoalescer.getNoiseColor(),
+                    mCoalescer.getTappedAt(), mCoalescer.getReceivedAt());
+        }
+    };
+
+    /**
+     * Carry on playing what was playing before, straight away: the same mode, the same song from about the same
+     * place, and the rest of the sleep timer. The host picks the song, from {@link Host#nextTrack()}.
+     * @param type the mode to play.
+     * @param noiseColor the color of noise for {@link #NOISE} and {@link #MUSIC_AND_NOISE}.
+     * @param track the song that was playing, or null.
+     * @param positionMillis where to seek to in that song, if it is the one picked.
+     * @param sleepMillis time left on the sleep timer, or 0 for none.
+     */
+    public void resume(int type, int noiseColor, String track, long positionMillis, long sleepMillis) {
+        mResumeTrack = track;
+        mResumePositionMillis = positionMillis;
+        applyRequest(type, 0, noiseColor, 0, 0);
+        if (!mPlayingFromCard) {
+            // No song was started, so there is nothing to seek into later.
+            mResumeTrack = null;
+            mResumePositionMillis = 0;
+        }
+        if (sleepMillis > 0) {
+            startSleepTimer(sleepMillis);
+        }
+    }
+
+    /**
+     * Make the controller play this, after coalescing.
+     * @param type what should be playing, a mode like {@link #MUSIC} or {@link #SILENCE}.
+     * @param sleepMinutes minutes for a sleep timer, or 0 for none.
+     * @param noiseColor the color of noise for {@link #NOISE} and {@link #MUSIC_AND_NOISE}.
+     * @param tappedAt when the user tapped, or 0 if unknown.
+     * @param receivedAt when the request came in, or 0 if it is not being timed.
+     */
+    private void applyRequest(int type, int sleepMinutes, int noiseColor, long tappedAt, long receivedAt) {
+        if (type == SILENCE) {
+            // Stop even if nothing is playing: taps that cancel out from a cold start still leave the host running.
+            stop();
+            return;
+        }
+        if (type == mTypePlaying) {
+            // The taps cancelled out, or set a timer on what is already playing.
+            if (sleepMinutes > 0) {
+                startSleepTimer(sleepMinutes * 60L * 1000L);
+            }
+            mHost.onTypePlayingChanged(mTypePlaying);
+            return;
+        }
+        if (type == NOISE || type == MUSIC_AND_NOISE) {
+            mNoiseColor = noiseColor;
+        }
+        mHost.onPlayRequested(tappedAt, receivedAt);
+        setTypePlaying(type);
+        // Released before the sleep timer restores full volume, so switching during a fade out is never heard loud.
+        releasePlayer();
+        if (sleepMinutes > 0) {
+            startSleepTimer(sleepMinutes * 60L * 1000L);
+        } else {
+            cancelSleepTimer();
+        }
+        play(type);
+    }
+
+    /**
+     * Stop all audio and the sleep timer, and tell the host. A request waiting to be acted on still is.
+     */
+    public void stop() {
+        setTypePlaying(SILENCE);
+        // Released before the sleep timer restores full volume, so the end of a fade out is never heard loud.
+        releasePlayer();
+        cancelSleepTimer();
+        mHost.onTypePlayingChanged(SILENCE);
+        mHost.onStopped();
+    }
+
+    /**
+     * Stop everything for good, dropping any request waiting to be acted on. The host is not told.
+     */
+    public void shutdown() {
+        mScheduler.removeCallbacks(mApplyRequest);
+        mCoalescer.clear();
+        setTypePlaying(SILENCE);
+        releasePlayer();
+        cancelSleepTimer();
+    }
+
+    /**
+     * Change the mode, and count the change.
+     */
+    private void setTypePlaying(int type) {
+        mTransitions[mTypePlaying][type]++;
+        mTypePlaying = type;
+        mStats.enterMode(type, mScheduler.now(), mScheduler.cpuTime());
+        mHost.onStateChanged();
+    }
+
+    /**
+     * Start playing a mode, falling back to what can be played: music with noise falls back to music alone,
+     * synthesized noise to the included white noise, and music to the included jingle when there are no songs.
+     */
+    private void play(int type) {
+        mPlayingFromCard = false;
+        if (type == MUSIC_AND_NOISE) {
+            if (startPcm(type)) {
+                return;
+            }
+            // Music can't be decoded here, fall back to playing it alone. Songs are only chained one after the other
+            // in MUSIC, so that is what is recorded as playing.
+            type = MUSIC;
+            setTypePlaying(MUSIC);
+        }
+        if (type == NOISE) {
+            if (startPcm(type)) {
+                return;
+            }
+            // Synthesis isn't possible here, fall back to the included white noise file.
+            type = WHITE_NOISE;
+        }
+        if (type == WHITE_NOISE && startPcm(type)) {
+            return;
+        }
+        if (type == MUSIC) {
+            final Player player = tryStartingMusic();
+            if (player != null) {
+                mPlayer = player;
+                mPlayerTrack = mPickedTrack;
+                mPlayerGain = mPickedGain;
+                mPlayingFromCard = true;
+                mPrepareStartedAt = mScheduler.now();
+                mHost.onPreparing();
+                // onPrepared() starts it.
+                mPlayer.prepareAsync();
+                return;
+            }
+        }
+        // Either there is no music to play, or white noise was asked for.
+        final String source = (type == WHITE_NOISE) ? SOURCE_WHITE_NOISE : SOURCE_JINGLE;
+        mPlayer = mPlayers.acquire();
+        if (mPlayer == null) {
+            return;
+        }
+        try {
+            mPlayer.setSource(source);
+        } catch (IOException e) {
+            mPlayers.recycle(mPlayer);
+            mPlayer = null;
+            return;
+        }
+        // White noise or the default song is looped forever.
+        mPlayer.setLooping(true);
+        mPlayer.setVolume(mVolume);
+        mPrepareStartedAt = mScheduler.now();
+        mHost.onPreparing();
+        mPlayer.prepareAsync();
+    }
+
+    /**
+     * Ask the host to play a mode with audio it produces itself.
+     * @return true if it is playing.
+     */
+    private boolean startPcm(int type) {
+        final long start = mScheduler.now();
+        mHost.onPreparing();
+        if (!mHost.startPcm(type, mNoiseColor, mVolume)) {
+            return false;
+        }
+        mPcmPlaying = true;
+        mStats.recordPrepare(mScheduler.now() - start);
+        mHost.onPrepared();
+        mHost.onStarted(mTypePlaying);
+        return true;
+    }
+
+    /**
+     * Returns a player given the next song, but not yet preparing, or null if there is no song that can be opened.
+     */
+    private Player tryStartingMusic() {
+        final String track = mHost.nextTrack();
+        if (track == null) {
+            return null;
+        }
+        final Player player = mPlayers.acquire();
+        if (player == null) {
+            return null;
+        }
+        mPickedTrack = track;
+        try {
+            player.setSource(mHost.getSource(track));
+        } catch (IOException e) {
+            mHost.onUnplayable(track);
+            mPlayers.recycle(player);
+            return null;
+        }
+        // Play this song, and a different one when done.
+        player.setLooping(false);
+        mPickedGain = mHost.getTrackGain(track);
+        player.setVolume(mVolume * mPickedGain);
+        return player;
+    }
+
+    /**
+     * Pick the song after this one and start preparing it, so it is ready by the time this one ends.
+     */
+    private void prepareNextPlayer() {
+        if (mTypePlaying != MUSIC || !mPlayingFromCard || mNextPlayer != null) {
+            return;
+        }
+        final Player next = tryStartingMusic();
+        if (next == null) {
+            return;
+        }
+        mNextPlayer = next;
+        mNextPlayerTrack = mPickedTrack;
+        mNextPlayerGain = mPickedGain;
+        mNextPrepared = false;
+        mNextPrepareStartedAt = mScheduler.now();
+        mNextPlayer.prepareAsync();
+    }
+
+    /**
+     * Let go of every player, and of the host's audio.
+     */
+    private void releasePlayer() {
+        cancelCrossfade();
+        releaseNextPlayer();
+        mCompletedAt = 0;
+        mNextStartedAt = 0;
+        if (mPlayer != null) {
+            mPlayers.recycle(mPlayer);
+            mPlayer = null;
+        }
+        mPlayerTrack = null;
+        mTrackStartedAt = 0;
+        mPlayerGain = 1.0f;
+        if (mPcmPlaying) {
+            mHost.releasePcm();
+            mPcmPlaying = false;
+        }
+    }
+
+    /**
+     * Let go of the player for the upcoming song.
+     */
+    private void releaseNextPlayer() {
+        if (mNextPlayer != null) {
+            if (mNextChained && mPlayer != null) {
+                mPlayer.setNext(null);
+            }
+            mPlayers.recycle(mNextPlayer);
+            mNextPlayer = null;
+            mNextPlayerTrack = null;
+        }
+        mNextPlayerGain = 1.0f;
+        mNextPrepared = false;
+        mStartNextWhenPrepared = false;
+        mNextChained = false;
+    }
+
+    /**
+     * Make the upcoming song's player the current one.
+     */
+    private void promoteNextPlayer() {
+        mStats.trackSwitched();
+        mPlayer = mNextPlayer;
+        mPlayerTrack = mNextPlayerTrack;
+        mTrackStartedAt = mScheduler.now();
+        mPlayerGain = mNextPlayerGain;
+        mNextPlayer = null;
+        mNextPlayerTrack = null;
+        mNextPrepared = false;
+        mStartNextWhenPrepared = false;
+        mNextChained = false;
+        mHost.onStateChanged();
+    }
+
+    @Override
+    public void onPrepared(Player player) {
+        final long preparedAt = mScheduler.now();
+        if (player == mNextPlayer) {
+            // Learn the length of songs for free, now that the player has read the file.
+            mHost.onTrackPrepared(mNextPlayerTrack, player.getDuration());
+            mStats.recordPrepare(preparedAt - mNextPrepareStartedAt);
+            onNextPrepared();
+            return;
+        }
+        if (player != mPlayer) {
+            return;
+        }
+        if (mPlayerTrack != null) {
+            mHost.onTrackPrepared(mPlayerTrack, player.getDuration());
+        }
+        mStats.recordPrepare(preparedAt - mPrepareStartedAt);
+        mHost.onPrepared();
+        if (mPlayingFromCard) {
+            mStats.trackSwitched();
+        }
+        mConsecutiveErrors = 0;
+        long resumeAt = 0;
+        if (mPlayingFromCard && mPlayerTrack.equals(mResumeTrack) && mResumePositionMillis < player.getDuration()) {
+            resumeAt = mResumePositionMillis;
+            player.seekTo((int) resumeAt);
+        }
+        mResumeTrack = null;
+        mResumePositionMillis = 0;
+        player.start();
+        mTrackStartedAt = mScheduler.now() - resumeAt;
+        mHost.onStarted(mTypePlaying);
+        mHost.onStateChanged();
+        if (mCompletedAt != 0) {
+            // Nothing was prepared in advance, and the song after the last one had to be prepared from scratch.
+            recordGap(mScheduler.now());
+        }
+        prepareNextPlayer();
+        scheduleCrossfade();
+    }
+
+    /**
+     * The upcoming song is ready. Chain it to the current one, or start it if the current one already ended.
+     */
+    private void onNextPrepared() {
+        mNextPrepared = true;
+        if (mStartNextWhenPrepared) {
+            // Too slow: the last song has already ended.
+            promoteNextPlayer();
+            mPlayer.start();
+            recordGap(mScheduler.now());
+            prepareNextPlayer();
+            scheduleCrossfade();
+            return;
+        }
+        // With crossfades, the next song is started by hand before this one ends instead.
+        if (mPlayer != null && mHost.getCrossfadeMillis() <= 0 && mPlayer.setNext(mNextPlayer)) {
+            mNextChained = true;
+        }
+    }
+
+    @Override
+    public void onStartedAsNext(Player player) {
+        mNextStartedAt = mScheduler.now();
+        if (player == mPlayer) {
+            // Completion was already handled, so the gap can be measured now.
+            recordGap(mNextStartedAt);
+        }
+    }
+
+    @Override
+    public void onCompletion(Player player) {
+        // Only songs complete, since the included sounds loop forever.
+        if (player != mPlayer) {
+            // An upcoming song that failed to prepare, which has already been handled.
+            return;
+        }
+        final long completedAt = mScheduler.now();
+        if (mTypePlaying != MUSIC || mNextPlayer == null) {
+            releasePlayer();
+            if (mTypePlaying == MUSIC) {
+                // The gap is measured when the new player is prepared.
+                mCompletedAt = completedAt;
+                play(mTypePlaying);
+            }
+            return;
+        }
+        mCompletedAt = completedAt;
+        // Let go of the finished song without touching the one that follows it.
+        final Player finished = mPlayer;
+        final boolean chained = mNextChained;
+        if (!mNextPrepared) {
+            // Start the next song the moment it is ready.
+            mPlayer = null;
+            mStartNextWhenPrepared = true;
+            mPlayers.recycle(finished);
+            return;
+        }
+        promoteNextPlayer();
+        mPlayers.recycle(finished);
+        if (chained) {
+            // Already started by the player before it.
+            if (mNextStartedAt != 0) {
+                recordGap(mNextStartedAt);
+            }
+        } else {
+            mPlayer.start();
+            recordGap(mScheduler.now());
+        }
+        prepareNextPlayer();
+        scheduleCrossfade();
+    }
+
+    @Override
+    public void onError(Player player, int what) {
+        mStats.error();
+        if (player == mFadingPlayer) {
+            // The song on its way out broke. Cut the crossfade short and carry on with the new one.
+            finishCrossfade();
+            return;
+        }
+        if (player == mNextPlayer) {
+            // Only the upcoming song is broken. Keep playing this one, and pick another when it ends.
+            final boolean waiting = mStartNextWhenPrepared;
+            mHost.onUnplayable(mNextPlayerTrack);
+            releaseNextPlayer();
+            if (waiting && mTypePlaying == MUSIC) {
+                // The last song already ended, and was waiting on this one.
+                play(MUSIC);
+            }
+            return;
+        }
+        if (player != mPlayer) {
+            return;
+        }
+        if (mPlayingFromCard) {
+            mHost.onUnplayable(mPlayerTrack);
+            mConsecutiveErrors++;
+            if (mTypePlaying == MUSIC && mConsecutiveErrors < MAX_CONSECUTIVE_ERRORS) {
+                releasePlayer();
+                play(MUSIC);
+                return;
+            }
+        }
+        releasePlayer();
+    }
+
+    /**
+     * Plan the crossfade out of the song that just started, if crossfades are on. The crossfade ends when the song
+     * does, so two songs overlap without keeping the CPU awake any longer than playing them back to back.
+     */
+    private void scheduleCrossfade() {
+        mScheduler.removeCallbacks(mCrossfadeStepper);
+        mCrossfadeStep = 0;
+        if (mTypePlaying != MUSIC || !mPlayingFromCard || mPlayer == null) {
+            return;
+        }
+        final long crossfade = mHost.getCrossfadeMillis();
+        final long duration = mPlayer.getDuration();
+        if (crossfade <= 0 || duration <= 0) {
+            return;
+        }
+        // Never more than half a song, so that short songs are still mostly heard on their own.
+        final long fade = Math.min(crossfade, duration / 2);
+        mCrossfadeStepMillis = fade / CROSSFADE_STEPS;
+        mScheduler.postDelayed(mCrossfadeStepper, Math.max(0, duration - mPlayer.getCurrentPosition() - fade));
+    }
+
+    /**
+     * Moves the crossfade along by one coarse step, starting it on the first step and finishing it on the last.
+     */
+    private final Runnable mCrossfadeStepper = new Runnable() {
+        @Override
+        public void run() {
+            if (mCrossfadeStep == 0 && !startCrossfade()) {
+                return;
+            }
+            mCrossfadeStep++;
+            if (mCrossfadeStep >= CROSSFADE_STEPS) {
+                finishCrossfade();
+                return;
+            }
+            applyCrossfadeVolume();
+            mScheduler.postDelayed(this, mCrossfadeStepMillis);
+        }
+    };
+
+    /**
+     * Start the next song silently alongside this one, and make it the current one.
+     * @return false if the next song isn't ready. Then there is no crossfade, and the next song starts when this
+     * one ends.
+     */
+    private boolean startCrossfade() {
+        if (mPlayer == null || mNextPlayer == null || !mNextPrepared) {
+            return false;
+        }
+        mCrossfadeStartedAt = mScheduler.now();
+        mCrossfadeCpuStartedAt = mScheduler.cpuTime();
+        mFadingPlayer = mPlayer;
+        mFadingPlayerGain = mPlayerGain;
+        mNextPlayer.setVolume(0);
+        mNextPlayer.start();
+        promoteNextPlayer();
+        return true;
+    }
+
+    /**
+     * Set the volume of both songs for the current step of the crossfade.
+     */
+    private void applyCrossfadeVolume() {
+        final float out = mVolume * FadeCurve.crossfadeOut(mCrossfadeStep, CROSSFADE_STEPS);
+        final float in = mVolume * FadeCurve.crossfadeIn(mCrossfadeStep, CROSSFADE_STEPS);
+        mFadingPlayer.setVolume(out * mFadingPlayerGain);
+        mPlayer.setVolume(in * mPlayerGain);
+    }
+
+    /**
+     * Let go of the song that faded out, and get ready for the song after the new one.
+     */
+    private void finishCrossfade() {
+        mScheduler.removeCallbacks(mCrossfadeStepper);
+        mPlayers.recycle(mFadingPlayer);
+        mFadingPlayer = null;
+        mPlayer.setVolume(mVolume * mPlayerGain);
+        mStats.recordCrossfade(mScheduler.now() - mCrossfadeStartedAt,
+                mScheduler.cpuTime() - mCrossfadeCpuStartedAt);
+        prepareNextPlayer();
+        scheduleCrossfade();
+    }
+
+    /**
+     * Stop any crossfade, planned or going on, and release the song that was fading out.
+     */
+    private void cancelCrossfade() {
+        mScheduler.removeCallbacks(mCrossfadeStepper);
+        mCrossfadeStep = 0;
+        if (mFadingPlayer != null) {
+            mPlayers.recycle(mFadingPlayer);
+            mFadingPlayer = null;
+        }
+    }
+
+    /**
+     * Record the silence between the end of one song and the start of the next.
+     * @param startedAt when the next song started.
+     */
+    private void recordGap(long startedAt) {
+        if (mCompletedAt == 0) {
+            return;
+        }
+        // With chained players, the next song can report starting before the last one reports completing.
+        mStats.recordGap(Math.max(0, startedAt - mCompletedAt));
+        mCompletedAt = 0;
+        mNextStartedAt = 0;
+    }
+
+    /**
+     * Fade out and stop all audio after this many milliseconds, replacing any existing timer. The fade is a
+     * handful of coarse volume steps at the end of the timer.
+     */
+    private void startSleepTimer(long total) {
+        cancelSleepTimer();
+        final long fade = Math.min(SLEEP_FADE_MILLIS, total);
+        mSleepStepMillis = fade / SLEEP_FADE_STEPS;
+        mSleepEndsAt = mScheduler.now() + total;
+        mScheduler.postDelayed(mSleepFadeStepper, total - fade + mSleepStepMillis);
+        mHost.onStateChanged();
+    }
+
+    /**
+     * Stop any sleep timer, and restore full volume.
+     */
+    private void cancelSleepTimer() {
+        mScheduler.removeCallbacks(mSleepFadeStepper);
+        mSleepFadeStep = 0;
+        mSleepEndsAt = 0;
+        setVolume(1.0f);
+    }
+
+    /**
+     * Lowers the volume by one step, and when the fade is done, stops playing and lets the CPU sleep.
+     */
+    private final Runnable mSleepFadeStepper = new Runnable() {
+        @Override
+        public void run() {
+            mSleepFadeStep++;
+            if (mSleepFadeStep >= SLEEP_FADE_STEPS) {
+                stop();
+                return;
+            }
+            setVolume(FadeCurve.fadeOut(mSleepFadeStep, SLEEP_FADE_STEPS));
+            mScheduler.postDelayed(this, mSleepStepMillis);
+        }
+    };
+
+    /**
+     * Set the volume of everything that is playing or about to play.
+     * @param volume between 0 (silent) and 1 (full volume)
+     */
+    private void setVolume(float volume) {
+        mVolume = volume;
+        if (mFadingPlayer != null) {
+            applyCrossfadeVolume();
+        } else if (mPlayer != null) {
+            mPlayer.setVolume(volume * mPlayerGain);
+        }
+        if (mNextPlayer != null) {
+            mNextPlayer.setVolume(volume * mNextPlayerGain);
+        }
+        if (mPcmPlaying) {
+            mHost.setPcmVolume(volume);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.eggwall.SoundSleep;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * What was playing, kept in a small file so that playback can carry on where it was if the process is killed in the
+ * night: the mode, the noise color, the song and roughly how far into it, and when the sleep timer ends.
+ *
+ * <p>The file is a few dozen bytes, written whole to a temporary file and renamed over the last one, so it is cheap
+ * to write at every change and is never seen half written. Times are {@code SystemClock.elapsedRealtime()}, which
+ * carries on across a process restart but not across a reboot; a snapshot from before a reboot reads as stale.</p>
+ */
+public class PlaybackSnapshot {
+    /** Identifies our files: "SSPS" */
+    private static final int MAGIC = 0x53535053;
+    /** Bump this whenever the file layout changes. */
+    private static final int VERSION = 1;
+
+    /** The mode that was playing, like {@link PlaybackController#MUSIC}. */
+    private int mMode = PlaybackController.SILENCE;
+    /** The color of synthesized noise. */
+    private int mNoiseColor = NoiseGenerator.PINK;
+    /** The song playing, relative to the music directory, or null. */
+    private String mTrack;
+    /** How far into {@link #mTrack} playback was, in milliseconds. */
+    private long mPositionMillis = 0;
+    /** When the sleep timer ends, or 0 if there is none. */
+    private long mSleepEndsAt = 0;
+    /** When this snapshot was taken. */
+    private long mSavedAt = 0;
+
+    /**
+     * Replace the whole snapshot.
+     * @param mode the mode playing, like {@link PlaybackController#MUSIC}.
+     * @param noiseColor the color of synthesized noise.
+     * @param track the song playing, relative to the music directory, or null.
+     * @param positionMillis how far into the song playback is, in milliseconds.
+     * @param sleepEndsAt when the sleep timer ends, or 0 for none.
+     * @param now the time of the snapshot.
+     */
+    public void set(int mode, int noiseColor, String track, long positionMillis, long sleepEndsAt, long now) {
+        mMode = mode;
+        mNoiseColor = noiseColor;
+        mTrack = track;
+        mPositionMillis = positionMillis;
+        mSleepEndsAt = sleepEndsAt;
+        mSavedAt = now;
+    }
+
+    /** Returns the mode that was playing. */
+    public int getMode() {
+        return mMode;
+    }
+
+    /** Returns the color of synthesized noise. */
+    public int getNoiseColor() {
+        return mNoiseColor;
+    }
+
+    /** Returns the song that was playing, or null. */
+    public String getTrack() {
+        return mTrack;
+    }
+
+    /** Returns how far into the song playback was, in milliseconds. */
+    public long getPositionMillis() {
+        return mPositionMillis;
+    }
+
+    /** Returns when the sleep timer ends, or 0 if there is none. */
+    public long getSleepEndsAt() {
+        return mSleepEndsAt;
+    }
+
+    /**
+     * Returns true if this snapshot was taken after the clock started, which is false for one saved before a reboot.
+     * @param now the current time, on the clock passed to {@link #set}.
+     */
+    public boolean isCurrent(long now) {
+        return mSavedAt > 0 && mSavedAt <= now;
+    }
+
+    /**
+     * Read a snapshot saved earlier. A missing or unreadable file reads as silence.
+     * @return true if a snapshot was read.
+     */
+    public boolean load(File file) {
+        mMode = PlaybackController.SILENCE;
+        if (!file.isFile()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            final int mode = in.readInt();
+            final int noiseColor = in.readInt();
+            final String track = in.readBoolean() ? in.readUTF() : null;
+            final long positionMillis = in.readLong();
+            final long sleepEndsAt = in.readLong();
+            final long savedAt = in.readLong();
+            set(mode, noiseColor, track, positionMillis, sleepEndsAt, savedAt);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the snapshot to disk, replacing the last one.
+     */
+    public void save(File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mMode);
+            out.writeInt(mNoiseColor);
+            out.writeBoolean(mTrack != null);
+            if (mTrack != null) {
+                out.writeUTF(mTrack);
+            }
+            out.writeLong(mPositionMillis);
+            out.writeLong(mSleepEndsAt);
+            out.writeLong(mSavedAt);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not write the playback snapshot to " + file);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import java.io.PrintWriter;
+
+/**
+ * Counters describing what playback costs: time spent in each mode, wake lock time and CPU time spent in each mode,
+ * time spent preparing players, players created and released, song changes, crossfades, coalesced requests and
+ * errors.
+ *
+ * <p>There is one instance per process, from {@link #get()}, so a test harness in the same process can read the
+ * same numbers that {@link AudioService} prints from dump(). Times are passed in by the caller, which keeps this
+ * class plain Java.</p>
+ */
+public class PlaybackStats {
+    /** The most modes we keep counters for. Modes are small integers like {@link AudioService#MUSIC}. */
+    public static final int MAX_MODES = 8;
+
+    /** The single instance for this process. */
+    private static final PlaybackStats sInstance = new PlaybackStats();
+
+    /** Total time in each mode, in milliseconds, from the request that entered it to the one that left it. */
+    private final long[] mModeMillis = new long[MAX_MODES];
+    /**
+     * Time the service's own wake lock was held in each mode, in milliseconds. Media players hold wake locks of their
+     * own while they play, which the framework doesn't report, so these are not counted.
+     */
+    private final long[] mWakeLockMillis = new long[MAX_MODES];
+    /** Process CPU time used in each mode, in milliseconds. */
+    private final long[] mModeCpuMillis = new long[MAX_MODES];
+    /** The current mode. */
+    private int mMode = 0;
+    /** Wall time when the current mode was entered, or -1 before the first mode. */
+    private long mModeSince = -1;
+    /** CPU time when the current mode was entered. */
+    private long mModeCpuSince = 0;
+    /** Wall time since the wake lock was held in the current mode, or -1 if it isn't held. */
+    private long mWakeLockSince = -1;
+
+    /** Number of times a player was prepared. */
+    private int mPrepareCount = 0;
+    /** Total time spent preparing players, in milliseconds. */
+    private long mPrepareMillis = 0;
+    /** Longest time spent preparing one player, in milliseconds. */
+    private long mPrepareMaxMillis = 0;
+
+    /** Native players constructed. */
+    private int mPlayersCreated = 0;
+    /** Players handed out again instead of being constructed. */
+    private int mPlayersReused = 0;
+    /** Native players released. */
+    private int mPlayersReleased = 0;
+
+    /** Songs started. */
+    private int mTrackSwitches = 0;
+    /** Silences measured between one song and the next. */
+    private int mGapCount = 0;
+    /** Total silence between songs, in milliseconds. */
+    private long mGapMillis = 0;
+    /** The last silence between songs, in milliseconds, or -1 if none was measured. */
+    private long mLastGapMillis = -1;
+
+    /** Crossfades between songs. */
+    private int mCrossfadeCount = 0;
+    /** Total time spent crossfading, in milliseconds. */
+    private long mCrossfadeMillis = 0;
+    /** Process CPU time used while crossfading, in milliseconds. */
+    private long mCrossfadeCpuMillis = 0;
+
+    /** Requests replaced by a later one before they were acted on. */
+    private int mRequestsCoalesced = 0;
+    /** Coalesced requests that would have started a player. */
+    private int mStartsAvoided = 0;
+
+    /** Errors from players. */
+    private int mErrors = 0;
+
+    /**
+     * Returns the instance for this process.
+     */
+    public static PlaybackStats get() {
+        return sInstance;
+    }
+
+    /**
+     * Start counting time against a new mode.
+     * @param mode the new mode, less than {@link #MAX_MODES}
+     * @param nowMillis a monotonic clock, in milliseconds.
+     * @param cpuMillis the CPU time used by this process, in milliseconds.
+     */
+    public synchronized void enterMode(int mode, long nowMillis, long cpuMillis) {
+        closeMode(nowMillis, cpuMillis);
+        mMode = mode;
+    }
+
+    /**
+     * Add the time since the current mode was entered to its totals.
+     */
+    private void closeMode(long nowMillis, long cpuMillis) {
+        if (mModeSince >= 0) {
+            mModeMillis[mMode] += nowMillis - mModeSince;
+            mModeCpuMillis[mMode] += cpuMillis - mModeCpuSince;
+        }
+        mModeSince = nowMillis;
+        mModeCpuSince = cpuMillis;
+        if (mWakeLockSince >= 0) {
+            // A wake lock held across the change is charged to each mode for its own part.
+            mWakeLockMillis[mMode] += nowMillis - mWakeLockSince;
+            mWakeLockSince = nowMillis;
+        }
+    }
+
+    /**
+     * Start counting wake lock time against the current mode. Does nothing if it is already held.
+     * @param nowMillis the same monotonic clock passed to {@link #enterMode}
+     */
+    public synchronized void wakeLockAcquired(long nowMillis) {
+        if (mWakeLockSince < 0) {
+            mWakeLockSince = nowMillis;
+        }
+    }
+
+    /**
+     * Stop counting wake lock time, and add the time it was held to the current mode. Does nothing if it isn't held.
+     * @param nowMillis the same monotonic clock passed to {@link #enterMode}
+     */
+    public synchronized void wakeLockReleased(long nowMillis) {
+        if (mWakeLockSince >= 0) {
+            mWakeLockMillis[mMode] += nowMillis - mWakeLockSince;
+            mWakeLockSince = -1;
+        }
+    }
+
+    /**
+     * Count one player that finished preparing.
+     * @param millis how long it took.
+     */
+    public synchronized void recordPrepare(long millis) {
+        mPrepareCount++;
+        mPrepareMillis += millis;
+        mPrepareMaxMillis = Math.max(mPrepareMaxMillis, millis);
+    }
+
+    /** Count one native player constructed. */
+    public synchronized void playerCreated() {
+        mPlayersCreated++;
+    }
+
+    /** Count one player handed out again instead of being constructed. */
+    public synchronized void playerReused() {
+        mPlayersReused++;
+    }
+
+    /** Count one native player released. */
+    public synchronized void playerReleased() {
+        mPlayersReleased++;
+    }
+
+    /** Count one song starting. */
+    public synchronized void trackSwitched() {
+        mTrackSwitches++;
+    }
+
+    /**
+     * Count the silence between one song and the next.
+     * @param millis the silence, in milliseconds.
+     */
+    public synchronized void recordGap(long millis) {
+        mGapCount++;
+        mGapMillis += millis;
+        mLastGapMillis = millis;
+    }
+
+    /**
+     * Count one crossfade between songs.
+     * @param millis how long it took.
+     * @param cpuMillis the CPU time used by this process during it.
+     */
+    public synchronized void recordCrossfade(long millis, long cpuMillis) {
+        mCrossfadeCount++;
+        mCrossfadeMillis += millis;
+        mCrossfadeCpuMillis += cpuMillis;
+    }
+
+    /**
+     * Count one request that was replaced by a later one before it was acted on.
+     * @param wouldHaveStarted true if acting on it would have started a player.
+     */
+    public synchronized void requestCoalesced(boolean wouldHaveStarted) {
+        mRequestsCoalesced++;
+        if (wouldHaveStarted) {
+            mStartsAvoided++;
+        }
+    }
+
+    /** Count one error from a player. */
+    public synchronized void error() {
+        mErrors++;
+    }
+
+    /**
+     * Returns the total time in a mode, including the current one up to now.
+     */
+    public synchronized long getModeMillis(int mode, long nowMillis) {
+        final long current = (mode == mMode && mModeSince >= 0) ? nowMillis - mModeSince : 0;
+        return mModeMillis[mode] + current;
+    }
+
+    /**
+     * Returns the total time the wake lock was held in a mode, including up to now if it is still held.
+     */
+    public synchronized long getWakeLockMillis(int mode, long nowMillis) {
+        final long current = (mode == mMode && mWakeLockSince >= 0) ? nowMillis - mWakeLockSince : 0;
+        return mWakeLockMillis[mode] + current;
+    }
+
+    /**
+     * Returns the total CPU time used in a mode, including the current one up to now.
+     */
+    public synchronized long getModeCpuMillis(int mode, long cpuMillis) {
+        final long current = (mode == mMode && mModeSince >= 0) ? cpuMillis - mModeCpuSince : 0;
+        return mModeCpuMillis[mode] + current;
+    }
+
+    /** Returns the number of players prepared. */
+    public synchronized int getPrepareCount() {
+        return mPrepareCount;
+    }
+
+    /** Returns the total time spent preparing players, in milliseconds. */
+    public synchronized long getPrepareMillis() {
+        return mPrepareMillis;
+    }
+
+    /** Returns the number of native players constructed. */
+    public synchronized int getPlayersCreated() {
+        return mPlayersCreated;
+    }
+
+    /** Returns the number of players handed out again instead of being constructed. */
+    public synchronized int getPlayersReused() {
+        return mPlayersReused;
+    }
+
+    /** Returns the number of native players released. */
+    public synchronized int getPlayersReleased() {
+        return mPlayersReleased;
+    }
+
+    /** Returns the number of songs started. */
+    public synchronized int getTrackSwitches() {
+        return mTrackSwitches;
+    }
+
+    /** Returns the silence between the last two songs in milliseconds, or -1 if none was measured. */
+    public synchronized long getLastGapMillis() {
+        return mLastGapMillis;
+    }
+
+    /** Returns the average silence between songs in milliseconds, or -1 if none was measured. */
+    public synchronized long getAverageGapMillis() {
+        return (mGapCount == 0) ? -1 : mGapMillis / mGapCount;
+    }
+
+    /** Returns the number of crossfades between songs. */
+    public synchronized int getCrossfadeCount() {
+        return mCrossfadeCount;
+    }
+
+    /** Returns the CPU time used while crossfading, in milliseconds. */
+    public synchronized long getCrossfadeCpuMillis() {
+        return mCrossfadeCpuMillis;
+    }
+
+    /** Returns the number of requests replaced by a later one before they were acted on. */
+    public synchronized int getRequestsCoalesced() {
+        return mRequestsCoalesced;
+    }
+
+    /** Returns the number of players that coalescing requests kept from being started. */
+    public synchronized int getStartsAvoided() {
+        return mStartsAvoided;
+    }
+
+    /** Returns the number of errors from players. */
+    public synchronized int getErrors() {
+        return mErrors;
+    }
+
+    /**
+     * Forget all counters. Meant for test harnesses that measure one run at a time.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < MAX_MODES; i++) {
+            mModeMillis[i] = 0;
+            mWakeLockMillis[i] = 0;
+            mModeCpuMillis[i] = 0;
+        }
+        mMode = 0;
+        mModeSince = -1;
+        mModeCpuSince = 0;
+        mWakeLockSince = -1;
+        mPrepareCount = 0;
+        mPrepareMillis = 0;
+        mPrepareMaxMillis = 0;
+        mPlayersCreated = 0;
+        mPlayersReused = 0;
+        mPlayersReleased = 0;
+        mTrackSwitches = 0;
+        mGapCount = 0;
+        mGapMillis = 0;
+        mLastGapMillis = -1;
+        mCrossfadeCount = 0;
+        mCrossfadeMillis = 0;
+        mCrossfadeCpuMillis = 0;
+        mRequestsCoalesced = 0;
+        mStartsAvoided = 0;
+        mErrors = 0;
+    }
+
+    /**
+     * Print all counters, one per line.
+     * @param writer where to print.
+     * @param modeNames names of the modes, indexed by mode. Modes without a name are skipped.
+     * @param nowMillis the same monotonic clock passed to {@link #enterMode}
+     * @param cpuMillis the CPU time used by this process, in milliseconds.
+     */
+    public synchronized void dump(PrintWriter writer, String[] modeNames, long nowMillis, long cpuMillis) {
+        writer.println("Playback stats:");
+        for (int mode = 0; mode < modeNames.length && mode < MAX_MODES; mode++) {
+            if (modeNames[mode] == null) {
+                continue;
+            }
+            final long modeMillis = getModeMillis(mode, nowMillis);
+            final long modeCpuMillis = getModeCpuMillis(mode, cpuMillis);
+            writer.println("  mode " + modeNames[mode] + ": time=" + modeMillis + "ms wakeLock="
+                    + getWakeLockMillis(mode, nowMillis) + "ms cpu=" + modeCpuMillis + "ms ("
+                    + cpuPerSecond(modeCpuMillis, modeMillis) + " cpu ms/s)" + (mode == mMode ? " (current)" : ""));
+        }
+        writer.println("  prepare: count=" + mPrepareCount + " total=" + mPrepareMillis + "ms max="
+                + mPrepareMaxMillis + "ms");
+        writer.println("  players: created=" + mPlayersCreated + " reused=" + mPlayersReused + " released="
+                + mPlayersReleased);
+        writer.println("  tracks: switches=" + mTrackSwitches + " gaps=" + mGapCount + " lastGap=" + mLastGapMillis
+                + "ms averageGap=" + getAverageGapMillis() + "ms");
+        writer.println("  crossfades: count=" + mCrossfadeCount + " time=" + mCrossfadeMillis + "ms cpu="
+                + mCrossfadeCpuMillis + "ms (" + cpuPerSecond(mCrossfadeCpuMillis, mCrossfadeMillis) + " cpu ms/s)");
+        writer.println("  requests: coalesced=" + mRequestsCoalesced + " startsAvoided=" + mStartsAvoided);
+        writer.println("  errors: " + mErrors);
+    }
+
+    /**
+     * Returns the CPU milliseconds used per second of wall time, so that the cost of different activities can be
+     * compared: crossfading against plain playback, for instance.
+     */
+    private static long cpuPerSecond(long cpuMillis, long millis) {
+        return (millis <= 0) ? 0 : cpuMillis * 1000 / millis;
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.eggwall.SoundSleep;
+
+import java.io.IOException;
+
+/**
+ * The parts of a media player that {@link PlaybackController} drives, modelled on
+ * {@code android.media.MediaPlayer}: a player is given a source, prepared in the background, started, and told to
+ * start another player when it completes. Events come back through a {@link Listener}, on the controller's thread.
+ *
+ * <p>This is plain Java, so that the controller can run against simulated players on a desktop JVM. On a device
+ * each player is an {@link AndroidPlayer}.</p>
+ */
+public interface Player {
+    /**
+     * Hears about the progress of a player.
+     */
+    interface Listener {
+        /** The player finished preparing, and can be started. */
+        void onPrepared(Player player);
+
+        /** The player reached the end of its source. */
+        void onCompletion(Player player);
+
+        /**
+         * The player was started by the one before it completing, as set up with {@link #setNext(Player)}. This can
+         * come before or after that player's {@link #onCompletion}.
+         */
+        void onStartedAsNext(Player player);
+
+        /**
+         * The player failed, while preparing or playing. It can only be recycled after this.
+         * @param what the reason, as given by the player.
+         */
+        void onError(Player player, int what);
+    }
+
+    /**
+     * Hands out players and takes them back. {@link MediaPlayerPool} on a device.
+     */
+    interface Factory {
+        /** Returns an idle player, or null if too many are in use. */
+        Player acquire();
+
+        /** Stop the player and take it back. The caller must not use it after this. Accepts null. */
+        void recycle(Player player);
+    }
+
+    /**
+     * Set what to play: the path of a song, or a name for one of the included sounds.
+     * @throws IOException if the source can't be opened.
+     */
+    void setSource(String source) throws IOException;
+
+    /** Play the source forever instead of completing. */
+    void setLooping(boolean looping);
+
+    /** Set the volume, between 0 and 1. */
+    void setVolume(float volume);
+
+    /** Start preparing. {@link Listener#onPrepared} or {@link Listener#onError} follow. */
+    void prepareAsync();
+
+    /** Start playing. Only once prepared. */
+    void start();
+
+    /**
+     * Start this prepared player the moment the current one completes, with no gap.
+     * @return false if the player can't chain, and the caller has to start the next player itself.
+     */
+    boolean setNext(Player next);
+
+    /** Returns the length of the source in milliseconds, or -1 if it isn't known. Only once prepared. */
+    int getDuration();
+
+    /** Returns how far into the source the player is, in milliseconds. Only once prepared. */
+    int getCurrentPosition();
+
+    /** Move to this many milliseconds into the source. Only once prepared. */
+    void seekTo(int millis);
+}
@@ -0,0 +1,139 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.eggwall.SoundSleep;
+
+/**
+ * Folds requests that come in quick succession into one, so that only the end result of a burst of taps is played.
+ *
+ * <p>The first request opens a window of {@link #WINDOW_MILLIS}; the caller acts on the pending request when the
+ * window closes. A request that comes in meanwhile applies to what the pending one would have left playing, with
+ * the usual rules: asking for what is playing stops it, or sets a sleep timer on it, and asking for anything else
+ * switches to it. Replaced requests are counted in {@link PlaybackStats}.</p>
+ */
+public class RequestCoalescer {
+    /**
+     * Requests are held this long before being acted on. Long enough to cover a few fumbled taps in the dark, short
+     * enough not to be noticed.
+     */
+    public static final long WINDOW_MILLIS = 150;
+
+    /** Where replaced requests are counted. */
+    private final PlaybackStats mStats;
+    /** True while a request is waiting for the window to close. */
+    private boolean mPending = false;
+    /** What will be playing once the pending request is acted on. */
+    private int mType = PlaybackController.SILENCE;
+    /** Sleep timer of the pending request, in minutes, or 0 for none. */
+    private int mSleepMinutes = 0;
+    /** Noise color of the pending request. */
+    private int mNoiseColor = NoiseGenerator.PINK;
+    /** Tap time of the latest request, or 0 if unknown. */
+    private long mTappedAt = 0;
+    /** When the latest request was received. */
+    private long mReceivedAt = 0;
+
+    /**
+     * @param stats where to count replaced requests.
+     */
+    public RequestCoalescer(PlaybackStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Fold a request into the pending one.
+     * @param playing what is playing right now, like {@link PlaybackController#MUSIC}.
+     * @param type what was asked for: a mode like {@link PlaybackController#MUSIC}, or
+     *             {@link PlaybackController#SILENCE} to stop.
+     * @param sleepMinutes a sleep timer in minutes, or 0 for none.
+     * @param noiseColor the color of noise asked for.
+     * @param tappedAt when the user tapped, or 0 if unknown.
+     * @param receivedAt when the request was received.
+     * @return true if this request opened a new window, and the caller has to act on it once the window closes.
+     */
+    public boolean offer(int playing, int type, int sleepMinutes, int noiseColor, long tappedAt, long receivedAt) {
+        final boolean replacing = mPending;
+        final int current = replacing ? mType : playing;
+        if (!replacing) {
+            mPending = true;
+            mSleepMinutes = 0;
+        }
+        if (current == type && sleepMinutes > 0) {
+            // Set a timer on what is already playing.
+            mSleepMinutes = sleepMinutes;
+        } else if (current == type || type == PlaybackController.SILENCE) {
+            // Pressing the same button twice is an instruction to stop playing this music.
+            mType = PlaybackController.SILENCE;
+            mSleepMinutes = 0;
+        } else {
+            // Switch to the other type of music
+            mType = type;
+            mSleepMinutes = sleepMinutes;
+            mNoiseColor = noiseColor;
+        }
+        if (replacing) {
+            // Had the replaced request been acted on, it might have started a player that is no longer wanted.
+            mStats.requestCoalesced(current != mType && current != PlaybackController.SILENCE && current != playing);
+        }
+        // Time the latest request, which is the one the user is waiting on.
+        mTappedAt = tappedAt;
+        mReceivedAt = receivedAt;
+        return !replacing;
+    }
+
+    /** Returns true while a request is waiting for the window to close. */
+    public boolean isPending() {
+        return mPending;
+    }
+
+    /**
+     * The window closed: the pending request is about to be acted on. Read it with the getters.
+     */
+    public void take() {
+        mPending = false;
+    }
+
+    /** Drop the pending request, if any. */
+    public void clear() {
+        mPending = false;
+    }
+
+    /** Returns what should be playing once the request is acted on. */
+    public int getType() {
+        return mType;
+    }
+
+    /** Returns the sleep timer to set in minutes, or 0 for none. */
+    public int getSleepMinutes() {
+        return mSleepMinutes;
+    }
+
+    /** Returns the color of noise asked for. */
+    public int getNoiseColor() {
+        return mNoiseColor;
+    }
+
+    /** Returns when the user tapped, or 0 if unknown. */
+    public long getTappedAt() {
+        return mTappedAt;
+    }
+
+    /** Returns when the latest request was received. */
+    public long getReceivedAt() {
+        return mReceivedAt;
+    }
+}
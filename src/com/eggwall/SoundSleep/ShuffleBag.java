@@ -0,0 +1,264 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Plays every track once, in a random order, before any track repeats. The order is a Fisher-Yates shuffle kept in
+ * a primitive array, reshuffled at the start of every round, so {@link #next()} is an array read and allocates
+ * nothing. The first track of a round is never the last track of the previous round.
+ *
+ * <p>The order only changes at the start of a round, or when tracks are added or removed. {@link #isDirty()} says
+ * when it needs to be written again; between those times only the cursor needs saving to resume the sequence.</p>
+ */
+public class ShuffleBag implements TrackOrder {
+    /** Identifies our data: "SSSB" */
+    private static final int MAGIC = 0x53535342;
+
+    /** The tracks in play order. Only the first {@link #mSize} entries are used. */
+    private int[] mOrder = new int[0];
+    /** The inverse of {@link #mOrder}: the position of each track in it. */
+    private int[] mPosition = new int[0];
+    /** Number of tracks. */
+    private int mSize = 0;
+    /** Position of the next track in {@link #mOrder}. Tracks before this have been played in this round. */
+    private int mCursor = 0;
+    /** The track most recently returned, or {@link #NO_TRACK}. */
+    private int mLast = NO_TRACK;
+    /** State of the xorshift random number generator. Must never be zero. */
+    private long mSeed;
+    /** True if the order changed since it was last written. */
+    private boolean mDirty = false;
+
+    public ShuffleBag() {
+        this(System.nanoTime());
+    }
+
+    /**
+     * @param seed seed for the random number generator, so that the order can be reproduced.
+     */
+    public ShuffleBag(long seed) {
+        // Xorshift gets stuck at zero.
+        mSeed = (seed == 0) ? 0x9E3779B97F4A7C15L : seed;
+    }
+
+    @Override
+    public int next() {
+        if (mSize == 0) {
+            return NO_TRACK;
+        }
+        if (mCursor >= mSize) {
+            shuffle();
+        }
+        final int track = mOrder[mCursor];
+        mCursor++;
+        mLast = track;
+        return track;
+    }
+
+    @Override
+    public int peek() {
+        if (mSize == 0) {
+            return NO_TRACK;
+        }
+        if (mCursor >= mSize) {
+            // Start the next round now rather than in next(). The sequence is the same either way.
+            shuffle();
+        }
+        return mOrder[mCursor];
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public void reset(int size) {
+        ensureCapacity(size);
+        for (int i = 0; i < size; i++) {
+            mOrder[i] = i;
+            mPosition[i] = i;
+        }
+        mSize = size;
+        mLast = NO_TRACK;
+        shuffle();
+    }
+
+    @Override
+    public void add() {
+        ensureCapacity(mSize + 1);
+        final int track = mSize;
+        mOrder[track] = track;
+        mPosition[track] = track;
+        mSize++;
+        // Put it somewhere among the tracks still to play in this round.
+        swap(track, mCursor + random(mSize - mCursor));
+        mDirty = true;
+    }
+
+    @Override
+    public void remove(int track) {
+        if (track < 0 || track >= mSize) {
+            return;
+        }
+        final int position = mPosition[track];
+        final int lastPosition = mSize - 1;
+        if (position < mCursor) {
+            // Already played. Keep the played tracks together: the last played track fills the gap, and the last
+            // track in the array fills the played track's place.
+            swap(position, mCursor - 1);
+            swap(mCursor - 1, lastPosition);
+            mCursor--;
+        } else {
+            swap(position, lastPosition);
+        }
+        mSize--;
+        // The removed track is now at the end, beyond mSize. The caller moved its last track into the removed
+        // track's number, so renumber it here too.
+        final int moved = mSize;
+        if (moved != track) {
+            final int movedPosition = mPosition[moved];
+            mOrder[movedPosition] = track;
+            mPosition[track] = movedPosition;
+        }
+        if (mLast == track) {
+            mLast = NO_TRACK;
+        } else if (mLast == moved) {
+            mLast = track;
+        }
+        mDirty = true;
+    }
+
+    @Override
+    public int getCursor() {
+        return mCursor;
+    }
+
+    @Override
+    public void setCursor(int cursor) {
+        if (cursor >= 0 && cursor <= mSize) {
+            mCursor = cursor;
+            mLast = (cursor > 0) ? mOrder[cursor - 1] : NO_TRACK;
+        }
+    }
+
+    /** Returns true if the order has changed since it was last written or read. */
+    public boolean isDirty() {
+        return mDirty;
+    }
+
+    @Override
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(mSize);
+        out.writeLong(mSeed);
+        for (int i = 0; i < mSize; i++) {
+            out.writeInt(mOrder[i]);
+        }
+        mDirty = false;
+    }
+
+    @Override
+    public void readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a shuffle bag");
+        }
+        final int size = in.readInt();
+        final long seed = in.readLong();
+        if (size < 0 || seed == 0) {
+            throw new IOException("Corrupt shuffle bag");
+        }
+        final int[] order = new int[size];
+        final int[] position = new int[size];
+        Arrays.fill(position, -1);
+        for (int i = 0; i < size; i++) {
+            final int track = in.readInt();
+            if (track < 0 || track >= size || position[track] != -1) {
+                throw new IOException("Corrupt shuffle bag");
+            }
+            order[i] = track;
+            position[track] = i;
+        }
+        mOrder = order;
+        mPosition = position;
+        mSize = size;
+        mSeed = seed;
+        mCursor = 0;
+        mLast = NO_TRACK;
+        mDirty = false;
+    }
+
+    /**
+     * Start a new round: shuffle all tracks with Fisher-Yates, keeping the last track played away from the front.
+     */
+    private void shuffle() {
+        for (int i = mSize - 1; i > 0; i--) {
+            swap(i, random(i + 1));
+        }
+        if (mSize > 1 && mOrder[0] == mLast) {
+            swap(0, 1 + random(mSize - 1));
+        }
+        mCursor = 0;
+        mDirty = true;
+    }
+
+    /**
+     * Swap two positions in the order, keeping the inverse up to date.
+     */
+    private void swap(int i, int j) {
+        final int a = mOrder[i];
+        final int b = mOrder[j];
+        mOrder[i] = b;
+        mOrder[j] = a;
+        mPosition[b] = i;
+        mPosition[a] = j;
+    }
+
+    /**
+     * Returns a random number in [0, bound).
+     */
+    private int random(int bound) {
+        long x = mSeed;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        mSeed = x;
+        // The bias from the modulus is negligible for any realistic number of tracks.
+        return (int) ((x >>> 1) % bound);
+    }
+
+    /**
+     * Grow the arrays to hold at least this many tracks.
+     */
+    private void ensureCapacity(int capacity) {
+        if (mOrder.length >= capacity) {
+            return;
+        }
+        final int length = Math.max(capacity, mOrder.length * 2);
+        final int[] order = new int[length];
+        final int[] position = new int[length];
+        System.arraycopy(mOrder, 0, order, 0, mSize);
+        System.arraycopy(mPosition, 0, position, 0, mSize);
+        mOrder = order;
+        mPosition = position;
+    }
+}
@@ -18,77 +18,129 @@ package com.eggwall.SoundSleep;
 
 import android.app.Activity;
 import android.content.*;
+import android.content.pm.ApplicationInfo;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.provider.Settings;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
-import android.widget.ImageView;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 /**
  * Activity that allows playing music or white noise while showing a big clock.
  */
 public class SleepActivity extends Activity {
+    /**
+     * Boolean extra that turns on the {@link FrameMonitor} in debuggable builds. Start with
+     * {@code adb shell am start -n com.eggwall.SoundSleep/.SleepActivity --ez monitor-frames true} and read the
+     * histograms with {@code adb shell dumpsys activity com.eggwall.SoundSleep}.
+     */
+    public static final String EXTRA_MONITOR_FRAMES = "monitor-frames";
     /** Handler associated with the main thread for posting runnables. */
     private final Handler mHandler = new Handler();
-    /** The width of our entire window. */
-    private int mWidth;
-    /** The height of our entire window*/
-    private int mHeight;
     /** Delay which adjusts ongoing clock and icon location changes. */
     private static final int DELAY = 10 * 60 * 1000;
     /** Initial delay to change clock and icon location immediately after application startup. */
     private static final int INITIAL_DELAY = 500;
+    /** Length of the sleep timer started with a long press, in minutes. */
+    private static final int SLEEP_MINUTES = 45;
+    /** The brightest value of {@link Settings.System#SCREEN_BRIGHTNESS}. */
+    private static final int MAX_SYSTEM_BRIGHTNESS = 255;
 
-    /** Counts up to 10, to make the icons maximally dark. At 0, icons are at maximal brightness. */
-    private int mAlphaDecrement = 1;
+    /** Dims the screen, the clock and the icons as the night goes on. */
+    private final BrightnessSchedule mBrightness = new BrightnessSchedule();
 
     /** The SDK version, stored off because we read it everywhere. */
     private final static int SDK = Build.VERSION.SDK_INT;
-    /** The width, height of the cloud icon. */
-    private Pair cloudSize = null;
-    /** The width, height of the musical note icon. */
-    private Pair noteSize = null;
+    /** The clock and the icons, which is everything on the screen. */
+    private ClockFaceView mFace;
+    /** Records frame times and main thread stalls, or null unless asked for with {@link #EXTRA_MONITOR_FRAMES}. */
+    private FrameMonitor mMonitor;
 
     /** The state the application is currently in. */
     private int mState = AudioService.SILENCE;
-    /** Key to store {@link #mState} in a bundle. */
-    private static String STATE_KEY = "state-key";
 
-    /** Receiver that accepts local broadcasts from the service to update the UI. */
-    private final BroadcastReceiver mMessageReceiver = new BroadcastReceiver() {
+    /** The service, while we are bound to it. */
+    private AudioService mService;
+
+    /** Hears from the service when what is playing changes, to update the UI. */
+    private final AudioService.Listener mListener = new AudioService.Listener() {
+        @Override
+        public void onTypePlayingChanged(int type) {
+            mState = type;
+            setIconFromState(mState);
+            if (type == AudioService.SILENCE && mService != null) {
+                // A silent service stops itself, since our binding doesn't keep it alive. When it is started again,
+                // it is a new instance and we are connected to it again.
+                mService.removeListener(this);
+                mService = null;
+            }
+        }
+    };
+
+    /**
+     * Connection to the service, which reads its state as soon as we are bound. We only bind to a service that is
+     * already running, so this is never called if nothing is playing.
+     */
+    private final ServiceConnection mConnection = new ServiceConnection() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            mState = AudioService.messageToType.get(action);
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = ((AudioService.LocalBinder) binder).getService();
+            mService.addListener(mListener);
+            mState = mService.getTypePlaying();
             setIconFromState(mState);
         }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // Only happens if the process dies, which takes us with it.
+            mService = null;
+        }
     };
 
     /**
      * Sets the icons from the current AudioService state.
-     * @param state an integer: {@link AudioService#MUSIC}, {@link AudioService#WHITE_NOISE}, or
-     *              {@link AudioService#SILENCE} which determines what the {@link AudioService} is currently doing.
+     * @param state an integer: {@link AudioService#MUSIC}, {@link AudioService#WHITE_NOISE},
+     *              {@link AudioService#NOISE}, {@link AudioService#MUSIC_AND_NOISE}, or {@link AudioService#SILENCE}
+     *              which determines what the {@link AudioService} is currently doing.
      */
     private void setIconFromState(int state) {
-        final ImageView cloud = (ImageView) findViewById(R.id.cloud);
-        final ImageView note = (ImageView) findViewById(R.id.note);
-        switch (state) {
-            case AudioService.MUSIC:
-                cloud.setImageResource(R.drawable.rain);
-                note.setImageResource(R.drawable.pause);
-                break;
-            case AudioService.WHITE_NOISE:
-                note.setImageResource(R.drawable.music);
-                cloud.setImageResource(R.drawable.pause);
-                break;
-            case AudioService.SILENCE:
-                cloud.setImageResource(R.drawable.rain);
-                note.setImageResource(R.drawable.music);
-                break;
+        mFace.setState(state);
+        if (mMonitor != null) {
+            mMonitor.watch(FrameMonitor.EVENT_STATE);
+        }
+    }
+
+    /** Plays music from a tap on the top half of the screen, and white noise from the bottom half. */
+    private final ClockFaceView.OnZoneListener mZoneListener = new ClockFaceView.OnZoneListener() {
+        @Override
+        public void onZoneClick(int zone) {
+            sendRequest(zoneToType(zone));
+        }
+
+        @Override
+        public void onZoneLongClick(int zone) {
+            // A long press plays with a sleep timer, or sets one on what is already playing.
+            sendRequest(zoneToType(zone), SLEEP_MINUTES);
+        }
+    };
+
+    /**
+     * Returns what to play for a tap in this part of the screen.
+     * @param zone {@link ClockFaceView#ZONE_MUSIC} or {@link ClockFaceView#ZONE_WHITE_NOISE}
+     */
+    private int zoneToType(int zone) {
+        if (mState == AudioService.MUSIC_AND_NOISE) {
+            // Both icons show pause, and either one stops the mix.
+            return AudioService.MUSIC_AND_NOISE;
         }
+        return (zone == ClockFaceView.ZONE_MUSIC) ? AudioService.MUSIC : AudioService.WHITE_NOISE;
     }
 
     /**
@@ -97,116 +149,95 @@ public class SleepActivity extends Activity {
     private final Runnable mChangeClockLocation = new Runnable() {
         @Override
         public void run() {
-            changeClockLocation();
-            changeIconLocation();
+            changeLocation();
             postClockChange(DELAY);
         }
     };
 
     /**
-     * Moves the clock to some random location.
+     * Moves the clock and the icons to some random location at the current brightness, and makes the next move a
+     * step dimmer. The clock and icon alpha are drawn with the move, so dimming costs no redraw of its own.
      */
-    private void changeClockLocation() {
-        populateTopLevelDimen();
-        final View v = findViewById(R.id.clock);
-        final int x = (int)(Math.random()*(mWidth - v.getMeasuredWidth()));
-        final int y = (int)(Math.random()*(mHeight- v.getMeasuredHeight()));
-        if (SDK >= 12) {
-            v.animate().x(x).y(y);
-        } else {
-            v.setPadding(x, y, 0, 0);
+    private void changeLocation() {
+        setGlobalScreenSettings();
+        mFace.setClockAlpha(mBrightness.getClockAlpha());
+        mFace.moveTo(Math.random(), Math.random(), Math.random(), mBrightness.getIconAlphaDecrement());
+        applyScreenBrightness();
+        if (mMonitor != null) {
+            mMonitor.watch(FrameMonitor.EVENT_MOVE);
         }
+        mBrightness.advance();
     }
 
     /**
-     * Calculates the dimension of the entire window. Safe if called repeatedly.
+     * Set the brightness of the window from the schedule, if it changed.
      */
-    private void populateTopLevelDimen() {
-        if (mWidth == 0) {
-            final View topLevel = findViewById(R.id.toplevel);
-            mWidth = topLevel.getRight();
-        }
-        if (mHeight == 0) {
-            final View topLevel = findViewById(R.id.toplevel);
-            mHeight = topLevel.getBottom();
-        }
-        if (cloudSize == null) {
-            final View cloud = findViewById(R.id.cloud);
-            cloudSize = new Pair(cloud.getMeasuredWidth(), cloud.getMeasuredHeight());
-        }
-        if (noteSize == null) {
-            final View note = findViewById(R.id.note);
-            noteSize = new Pair(note.getMeasuredWidth(), note.getMeasuredHeight());
+    private void applyScreenBrightness() {
+        final Window window = getWindow();
+        final WindowManager.LayoutParams params = window.getAttributes();
+        final float brightness = mBrightness.getScreenBrightness();
+        if (params.screenBrightness == brightness) {
+            return;
         }
+        params.screenBrightness = brightness;
+        window.setAttributes(params);
     }
 
     /**
-     * Moves the icons to some random location.
+     * Returns the brightness the user has set for the device, between 0 and 1. Full brightness if it can't be read.
      */
-    private void changeIconLocation() {
-        populateTopLevelDimen();
-        setGlobalScreenSettings();
-        if (cloudSize == null || noteSize == null) {
-            return;
-        }
-        final double locationX = Math.random();
-        // The top half of the screen is for the note.
-        final int noteY = 0;
-        // The bottom half of the screen is for white noise.
-        final int cloudY = mHeight - cloudSize.mSecond;
-        // The cloud and the note mirror each other on opposite sides to
-        // increase visual separation.
-        final int cloudX = (int) (locationX * (mWidth - cloudSize.mFirst));
-        final float newCloudAlpha = (float)(.35-(mAlphaDecrement/100.0));
-        final float newNoteAlpha = (float) (.50 - (mAlphaDecrement / 100.0));
-        final int noteX = (int) ((1 - locationX) * (mWidth - noteSize.mFirst));
-        mAlphaDecrement += 5;
-        if (mAlphaDecrement > 20) {
-            mAlphaDecrement = 20;
-        }
-        final View cloud = findViewById(R.id.cloud);
-        final View note = findViewById(R.id.note);
-        if (SDK >= 11) {
-            cloud.setY(cloudY);
-            cloud.animate().x(cloudX).alpha(newCloudAlpha);
-            note.setY(noteY);
-            note.animate().x(noteX).alpha(newNoteAlpha);
-        } else {
-            cloud.setPadding(cloudX, cloudY, 0, 0);
-            note.setPadding(noteX, noteY, 0, 0);
-        }
-    }
-
-    @Override
-    protected void onSaveInstanceState(Bundle outState) {
-        outState.putInt(STATE_KEY, mState);
-        super.onSaveInstanceState(outState);
+    private float getUserBrightness() {
+        final int brightness = Settings.System.getInt(getContentResolver(), Settings.System.SCREEN_BRIGHTNESS,
+                MAX_SYSTEM_BRIGHTNESS);
+        return Math.min(1.0f, Math.max(0.0f, brightness / (float) MAX_SYSTEM_BRIGHTNESS));
     }
 
     /**
-     * Sets the visibility of the icons back to full brightness.
+     * Sets the screen, the clock and the icons back to full brightness.
      */
-    void resetAlphaDecrement() {
-        if (SDK < 11) {
+    void resetBrightness() {
+        if (!mBrightness.reset()) {
             return;
         }
-        mAlphaDecrement = 0;
-        final View cloud = findViewById(R.id.cloud);
-        final View note = findViewById(R.id.note);
-        cloud.animate().alpha((float) .35);
-        note.animate().alpha((float) .50);
+        mFace.setClockAlpha(mBrightness.getClockAlpha());
+        mFace.setIconAlphaDecrement(mBrightness.getIconAlphaDecrement());
+        applyScreenBrightness();
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (mMonitor != null) {
+            mMonitor.start();
+        }
+        // Read again every time, since the user could have changed it while we were away.
+        mBrightness.setUserBrightness(getUserBrightness());
+        applyScreenBrightness();
+        // If the service isn't running, nothing is playing. If it is, we are told otherwise the moment we bind.
+        mState = AudioService.SILENCE;
+        setIconFromState(mState);
+        // No flags: bind to the service if it is running, but don't create it. Opening the clock shouldn't start a
+        // service, and the first request to play creates it with startService().
+        bindService(new Intent(this, AudioService.class), mConnection, 0);
     }
 
     @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        final LocalBroadcastManager m = LocalBroadcastManager.getInstance(this);
-        m.unregisterReceiver(mMessageReceiver);
+    protected void onStop() {
+        if (mService != null) {
+            mService.removeListener(mListener);
+            mService = null;
+        }
+        unbindService(mConnection);
+        if (mMonitor != null) {
+            mMonitor.stop();
+        }
+        super.onStop();
     }
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        Tracing.init(this);
         // Go full screen.
         if (SDK >= 11) {
             (getActionBar()).hide();
@@ -216,69 +247,78 @@ public class SleepActivity extends Activity {
         final int fullscreen = WindowManager.LayoutParams.FLAG_FULLSCREEN;
         getWindow().setFlags(fullscreen, fullscreen);
         setContentView(R.layout.main);
+        // The clock face paints every pixel, so the window background would only be drawn over.
+        getWindow().setBackgroundDrawable(null);
+        mFace = (ClockFaceView) findViewById(R.id.face);
+        mFace.setOnZoneListener(mZoneListener);
+        final boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        if (SDK >= 16 && debuggable && getIntent().getBooleanExtra(EXTRA_MONITOR_FRAMES, false)) {
+            mMonitor = new FrameMonitor();
+        }
         postClockChange(INITIAL_DELAY);
         setGlobalScreenSettings();
-        final LocalBroadcastManager m = LocalBroadcastManager.getInstance(this);
-        final IntentFilter filter = new IntentFilter();
-        filter.addAction(AudioService.MESSAGE_SILENCE);
-        filter.addAction(AudioService.MESSAGE_MUSIC);
-        filter.addAction(AudioService.MESSAGE_WHITE_NOISE);
-        m.registerReceiver(mMessageReceiver, filter);
-
-        if (savedInstanceState != null) {
-            mState = savedInstanceState.getInt(STATE_KEY, AudioService.SILENCE);
-        }
-        // Ask the service for the current state. It will send a broadcast with the current state.
-        sendRequest(AudioService.GET_STATUS);
+        // The current state is read from the service once we are bound to it, in onStart().
     }
 
     /**
      * Set the full screen view, and also request a wake lock.
      */
     private void setGlobalScreenSettings() {
-        final View topLevel = findViewById(R.id.toplevel);
         // Hide the System status bar
         if (SDK >= 11) {
-            topLevel.setSystemUiVisibility(View.SYSTEM_UI_FLAG_LOW_PROFILE);
+            mFace.setSystemUiVisibility(View.SYSTEM_UI_FLAG_LOW_PROFILE);
         }
         // Keep the screen always on, irrespective of power state.
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
     }
 
-    private void postClockChange(int delay) {
-        mHandler.postDelayed(mChangeClockLocation, delay);
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mMonitor != null) {
+            mMonitor.dump(writer);
+        }
     }
 
-    /**
-     * Start/Stop white noise. This method is called directly from the layout file (onClick=), and thus appears unused.
-     * @param unused the view that got this click event
-     */
-    @SuppressWarnings("unused")
-    public void whiteNoisePressed(View unused) {
-        sendRequest(AudioService.WHITE_NOISE);
+    private void postClockChange(int delay) {
+        mHandler.postDelayed(mChangeClockLocation, delay);
     }
 
     /**
-     * Start/Stop music. This method is called directly from the layout file (onClick=), and thus appears unused.
-     * @param unused the view that got this click event
+     * Send this request to the audio service.
+     * @param command Either {@link AudioService#MUSIC} or {@link AudioService#WHITE_NOISE}. Passing
+     * {@link AudioService#MUSIC} or {@link AudioService#WHITE_NOISE} twice is a signal to become silent.
      */
-    @SuppressWarnings("unused")
-    public void musicPressed(View unused) {
-        sendRequest(AudioService.MUSIC);
+    private void sendRequest(int command) {
+        sendRequest(command, 0);
     }
 
     /**
-     * Send this request to the audio service.
-     * @param command Either {@link AudioService#GET_STATUS}, or {@link AudioService#MUSIC} or
-     * {@link AudioService#WHITE_NOISE}. Passing {@link AudioService#MUSIC} or {@link AudioService#WHITE_NOISE}
-     *             twice is a signal to become silent.
+     * Send this request to the audio service, with a sleep timer.
+     * @param command as for {@link #sendRequest(int)}
+     * @param sleepMinutes minutes after which audio fades out and stops, or 0 for no timer.
      */
-    private void sendRequest(int command) {
-        // The user has touched the screen, show the icons a bit brighter.
-        resetAlphaDecrement();
-        // TODO(viki) Bad idea. We should use some resolution mechanism rather than bare name.
-        final Intent i = new Intent(this, AudioService.class);
-        i.putExtra(AudioService.REQUEST, command);
-        startService(i);
+    private void sendRequest(int command, int sleepMinutes) {
+        final long tappedAt = SystemClock.elapsedRealtime();
+        Tracing.beginSection("SleepActivity.sendRequest");
+        try {
+            // The user has touched the screen, make it bright again.
+            resetBrightness();
+            if (mService != null) {
+                mService.request(command, sleepMinutes, NoiseGenerator.PINK, tappedAt);
+                return;
+            }
+            // The service isn't running. Starting it with this request creates it, and then binds us to it.
+            // TODO(viki) Bad idea. We should use some resolution mechanism rather than bare name.
+            final Intent i = new Intent(this, AudioService.class);
+            i.putExtra(AudioService.REQUEST, command);
+            i.putExtra(AudioService.TAPPED_AT, tappedAt);
+            if (sleepMinutes > 0) {
+                i.putExtra(AudioService.SLEEP_MINUTES, sleepMinutes);
+            }
+            startService(i);
+        } finally {
+            Tracing.endSection();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,187 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.eggwall.SoundSleep;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Latency from a tap on the screen to the first sound, broken down by the stages a request goes through, with one
+ * set of histograms for each mode. The histograms are kept in a file so they add up across sessions.
+ *
+ * <p>The caller keeps the times of one request in a long array indexed by stage, filled in with a monotonic
+ * clock as the request moves along, and hands it to {@link #record(int, long[])} once audio starts. A stage
+ * with no time, like the tap for a request that didn't come from the screen, is left out along with the stage
+ * after it.</p>
+ */
+public class StartLatency {
+    /** The user tapped a button. */
+    public static final int STAGE_TAPPED = 0;
+    /** The service received the request. */
+    public static final int STAGE_RECEIVED = 1;
+    /** The service picked what to play and started preparing it. */
+    public static final int STAGE_PREPARING = 2;
+    /** The player was prepared. */
+    public static final int STAGE_PREPARED = 3;
+    /** The player was started. */
+    public static final int STAGE_STARTED = 4;
+    /** Number of stages. */
+    public static final int STAGE_COUNT = 5;
+
+    /** Names of the histograms: the first is the whole request, the others the time up to each stage. */
+    private static final String[] HISTOGRAM_NAMES = {
+            "tap to sound", "tap to service", "service to prepare", "prepare", "start"
+    };
+
+    /** Identifies our files: "SSLT" */
+    private static final int MAGIC = 0x53534c54;
+    /** Bump this whenever the file layout changes. */
+    private static final int VERSION = 1;
+
+    /**
+     * Histograms by mode, then by stage. The histogram for a stage counts the time from the stage before it; the
+     * one for {@link #STAGE_TAPPED} counts the time for the whole request.
+     */
+    private final LatencyHistogram[][] mHistograms = new LatencyHistogram[PlaybackStats.MAX_MODES][STAGE_COUNT];
+    /** True if anything was recorded since the histograms were loaded or saved. */
+    private boolean mDirty = false;
+
+    public StartLatency() {
+        for (LatencyHistogram[] mode : mHistograms) {
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                mode[stage] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Add the times of one request that ended with audio playing.
+     * @param mode the mode that started, less than {@link PlaybackStats#MAX_MODES}.
+     * @param times the time of each stage in milliseconds, or 0 for stages that weren't timed.
+     */
+    public void record(int mode, long[] times) {
+        final LatencyHistogram[] histograms = mHistograms[mode];
+        for (int stage = STAGE_TAPPED + 1; stage < STAGE_COUNT; stage++) {
+            if (times[stage] != 0 && times[stage - 1] != 0) {
+                histograms[stage].record(times[stage] - times[stage - 1]);
+            }
+        }
+        // The whole request is measured from the earliest stage that was timed.
+        final long first = (times[STAGE_TAPPED] != 0) ? times[STAGE_TAPPED] : times[STAGE_RECEIVED];
+        if (first != 0 && times[STAGE_STARTED] != 0) {
+            histograms[STAGE_TAPPED].record(times[STAGE_STARTED] - first);
+        }
+        mDirty = true;
+    }
+
+    /**
+     * Returns the histogram for a mode and a stage. The histogram for {@link #STAGE_TAPPED} is for the whole
+     * request.
+     */
+    public LatencyHistogram get(int mode, int stage) {
+        return mHistograms[mode][stage];
+    }
+
+    /**
+     * Read histograms saved by an earlier session. A missing or unreadable file leaves the histograms empty.
+     */
+    public void load(File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != PlaybackStats.MAX_MODES) {
+                return;
+            }
+            for (LatencyHistogram[] mode : mHistograms) {
+                for (LatencyHistogram histogram : mode) {
+                    histogram.readFrom(in);
+                }
+            }
+            mDirty = false;
+        } catch (IOException e) {
+            // Start afresh rather than keep half a file.
+            for (LatencyHistogram[] mode : mHistograms) {
+                for (LatencyHistogram histogram : mode) {
+                    histogram.reset();
+                }
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the histograms to disk, if anything was recorded since they were loaded or saved.
+     */
+    public void save(File file) throws IOException {
+        if (!mDirty) {
+            return;
+        }
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(PlaybackStats.MAX_MODES);
+            for (LatencyHistogram[] mode : mHistograms) {
+                for (LatencyHistogram histogram : mode) {
+                    histogram.writeTo(out);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not write start latency to " + file);
+        }
+        mDirty = false;
+    }
+
+    /**
+     * Print the percentiles of every mode that has started at least once.
+     * @param writer where to print.
+     * @param modeNames names of the modes, indexed by mode. Modes without a name are skipped.
+     */
+    public void dump(PrintWriter writer, String[] modeNames) {
+        writer.println("Start latency (ms):");
+        for (int mode = 0; mode < modeNames.length && mode < PlaybackStats.MAX_MODES; mode++) {
+            if (modeNames[mode] == null || mHistograms[mode][STAGE_STARTED].getCount() == 0) {
+                continue;
+            }
+            writer.println("  mode " + modeNames[mode] + ":");
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                writer.println("    " + HISTOGRAM_NAMES[stage] + ": " + mHistograms[mode][stage]);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package com.eggwall.SoundSleep;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+import android.os.StrictMode;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Marks sections of code so they show up in a system trace (systrace). Only debuggable builds on SDK 18 and later
+ * trace anything; everywhere else the calls do nothing.
+ *
+ * <p>{@code android.os.Trace} is newer than the SDK we build against, so it is found through reflection, once.
+ * Sections must begin and end on the same thread, and nest.</p>
+ *
+ * <p>Debuggable builds also log every disk read and write on the main thread, through StrictMode.</p>
+ */
+public class Tracing {
+    /** For logging */
+    private static final String TAG = "Tracing";
+    /** The SDK version */
+    private final static int SDK = Build.VERSION.SDK_INT;
+
+    /** Trace.beginSection(String), or null if tracing is off. */
+    private static Method sBeginSection;
+    /** Trace.endSection(), or null if tracing is off. */
+    private static Method sEndSection;
+    /** True once {@link #init(Context)} has run. */
+    private static boolean sInitialized = false;
+
+    /** Not instantiable, only static methods. */
+    private Tracing() {
+    }
+
+    /**
+     * Turn tracing and StrictMode on if this is a debuggable build on a platform that supports them. Safe to call
+     * repeatedly, and from the main thread only.
+     */
+    public static void init(Context context) {
+        if (sInitialized) {
+            return;
+        }
+        sInitialized = true;
+        final boolean debuggable = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        if (debuggable && SDK >= 9) {
+            // The main thread should never touch the disk: playback does its file work on the service thread.
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyLog()
+                    .build());
+        }
+        if (SDK < 18 || !debuggable) {
+            return;
+        }
+        try {
+            final Class<?> trace = Class.forName("android.os.Trace");
+            final Method begin = trace.getMethod("beginSection", String.class);
+            final Method end = trace.getMethod("endSection");
+            sBeginSection = begin;
+            sEndSection = end;
+        } catch (Exception e) {
+            Log.e(TAG, "Tracing is not available", e);
+        }
+    }
+
+    /**
+     * Begin a section. Follow with {@link #endSection()} on the same thread, in a finally block.
+     * @param name the name shown in the trace. Keep it constant; building names costs time even with tracing off.
+     */
+    public static void beginSection(String name) {
+        if (sBeginSection != null) {
+            invoke(sBeginSection, name);
+        }
+    }
+
+    /**
+     * End the section most recently begun on this thread.
+     */
+    public static void endSection() {
+        if (sEndSection != null) {
+            invoke(sEndSection);
+        }
+    }
+
+    /**
+     * Call a static method, turning tracing off if it fails.
+     */
+    private static void invoke(Method method, Object... args) {
+        try {
+            method.invoke(null, args);
+        } catch (Exception e) {
+            Log.e(TAG, "Tracing failed, turning it off", e);
+            sBeginSection = null;
+            sEndSection = null;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Copies of songs from the music directory, kept in internal storage so that they can be played without reading
+ * the SD card.
+ *
+ * <p>The song after the current one is copied ahead of time with {@link #prefetch}, on a low priority thread, in one
+ * sequential channel copy. Reading a whole song in one go lets the card go back to sleep straight after, instead of
+ * being read a little at a time all through the song. When the song comes up, {@link #get} hands out the copy.</p>
+ *
+ * <p>The copies take at most a fixed number of bytes. The least recently played copies are deleted first. A copy is
+ * named after the song's path, size and modification time, so a changed song is never played from a stale copy, and
+ * finding a copy never needs to touch the card.</p>
+ */
+public class TrackCache {
+    /** For naming the copying thread. */
+    private static final String TAG = "TrackCache";
+    /** Suffix of copies that are still being written. */
+    private static final String TEMP_SUFFIX = ".tmp";
+    /** Most songs waiting to be copied. Older requests are dropped, since the songs have probably been played. */
+    private static final int MAX_QUEUED = 2;
+
+    /** The music directory, which paths are relative to. */
+    private final File mRoot;
+    /** Where the copies are kept. */
+    private final File mDir;
+    /** The most bytes all copies may take. */
+    private final long mMaxBytes;
+    /** Copies by file name, least recently used first. */
+    private final LinkedHashMap<String, File> mFiles = new LinkedHashMap<String, File>(16, 0.75f, true);
+    /** Songs waiting to be copied, oldest first. */
+    private final ArrayList<LibraryIndex.Entry> mQueue = new ArrayList<LibraryIndex.Entry>();
+    /** Bytes taken by all copies. */
+    private long mBytes = 0;
+    /** True once the copies left by an earlier process have been found. */
+    private boolean mLoaded = false;
+    /** True while a thread is copying. */
+    private boolean mCopying = false;
+
+    /** Songs found in the cache. */
+    private int mHits = 0;
+    /** Songs that had to be played from the card. */
+    private int mMisses = 0;
+    /** Songs copied. */
+    private int mCopies = 0;
+    /** Bytes read from the card to make copies. */
+    private long mBytesCopied = 0;
+    /** Copies deleted to make space. */
+    private int mEvictions = 0;
+    /** Copies that failed. */
+    private int mFailures = 0;
+
+    /**
+     * @param root the music directory.
+     * @param dir where to keep the copies, in internal storage.
+     * @param maxBytes the most bytes that all copies may take.
+     */
+    public TrackCache(File root, File dir, long maxBytes) {
+        mRoot = root;
+        mDir = dir;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the file name of the copy of a song. It changes whenever the song's path, size or modification time
+     * does, and keeps the song's extension, which some players go by.
+     */
+    static String getName(LibraryIndex.Entry entry) {
+        // 64 bit FNV-1a, so that different songs practically never share a name.
+        long hash = 0xcbf29ce484222325L;
+        final String path = entry.mPath;
+        for (int i = 0; i < path.length(); i++) {
+            hash = (hash ^ path.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ entry.mSize) * 0x100000001b3L;
+        hash = (hash ^ entry.mModified) * 0x100000001b3L;
+        final int dot = path.lastIndexOf('.');
+        final String extension = (dot > path.lastIndexOf(File.separatorChar)) ? path.substring(dot) : "";
+        return Long.toHexString(hash) + extension;
+    }
+
+    /**
+     * Returns the copy of a song, or null if it hasn't been copied. Counts as a hit or a miss.
+     */
+    public synchronized File get(LibraryIndex.Entry entry) {
+        load();
+        final File file = mFiles.get(getName(entry));
+        if (file == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        // Remember the use across processes too.
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Copy a song into the cache in the background, unless it is already there or too large to keep.
+     */
+    public void prefetch(LibraryIndex.Entry entry) {
+        synchronized (this) {
+            load();
+            if (entry.mSize > mMaxBytes || mFiles.containsKey(getName(entry)) || mQueue.contains(entry)) {
+                return;
+            }
+            if (mQueue.size() >= MAX_QUEUED) {
+                mQueue.remove(0);
+            }
+            mQueue.add(entry);
+            if (mCopying) {
+                return;
+            }
+            mCopying = true;
+        }
+        final Thread copier = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                copyQueued();
+            }
+        }, TAG);
+        copier.setPriority(Thread.MIN_PRIORITY);
+        copier.start();
+    }
+
+    /**
+     * Copy songs until none are waiting. Runs on the copying thread.
+     */
+    private void copyQueued() {
+        while (true) {
+            final LibraryIndex.Entry entry;
+            synchronized (this) {
+                if (mQueue.isEmpty()) {
+                    mCopying = false;
+                    return;
+                }
+                entry = mQueue.remove(0);
+                if (mFiles.containsKey(getName(entry))) {
+                    continue;
+                }
+            }
+            try {
+                copy(entry);
+            } catch (IOException e) {
+                synchronized (this) {
+                    mFailures++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy one song from the card and add it to the cache. Runs on the copying thread.
+     */
+    private void copy(LibraryIndex.Entry entry) throws IOException {
+        final String name = getName(entry);
+        final File temp = new File(mDir, name + TEMP_SUFFIX);
+        final File file = new File(mDir, name);
+        long copied = 0;
+        final FileInputStream in = new FileInputStream(new File(mRoot, entry.mPath));
+        try {
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                final FileChannel source = in.getChannel();
+                final FileChannel destination = out.getChannel();
+                final long size = source.size();
+                while (copied < size) {
+                    final long count = source.transferTo(copied, size - copied, destination);
+                    if (count <= 0) {
+                        break;
+                    }
+                    copied += count;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        synchronized (this) {
+            mBytesCopied += copied;
+        }
+        if (copied != entry.mSize || !temp.renameTo(file)) {
+            // Changed since it was indexed, or the copy can't be put in place.
+            temp.delete();
+            throw new IOException("Could not copy " + entry.mPath);
+        }
+        synchronized (this) {
+            mFiles.put(name, file);
+            mBytes += copied;
+            mCopies++;
+            evict();
+        }
+    }
+
+    /**
+     * Delete the least recently used copies until all copies fit. The newest copy is always kept.
+     */
+    private void evict() {
+        final Iterator<File> files = mFiles.values().iterator();
+        while (mBytes > mMaxBytes && mFiles.size() > 1) {
+            final File file = files.next();
+            files.remove();
+            mBytes -= file.length();
+            file.delete();
+            mEvictions++;
+        }
+    }
+
+    /**
+     * Find the copies left by an earlier process, oldest use first, and delete unfinished ones. Only does anything
+     * the first time.
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        mDir.mkdirs();
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                final long difference = a.lastModified() - b.lastModified();
+                return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            mFiles.put(file.getName(), file);
+            mBytes += file.length();
+        }
+        evict();
+    }
+
+    /** Returns the number of songs found in the cache. */
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    /** Returns the number of songs that had to be played from the card. */
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    /** Returns the number of bytes read from the card to make copies. */
+    public synchronized long getBytesCopied() {
+        return mBytesCopied;
+    }
+
+    /**
+     * Print the counters on one line.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("  track cache: " + mFiles.size() + " songs, " + mBytes + "/" + mMaxBytes + " bytes, hits="
+                + mHits + " misses=" + mMisses + " copies=" + mCopies + " copied=" + mBytesCopied + " bytes evictions="
+                + mEvictions + " failures=" + mFailures);
+    }
+}
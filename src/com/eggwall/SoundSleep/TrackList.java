@@ -0,0 +1,141 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The songs that can be played, numbered as the {@link TrackOrder} that plays them. Songs can be added and removed
+ * in O(1) while the order is in use: an added song takes the next number, and a removed song's number is taken by
+ * the last song, which is the contract of {@link TrackOrder#remove(int)}.
+ */
+public class TrackList {
+    /** Song paths, by number. */
+    private final ArrayList<String> mPaths;
+    /** The number of each song, by path. */
+    private final HashMap<String, Integer> mPositions;
+
+    /**
+     * @param paths the songs, numbered by their position here.
+     */
+    public TrackList(String[] paths) {
+        mPaths = new ArrayList<String>(paths.length);
+        mPositions = new HashMap<String, Integer>(paths.length * 2);
+        for (String path : paths) {
+            add(path);
+        }
+    }
+
+    /** Returns the number of songs. */
+    public int size() {
+        return mPaths.size();
+    }
+
+    /** Returns the path of a song. */
+    public String get(int position) {
+        return mPaths.get(position);
+    }
+
+    /**
+     * Returns the number of the song with this path, or -1 if there is no such song.
+     */
+    public int indexOf(String path) {
+        final Integer position = mPositions.get(path);
+        return (position == null) ? -1 : position;
+    }
+
+    /**
+     * Bring the list in line with the songs there are now, telling the order about every song added or removed, so
+     * a saved order carries on instead of being shuffled afresh. Songs that are still there keep their numbers,
+     * except where a removal moves the last song into a gap.
+     * @param paths the songs there are now.
+     * @param order the order playing these songs, or null if there is none.
+     * @return the number of songs added and removed.
+     */
+    public int update(String[] paths, TrackOrder order) {
+        final HashSet<String> current = new HashSet<String>(paths.length * 2);
+        for (String path : paths) {
+            current.add(path);
+        }
+        int changes = 0;
+        // From the end, so that the song moved into a gap has already been looked at.
+        for (int position = mPaths.size() - 1; position >= 0; position--) {
+            final String path = mPaths.get(position);
+            if (!current.contains(path)) {
+                remove(path, order);
+                changes++;
+            }
+        }
+        for (String path : paths) {
+            if (add(path, order)) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Add a song at the end, and tell the order about it.
+     * @param order the order playing these songs, or null if there is none yet.
+     * @return true if the song was added, false if it was already in the list.
+     */
+    public boolean add(String path, TrackOrder order) {
+        if (!add(path)) {
+            return false;
+        }
+        if (order != null) {
+            order.add();
+        }
+        return true;
+    }
+
+    /**
+     * Add a song at the end.
+     */
+    private boolean add(String path) {
+        if (mPositions.containsKey(path)) {
+            return false;
+        }
+        mPositions.put(path, mPaths.size());
+        mPaths.add(path);
+        return true;
+    }
+
+    /**
+     * Remove a song, moving the last song into its number, and tell the order about it.
+     * @param order the order playing these songs, or null if there is none yet.
+     * @return true if the song was removed, false if it wasn't in the list.
+     */
+    public boolean remove(String path, TrackOrder order) {
+        final Integer position = mPositions.remove(path);
+        if (position == null) {
+            return false;
+        }
+        final int last = mPaths.size() - 1;
+        final String moved = mPaths.remove(last);
+        if (position != last) {
+            mPaths.set(position, moved);
+            mPositions.put(moved, position);
+        }
+        if (order != null) {
+            order.remove(position);
+        }
+        return true;
+    }
+}
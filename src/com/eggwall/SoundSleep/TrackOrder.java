@@ -0,0 +1,86 @@
+/**
+ Copyright 2013 Vikram Aggarwal
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.eggwall.SoundSleep;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Decides the order in which tracks are played. Tracks are numbered from 0 to {@link #size()} - 1, matching their
+ * position in the caller's list of tracks.
+ *
+ * <p>Implementations are plain Java, so that they can be benchmarked and checked without a device.</p>
+ */
+public interface TrackOrder {
+    /** Returned by {@link #next()} when there are no tracks. */
+    int NO_TRACK = -1;
+
+    /**
+     * Returns the next track to play, or {@link #NO_TRACK} if there are none.
+     */
+    int next();
+
+    /**
+     * Returns the track that the following call to {@link #next()} will return, or {@link #NO_TRACK} if there are
+     * none. Callers use this to get the next track ready ahead of time.
+     */
+    int peek();
+
+    /** Returns the number of tracks. */
+    int size();
+
+    /**
+     * Forget the current order, and start afresh with this many tracks.
+     */
+    void reset(int size);
+
+    /**
+     * A track was added to the end of the caller's list. Its number is the old {@link #size()}.
+     */
+    void add();
+
+    /**
+     * A track was removed from the caller's list. The caller must fill the gap by moving its last track into the
+     * removed position, so the last track takes the removed track's number. This keeps removal O(1) on both sides.
+     * @param track the number of the removed track.
+     */
+    void remove(int track);
+
+    /**
+     * Returns the position in the current round: how many tracks have been returned by {@link #next()} since the
+     * order was last shuffled.
+     */
+    int getCursor();
+
+    /**
+     * Restore the position in the current round, as returned by {@link #getCursor()}. Out of range values are
+     * ignored.
+     */
+    void setCursor(int cursor);
+
+    /**
+     * Write the order, but not the cursor, so that the same sequence can be resumed with {@link #readFrom}.
+     */
+    void writeTo(DataOutputStream out) throws IOException;
+
+    /**
+     * Read an order written by {@link #writeTo}.
+     * @throws IOException if the data can't be read. The order is unchanged in this case.
+     */
+    void readFrom(DataInputStream in) throws IOException;
+}